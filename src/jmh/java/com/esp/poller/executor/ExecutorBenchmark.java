@@ -0,0 +1,84 @@
+package com.esp.poller.executor;
+
+import com.esp.poller.tasks.LatencyModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of GatedVirtualThreadExecutor.supplyAsync.
+ * <p>
+ * burst submits a burst of tasks and waits for all of them, the way the poller submits a fetch. With a gate much smaller than the burst the tasks
+ * contend for permits, with a gate bigger than the burst they never wait. The task latency is injected with a LatencyModel, 0 measures the
+ * executor's own overhead.
+ * <p>
+ * single measures the round trip of one task through an idle gate, sampled so the percentiles show up.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ExecutorBenchmark {
+    @Param( { "striped", "semaphore" } )
+    public String gateType;
+
+    @Param( { "16", "1024", "10000" } )
+    public int gateSize;
+
+    @Param( { "1000" } )
+    public int burst;
+
+    @Param( { "0", "100" } )
+    public int latencyMicros;
+
+    private GatedVirtualThreadExecutor executor;
+    private Callable<Integer> task;
+
+    @Setup( Level.Trial )
+    public void setUp() {
+        Gate gate = switch( gateType ) {
+            case "striped" -> new StripedGate( gateSize );
+            case "semaphore" -> new SemaphoreGate( gateSize );
+            default -> throw new IllegalArgumentException( gateType );
+        };
+        executor = new GatedVirtualThreadExecutor( gate );
+
+        LatencyModel latency = LatencyModel.fixed( Duration.ofNanos( TimeUnit.MICROSECONDS.toNanos( latencyMicros ) ) );
+        task = () -> {
+            latency.await();
+            return 1;
+        };
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.Throughput )
+    @OutputTimeUnit( TimeUnit.SECONDS )
+    public int burst() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[burst];
+        for( int i = 0; i < burst; i++ )
+            futures[i] = executor.supplyAsync( task );
+        CompletableFuture.allOf( futures ).join();
+        return futures.length;
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.SampleTime )
+    @OutputTimeUnit( TimeUnit.MICROSECONDS )
+    public Integer single() {
+        return executor.supplyAsync( task ).join();
+    }
+}
@@ -0,0 +1,88 @@
+package com.esp.poller.executor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the StripedGate with the Semaphore the executor used to have (SemaphoreGate), and the LongAdder counters with the AtomicLongs they
+ * replaced. Each operation is the bookkeeping a task does on its way through the gate: acquire, count itself queued then active, release.
+ * <p>
+ * With a small gate and many threads most acquires have to wait, which measures the waiting path. With a big gate they never wait, which measures the
+ * cost of contention on the fast path alone.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@Threads( 16 )
+public class GateBenchmark {
+    @Param( { "semaphore", "striped" } )
+    public String gateType;
+
+    @Param( { "8", "10000" } )
+    public int permits;
+
+    private Gate gate;
+    private final AtomicLong atomicActive = new AtomicLong();
+    private final AtomicLong atomicQueued = new AtomicLong();
+    private final LongAdder adderActive = new LongAdder();
+    private final LongAdder adderQueued = new LongAdder();
+
+    @Setup( Level.Trial )
+    public void setUp() {
+        gate = switch( gateType ) {
+            case "semaphore" -> new SemaphoreGate( permits );
+            case "striped" -> new StripedGate( permits );
+            default -> throw new IllegalArgumentException( gateType );
+        };
+    }
+
+    @Benchmark
+    public void acquireRelease() throws InterruptedException {
+        gate.acquire();
+        gate.release();
+    }
+
+    /**
+     * The gate plus the AtomicLong counters, the way the executor used to do it.
+     */
+    @Benchmark
+    public void acquireReleaseAtomicCounters() throws InterruptedException {
+        atomicQueued.incrementAndGet();
+        gate.acquire();
+        atomicQueued.decrementAndGet();
+        atomicActive.incrementAndGet();
+        atomicActive.decrementAndGet();
+        gate.release();
+    }
+
+    /**
+     * The gate plus the LongAdder counters the executor uses now.
+     */
+    @Benchmark
+    public void acquireReleaseAdderCounters() throws InterruptedException {
+        adderQueued.increment();
+        gate.acquire();
+        adderQueued.decrement();
+        adderActive.increment();
+        adderActive.decrement();
+        gate.release();
+    }
+}
@@ -0,0 +1,98 @@
+package com.esp.poller.tasks;
+
+import com.esp.poller.exception.NonRetryableException;
+import com.esp.poller.exception.RetryableException;
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The aggregation of one event's results: every task's outcome goes through FutureHandle, the futures are joined with allOf, and the results are grouped
+ * by Result with groupingBy to count them, the same steps as TaskDispatcher.dispatchAll and LoggerPollerSim.completeEvent (without the printing).
+ * eventAggregator does the same with an EventAggregator, the way LoggerPollerSim does it now: each outcome is counted as it lands and the last one
+ * completes the event.
+ * The task outcomes are already complete, so this is only the cost of the aggregation itself. A share of the tasks fail, half retryable and half not.
+ * Run it with -prof gc to see the garbage per event.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class AggregationBenchmark {
+    @Param( { "10", "100" } )
+    public int tasksPerEvent;
+
+    @Param( { "0.05" } )
+    public double failureRate;
+
+    private EventSim eventSim;
+    private List<EventTaskContext> contexts;
+    private List<Throwable> failures;
+
+    @Setup( Level.Trial )
+    public void setUp() {
+        eventSim = new EventSim( "event0", List.of( "asset1", "asset2", "asset3" ) );
+        contexts = new ArrayList<>();
+        failures = new ArrayList<>();
+        int failing = (int) Math.round( tasksPerEvent * failureRate );
+        for( int i = 0; i < tasksPerEvent; i++ ) {
+            contexts.add( new EventTaskDPContext( eventSim, "asset" + (i % 3), "rule" + i ) );
+            failures.add( i >= failing ? null : new CompletionException( i % 2 == 0
+                                                                                 ? new RetryableException( "retryable" )
+                                                                                 : new NonRetryableException( "non-retryable" ) ) );
+        }
+    }
+
+    @Benchmark
+    public Map<EventTaskContext.Result, List<EventTaskContext>> handleAllOfGroupingBy() {
+        List<CompletableFuture<EventTaskContext>> futures = new ArrayList<>( tasksPerEvent );
+        for( int i = 0; i < tasksPerEvent; i++ ) {
+            EventTaskContext context = contexts.get( i );
+            Throwable failure = failures.get( i );
+            CompletableFuture<EventTaskContext> outcome = null == failure
+                    ? CompletableFuture.completedFuture( context ) : CompletableFuture.failedFuture( failure );
+            futures.add( outcome.handle( new FutureHandle( context ) ) );
+        }
+
+        return CompletableFuture.allOf( futures.toArray( CompletableFuture[]::new ) )
+                                .thenApply( v -> futures.stream().map( CompletableFuture::join ).toList() )
+                                .join()
+                                .stream()
+                                .collect( Collectors.groupingBy( EventTaskContext::getResult ) );
+    }
+
+    @Benchmark
+    public EventAggregator eventAggregator() {
+        EventAggregator aggregator = new EventAggregator( eventSim, tasksPerEvent, a -> a.count( EventTaskContext.Result.SUCCESS ) );
+        for( int i = 0; i < tasksPerEvent; i++ ) {
+            EventTaskContext context = contexts.get( i );
+            Throwable failure = failures.get( i );
+            CompletableFuture<EventTaskContext> outcome = null == failure
+                    ? CompletableFuture.completedFuture( context ) : CompletableFuture.failedFuture( failure );
+            outcome.handle( new FutureHandle( context ) ).thenAccept( aggregator::complete );
+        }
+        return aggregator;
+    }
+}
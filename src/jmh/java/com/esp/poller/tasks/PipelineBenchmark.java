@@ -0,0 +1,77 @@
+package com.esp.poller.tasks;
+
+import com.esp.poller.model.EventSim;
+import com.esp.poller.ruleCache.RuleCache;
+import com.esp.poller.ruleCache.RuleCacheSim;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The expansion of a fetch into tasks: FetchEventsFromLogger, then CreateAllTasksForEvent for every event.
+ * <p>
+ * perEvent is what LoggerPollerSim does now, each event is expanded on its own as it comes out of the fetch. groupingBy is the way it used to be, the
+ * whole fetch flattened into tasks and grouped back by event id before anything is submitted, kept here as the baseline. The rule cache is warm and
+ * its loader has no latency, so this measures only the expansion.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class PipelineBenchmark {
+    @Param( { "100", "1000" } )
+    public int events;
+
+    private FanOutEstimator fanOutEstimator;
+    private CreateAllTasksForEvent createAllTasksForEvent;
+    private Map<String, Integer> permitBudgets;
+
+    @Setup( Level.Trial )
+    public void setUp() {
+        RuleCache ruleCache = new RuleCache( assetId -> IntStream.range( 0, 3 ).mapToObj( i -> "rule" + i ).toList(), 1000, Duration.ofHours( 1 ),
+                                             Duration.ofHours( 1 ) );
+        createAllTasksForEvent = new CreateAllTasksForEvent( new RuleCacheSim( ruleCache ) );
+        // 3 rules on each of 3 assets, so every event projects to exactly 9 DP tasks and the budget fits exactly the number of events
+        fanOutEstimator = new FanOutEstimator( Map.of( ClientTask.DP_PARTITION, 3.0, ClientTask.EP_PARTITION, 0.0 ) );
+        permitBudgets = Map.of( ClientTask.DP_PARTITION, events * 9, ClientTask.EP_PARTITION, events );
+    }
+
+    @Benchmark
+    public void perEvent( Blackhole blackhole ) {
+        new FetchEventsFromLogger( fanOutEstimator ).apply( permitBudgets ).forEach( eventSim -> {
+            List<ClientTask> tasks = createAllTasksForEvent.apply( eventSim ).toList();
+            blackhole.consume( tasks );
+        } );
+    }
+
+    @Benchmark
+    public Map<String, List<ClientTask>> groupingBy() {
+        return new FetchEventsFromLogger( fanOutEstimator ).apply( permitBudgets )
+                                                           .flatMap( createAllTasksForEvent )
+                                                           .collect( Collectors.groupingBy( t -> t.getEventTaskContext().eventSim().eventId() ) );
+    }
+
+    @Benchmark
+    public List<EventSim> fetchOnly() {
+        return new FetchEventsFromLogger( fanOutEstimator ).apply( permitBudgets ).toList();
+    }
+}
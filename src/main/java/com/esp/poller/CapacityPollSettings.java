@@ -0,0 +1,21 @@
+package com.esp.poller;
+
+import java.time.Duration;
+
+/**
+ * Settings for capacity-driven polling. Instead of polling on a fixed delay, the poller fetches as soon as the gate has at least lowWaterMark
+ * tasks' worth of free permits.
+ *
+ * @param lowWaterMark the free capacity, in tasks, that triggers the next fetch
+ * @param minInterval  the least time between the start of two fetches, so a gate that drains quickly doesn't turn into a tight fetch loop
+ * @param maxInterval  the most time between the start of two fetches. Also how long we wait after a fetch came back empty, so an empty logger isn't
+ *                     hammered
+ */
+public record CapacityPollSettings(int lowWaterMark, Duration minInterval, Duration maxInterval) {
+    public CapacityPollSettings {
+        if( lowWaterMark < 1 )
+            throw new IllegalArgumentException( "lowWaterMark must be at least 1" );
+        if( minInterval.compareTo( maxInterval ) > 0 )
+            throw new IllegalArgumentException( "minInterval must not be longer than maxInterval" );
+    }
+}
@@ -1,10 +1,29 @@
 package com.esp.poller;
 
+import com.esp.poller.executor.Gate;
 import com.esp.poller.executor.GatedVirtualThreadExecutor;
+import com.esp.poller.executor.StripedGate;
+import com.esp.poller.journal.EventJournal;
+import com.esp.poller.journal.MappedEventJournal;
+import com.esp.poller.logger.Log;
+import com.esp.poller.metrics.MetricsHttpServer;
+import com.esp.poller.metrics.PollerMetrics;
+import com.esp.poller.ownership.EventOwnership;
+import com.esp.poller.ownership.LeaseStore;
+import com.esp.poller.ownership.LeasedPartitions;
+import com.esp.poller.ruleCache.RuleCacheSim;
+import com.esp.poller.tasks.ClientTask;
 import com.esp.poller.tasks.LoggerPollerSim;
 import com.esp.poller.tasks.SafeTask;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -15,21 +34,179 @@ import java.util.concurrent.TimeUnit;
  * There is no queue of tasks like we have now. We avoid that overhead, leaving the tasks in the database until we have capacity to process them.
  * We use the gated executor to control the number of concurrent tasks. We can dramatically increase the number of concurrent tasks. Out memory will
  * stay low since we only pull what we can process at any given time.
+ * The gate can be fixed (maxConcurrentTasks) or adaptive (pass in an AdaptiveGate). Since the poller sizes each fetch from the available permits, an
+ * adaptive gate automatically changes how much work we pull as the downstream speeds up or slows down.
+ * It can poll on a fixed delay (start()) or whenever the gate has drained below a low-water mark (start(CapacityPollSettings)), which keeps the gate
+ * close to full instead of a sawtooth of a busy burst followed by an idle wait.
+ * DP and EP can also get their own partitions of the gate (bulkheads), so a slow EP doesn't take permits away from DP or the reverse.
+ * The metrics of the gate, the tasks and the events can be served to Prometheus with startMetricsEndpoint.
+ * With openJournal the pollers keep an EventJournal, and the first poller started picks up what the journal has from before a restart.
+ * Several instances of the service can share the logger with joinCluster, each one then only fetches the events of the partitions it holds a lease
+ * on, so adding an instance adds its gate to the throughput instead of fetching the same events twice.
+ * All the pollers share one rule cache. With openRuleSnapshot it starts warm from the snapshot the last run wrote when it stopped, and changes pushed
+ * by the rules store come in through applyRuleChange.
  */
 public class PollerServiceSim {
+    private static final Log LOG = Log.get( PollerServiceSim.class );
+
     private final ScheduledExecutorService pollerExecutor;
     private final GatedVirtualThreadExecutor gatedExecutor;
+    private final PollerMetrics metrics;
+    private final List<LoggerPollerSim> pollers = new CopyOnWriteArrayList<>();
+    private volatile Future<?> capacityPolling;
+    private volatile MetricsHttpServer metricsServer;
+    private volatile EventJournal journal = EventJournal.NONE;
+    private volatile EventOwnership ownership = EventOwnership.ALL;
+    private volatile RuleCacheSim ruleCache = new RuleCacheSim();
+    private volatile Path ruleSnapshot;
 
     public PollerServiceSim( int maxConcurrentTasks ) {
-        pollerExecutor = Executors.newScheduledThreadPool( 1 );
-        gatedExecutor = new GatedVirtualThreadExecutor( maxConcurrentTasks );
+        this( new GatedVirtualThreadExecutor( maxConcurrentTasks ) );
+    }
+
+    public PollerServiceSim( Gate gate ) {
+        this( new GatedVirtualThreadExecutor( gate ) );
+    }
+
+    /**
+     * Separate bulkheads for DP and EP, so one slow downstream can't starve the other.
+     */
+    public PollerServiceSim( int maxConcurrentDPTasks, int maxConcurrentEPTasks ) {
+        this( new GatedVirtualThreadExecutor( maxConcurrentDPTasks )
+                      .addPartition( ClientTask.DP_PARTITION, new StripedGate( maxConcurrentDPTasks ) )
+                      .addPartition( ClientTask.EP_PARTITION, new StripedGate( maxConcurrentEPTasks ) ) );
+    }
+
+    public PollerServiceSim( GatedVirtualThreadExecutor gatedExecutor ) {
+        this.pollerExecutor = Executors.newScheduledThreadPool( 1 );
+        this.gatedExecutor = gatedExecutor;
+        this.metrics = new PollerMetrics( gatedExecutor );
+    }
+
+    public PollerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Serves the metrics at http://localhost:port/metrics. Port 0 picks a free port, see MetricsHttpServer.getPort.
+     */
+    public synchronized MetricsHttpServer startMetricsEndpoint( int port ) throws IOException {
+        if( null == metricsServer )
+            metricsServer = new MetricsHttpServer( metrics, new InetSocketAddress( "localhost", port ) );
+        return metricsServer;
+    }
+
+    /**
+     * Keeps a journal of the events in flight in the file, see MappedEventJournal. Call this before start.
+     */
+    public synchronized EventJournal openJournal( Path path ) throws IOException {
+        if( EventJournal.NONE == journal )
+            journal = MappedEventJournal.open( path, 64 << 20, Duration.ofMillis( 10 ) );
+        return journal;
+    }
+
+    /**
+     * Shares the logger's events with the other instances that use the same store, see LeasedPartitions. Every instance needs its own id and the same
+     * number of partitions. Call this before start.
+     */
+    public synchronized LeasedPartitions joinCluster( String instanceId, LeaseStore store, int partitions ) {
+        if( EventOwnership.ALL != ownership )
+            throw new IllegalStateException( "Already joined a cluster" );
+        LeasedPartitions leasedPartitions = new LeasedPartitions( instanceId, partitions, store, Duration.ofSeconds( 15 ) ).start();
+        ownership = leasedPartitions;
+        return leasedPartitions;
+    }
+
+    /**
+     * Starts the rule cache warm from the snapshot in the file, if there is one, and writes a new snapshot there on stop. Call this before start.
+     */
+    public synchronized RuleCacheSim openRuleSnapshot( Path path ) {
+        if( null == ruleSnapshot ) {
+            ruleCache = RuleCacheSim.warmStarted( path );
+            ruleSnapshot = path;
+        }
+        return ruleCache;
+    }
+
+    public RuleCacheSim getRuleCache() {
+        return ruleCache;
+    }
+
+    /**
+     * Applies a change pushed by the rules store to the shared rule cache. Null rules mean the asset's rules changed and have to be loaded again.
+     */
+    public void applyRuleChange( String assetId, List<String> rules ) {
+        if( null == rules )
+            ruleCache.getRuleCache().invalidate( assetId );
+        else
+            ruleCache.getRuleCache().put( assetId, rules );
     }
 
     public void start() {
-        pollerExecutor.scheduleWithFixedDelay( SafeTask.safeRunnable( new LoggerPollerSim( gatedExecutor ) ), 1, 5, TimeUnit.SECONDS );
+        pollerExecutor.scheduleWithFixedDelay( SafeTask.safeRunnable( newPoller() ), 1, 5, TimeUnit.SECONDS );
+    }
+
+    /**
+     * Polls whenever the gate has room for more work instead of on a fixed delay. A batch that finishes in 600ms is followed by the next fetch right
+     * away, rather than the gate sitting idle for the rest of a 5 second cycle.
+     */
+    public void start( CapacityPollSettings settings ) {
+        LoggerPollerSim poller = newPoller();
+        capacityPolling = pollerExecutor.submit( () -> pollOnCapacity( poller, settings ) );
+    }
+
+    private LoggerPollerSim newPoller() {
+        LoggerPollerSim poller = new LoggerPollerSim( gatedExecutor, metrics, ruleCache, journal, ownership );
+        // the first poller resumes the events from before the restart, before it polls for new ones
+        if( pollers.isEmpty() )
+            poller.recover();
+        pollers.add( poller );
+        return poller;
+    }
+
+    private void pollOnCapacity( LoggerPollerSim poller, CapacityPollSettings settings ) {
+        try {
+            while( !Thread.currentThread().isInterrupted() ) {
+                long started = System.nanoTime();
+                Integer fetched = SafeTask.safeSupplier( poller::poll ).get();
+                long sinceStart = System.nanoTime() - started;
+
+                // never start fetches closer together than minInterval
+                TimeUnit.NANOSECONDS.sleep( settings.minInterval().toNanos() - sinceStart );
+
+                long untilMax = settings.maxInterval().toNanos() - (System.nanoTime() - started);
+                if( (null == fetched || fetched == 0) && poller.allowedTasks() >= settings.lowWaterMark() )
+                    // there was room but the logger had nothing, don't come back before maxInterval
+                    TimeUnit.NANOSECONDS.sleep( untilMax );
+                else
+                    poller.awaitCapacity( settings.lowWaterMark(), Duration.ofNanos( Math.max( 0, untilMax ) ) );
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public void stop() {
+        Future<?> polling = capacityPolling;
+        if( null != polling )
+            polling.cancel( true );
         pollerExecutor.shutdown();
+        // patch the states of the events that are done, events still in flight are handed out again by the logger
+        pollers.forEach( LoggerPollerSim::close );
+        journal.close();
+        Path snapshot = ruleSnapshot;
+        if( null != snapshot ) {
+            try {
+                ruleCache.getRuleCache().writeSnapshot( snapshot );
+            } catch( IOException e ) {
+                LOG.warn( "Failed to write the rule snapshot {}, the next start is cold: {}", snapshot, e );
+            }
+        }
+        // only once the states are patched, or the instance that takes the partitions over would fetch their events again
+        if( ownership instanceof LeasedPartitions leasedPartitions )
+            leasedPartitions.close();
+        MetricsHttpServer server = metricsServer;
+        if( null != server )
+            server.close();
     }
 }
@@ -0,0 +1,170 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.logger.Log;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A circuit breaker for one downstream, or one rule of a downstream. See CircuitBreakerPolicy for when it trips.
+ * <p>
+ * CLOSED lets every call through and counts the outcomes in a ring of the last windowSize calls. OPEN fails every call without it going anywhere
+ * near the downstream, or the gate. Once openDuration has passed the first call to tryAcquire moves it to HALF_OPEN, which lets halfOpenProbes calls
+ * through and refuses the rest until the probes are back.
+ * <p>
+ * Every transition starts a new generation, and a call is admitted under the generation it was let through in. Its outcome only counts while that
+ * generation lasts, so a slow call from before the breaker opened can't close it again, or trip it, when it finally comes back during HALF_OPEN.
+ * <p>
+ * The state is guarded by a ReentrantLock rather than synchronized, so a virtual thread doesn't pin its carrier on it. The critical sections are a
+ * handful of field updates.
+ */
+public class CircuitBreaker {
+    private static final Log LOG = Log.get( CircuitBreaker.class );
+    /**
+     * What tryAcquire returns for a call that should fail fast.
+     */
+    public static final long REFUSED = -1;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final CircuitBreakerPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock
+    private final boolean[] window;
+    private int next;
+    private int calls;
+    private int failures;
+    private volatile State state = State.CLOSED;
+    private volatile long generation;
+    private volatile long openUntilNanos;
+    private volatile int probesIssued;
+    private int probesSucceeded;
+
+    public CircuitBreaker( String name, CircuitBreakerPolicy policy ) {
+        this.name = name;
+        this.policy = policy;
+        this.window = new boolean[policy.windowSize()];
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /**
+     * Whether a call would be let through right now, without taking a probe. Used to decide whether to fetch work for the downstream at all.
+     */
+    public boolean isCallPermitted() {
+        return switch( state ) {
+            case CLOSED -> true;
+            case OPEN -> System.nanoTime() - openUntilNanos >= 0;
+            case HALF_OPEN -> probesIssued < policy.halfOpenProbes();
+        };
+    }
+
+    /**
+     * Asks to make a call. Every call that's let through has to report its outcome with onResult, along with the generation it was let through in.
+     *
+     * @return the generation the call was admitted in, or REFUSED if the call should fail fast
+     */
+    public long tryAcquire() {
+        // the common case, no need for the lock
+        // if it opens in between, the call counts as one from before it opened
+        if( state == State.CLOSED )
+            return generation;
+
+        lock.lock();
+        try {
+            if( state == State.OPEN ) {
+                if( System.nanoTime() - openUntilNanos < 0 )
+                    return REFUSED;
+                transition( State.HALF_OPEN );
+            }
+            if( state == State.HALF_OPEN ) {
+                if( probesIssued >= policy.halfOpenProbes() )
+                    return REFUSED;
+                probesIssued++;
+            }
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the outcome of a call that tryAcquire let through. It is ignored if the breaker has moved on from the generation the call was admitted in.
+     */
+    public void onResult( long admitted, boolean failed ) {
+        lock.lock();
+        try {
+            if( admitted != generation )
+                return;
+            switch( state ) {
+                case CLOSED -> {
+                    record( failed );
+                    if( calls >= policy.minimumCalls() && failures >= policy.failureRateThreshold() * calls )
+                        transition( State.OPEN );
+                }
+                case HALF_OPEN -> {
+                    if( failed )
+                        transition( State.OPEN );
+                    else if( ++probesSucceeded >= policy.halfOpenProbes() )
+                        transition( State.CLOSED );
+                }
+                // only calls from an earlier generation can come back while it's open, and those were dropped above
+                case OPEN -> {
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // guarded by lock
+    private void record( boolean failed ) {
+        if( calls == window.length ) {
+            if( window[next] )
+                failures--;
+        } else
+            calls++;
+
+        window[next] = failed;
+        if( failed )
+            failures++;
+        next = (next + 1) % window.length;
+    }
+
+    // guarded by lock
+    private void transition( State to ) {
+        switch( to ) {
+            case OPEN -> {
+                // the window only counts calls while it's closed, after a failed probe it still has the calls from before it opened the first time
+                if( state == State.CLOSED )
+                    LOG.warn( "Circuit breaker {} is OPEN ({} of the last {} calls failed)", name, failures, calls );
+                else
+                    LOG.warn( "Circuit breaker {} is OPEN again, a probe failed", name );
+                openUntilNanos = System.nanoTime() + policy.openDuration().toNanos();
+            }
+            case HALF_OPEN -> {
+                LOG.warn( "Circuit breaker {} is HALF_OPEN, letting {} probes through", name, policy.halfOpenProbes() );
+                probesIssued = 0;
+                probesSucceeded = 0;
+            }
+            case CLOSED -> {
+                LOG.info( "Circuit breaker {} is CLOSED, the probes succeeded", name );
+                next = 0;
+                calls = 0;
+                failures = 0;
+            }
+        }
+        generation++;
+        state = to;
+    }
+}
@@ -0,0 +1,29 @@
+package com.esp.poller.dispatch;
+
+import java.time.Duration;
+
+/**
+ * When a CircuitBreaker trips and how it recovers.
+ * The breaker looks at the outcome of the last windowSize calls. Once at least minimumCalls of them are in and the share that failed, retryable or
+ * not, reaches failureRateThreshold, it opens. It stays open for openDuration and then lets halfOpenProbes calls through. If all of them succeed it
+ * closes again, if any of them fails it opens for another openDuration.
+ *
+ * @param windowSize           the number of most recent calls the failure rate is taken over
+ * @param minimumCalls         the breaker doesn't trip on fewer calls than this
+ * @param failureRateThreshold the share of failed calls, between 0 and 1, that trips the breaker
+ * @param openDuration         how long the breaker fails calls fast before probing the downstream
+ * @param halfOpenProbes       the number of calls let through to probe the downstream
+ */
+public record CircuitBreakerPolicy(int windowSize, int minimumCalls, double failureRateThreshold, Duration openDuration, int halfOpenProbes) {
+    // the simulated downstreams fail about 5% of the time when they're healthy, half of all calls failing is an outage
+    public static final CircuitBreakerPolicy DEFAULT = new CircuitBreakerPolicy( 100, 20, 0.5, Duration.ofSeconds( 5 ), 5 );
+
+    public CircuitBreakerPolicy {
+        if( windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize )
+            throw new IllegalArgumentException( "minimumCalls must be between 1 and windowSize" );
+        if( failureRateThreshold <= 0 || failureRateThreshold > 1 )
+            throw new IllegalArgumentException( "failureRateThreshold must be in (0, 1]" );
+        if( halfOpenProbes < 1 )
+            throw new IllegalArgumentException( "halfOpenProbes must be at least 1" );
+    }
+}
@@ -0,0 +1,100 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.logger.Log;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.tasks.ClientTask;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Puts a CircuitBreaker in front of each downstream. A task whose breaker is open fails FAILURE_RETRYABLE straight away, without taking a permit or
+ * waiting out its time budget, so while DP is down the gate is left to the traffic that can still succeed.
+ * <p>
+ * The breakers are keyed by the task's partition, or by anything else the key function picks, e.g. partition and rule with {@link #byRule()} so a rule
+ * that keeps failing doesn't take the whole downstream with it. Every failure counts against the breaker, retryable or not, a downstream that is
+ * down often answers with errors that look non-retryable.
+ * <p>
+ * It sits below the RetryingTaskDispatcher, so each attempt asks the breaker, and a retry that lands once the breaker has closed again goes through.
+ */
+public class CircuitBreakingTaskDispatcher implements TaskDispatcher {
+    private static final Log LOG = Log.get( CircuitBreakingTaskDispatcher.class );
+
+    private final TaskDispatcher delegate;
+    private final Function<ClientTask, String> key;
+    private final CircuitBreakerPolicy policy;
+    // the breakers of each partition, by key
+    private final Map<String, Map<String, CircuitBreaker>> breakers = new ConcurrentHashMap<>();
+
+    public CircuitBreakingTaskDispatcher( TaskDispatcher delegate, CircuitBreakerPolicy policy ) {
+        this( delegate, ClientTask::partition, policy );
+    }
+
+    public CircuitBreakingTaskDispatcher( TaskDispatcher delegate, Function<ClientTask, String> key, CircuitBreakerPolicy policy ) {
+        this.delegate = delegate;
+        this.key = key;
+        this.policy = policy;
+    }
+
+    /**
+     * A breaker per partition and rule. Tasks without a rule share their partition's breaker.
+     */
+    public static Function<ClientTask, String> byRule() {
+        return task -> {
+            String ruleId = task.getEventTaskContext().getRuleId();
+            return null == ruleId ? task.partition() : task.partition() + "/" + ruleId;
+        };
+    }
+
+    @Override
+    public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+        CircuitBreaker breaker = breaker( task );
+        long admitted = breaker.tryAcquire();
+        if( admitted == CircuitBreaker.REFUSED ) {
+            LOG.debug( "Circuit breaker {} is open, failing task fast", breaker.name() );
+            EventTaskContext context = task.getEventTaskContext();
+            context.setResult( EventTaskContext.Result.FAILURE_RETRYABLE );
+            return CompletableFuture.completedFuture( context );
+        }
+
+        return delegate.dispatch( task, scope )
+                       .whenComplete( ( context, e ) -> breaker.onResult( admitted, null != e || context.getResult() != EventTaskContext.Result.SUCCESS ) );
+    }
+
+    @Override
+    public int tasksPerPermit( String partition ) {
+        return delegate.tasksPerPermit( partition );
+    }
+
+    /**
+     * A partition is accepting unless every breaker it has is open. With a breaker per rule, the other rules of the partition still get their events.
+     */
+    @Override
+    public boolean isAccepting( String partition ) {
+        Map<String, CircuitBreaker> ofPartition = breakers.get( partition );
+        return (null == ofPartition || ofPartition.values().stream().anyMatch( CircuitBreaker::isCallPermitted )) && delegate.isAccepting( partition );
+    }
+
+    @Override
+    public boolean isAccepting( ClientTask task ) {
+        return breaker( task ).isCallPermitted() && delegate.isAccepting( task );
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    public Collection<CircuitBreaker> getBreakers( String partition ) {
+        return breakers.getOrDefault( partition, Map.of() ).values();
+    }
+
+    private CircuitBreaker breaker( ClientTask task ) {
+        return breakers.computeIfAbsent( task.partition(), p -> new ConcurrentHashMap<>() )
+                       .computeIfAbsent( key.apply( task ), k -> new CircuitBreaker( k, policy ) );
+    }
+}
@@ -0,0 +1,131 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.exception.RetryableException;
+import com.esp.poller.executor.Batcher;
+import com.esp.poller.executor.GatedVirtualThreadExecutor;
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.jfr.TaskRunEvent;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.DPTaskSim;
+import com.esp.poller.tasks.FutureHandle;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Coalesces DP tasks, from any event, into multi-item DP calls. A batch goes out when it reaches maxBatchSize, or when its first task has waited
+ * maxLinger, whichever comes first, see {@link Batcher}. The whole batch is one call through the DP partition of the gate, so it takes one permit.
+ * <p>
+ * The batch call returns a result per item. Each item's result is set on its own context and completes that task's future, so event aggregation
+ * doesn't know or care that its tasks were batched. If the batch call itself fails, every item in it gets the failure, classified by FutureHandle.
+ * The batch call works on copies of the contexts, an item's own context is only written by whatever settles its future first, the batch or a cancel.
+ * Anything that isn't a DP task goes to the delegate.
+ * <p>
+ * A batch call gets the longest time budget of its items. The items of a batch can belong to different events, so cancelling an event's scope
+ * completes that event's items right away, as FAILURE_RETRYABLE, but doesn't cancel the batch call the other items are still waiting for.
+ */
+public class DPBatchingTaskDispatcher implements TaskDispatcher {
+    private final TaskDispatcher delegate;
+    private final GatedVirtualThreadExecutor gatedExecutor;
+    private final int maxBatchSize;
+    private final Function<List<EventTaskDPContext>, Callable<List<EventTaskContext>>> batchCall;
+    private final Batcher<Pending> batcher;
+
+    public DPBatchingTaskDispatcher( TaskDispatcher delegate, GatedVirtualThreadExecutor gatedExecutor, int maxBatchSize, Duration maxLinger,
+                                     Function<List<EventTaskDPContext>, Callable<List<EventTaskContext>>> batchCall ) {
+        this.delegate = delegate;
+        this.gatedExecutor = gatedExecutor;
+        this.maxBatchSize = maxBatchSize;
+        this.batchCall = batchCall;
+        this.batcher = new Batcher<>( "dp-batch-linger", maxBatchSize, maxLinger, this::send );
+    }
+
+    @Override
+    public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+        if( !(task instanceof DPTaskSim dpTask) )
+            return delegate.dispatch( task, scope );
+        if( scope.isCancelled() )
+            return CompletableFuture.completedFuture( new FutureHandle( dpTask.context() ).apply( null, new CancellationException( "Scope cancelled" ) ) );
+
+        Pending item = new Pending( dpTask.context(), dpTask.timeBudget(), scope, new CompletableFuture<>() );
+        // cancelling the scope completes the item's future, the batch it's in carries on for the other items
+        scope.register( item.future );
+        if( !batcher.add( item ) ) {
+            // closed, the task didn't run, it can run again on the next poller
+            item.future.completeExceptionally( new CompletionException( new RetryableException( "DP batcher is closed" ) ) );
+            scope.unregister( item.future );
+        }
+        return item.future.handle( ( result, e ) -> {
+            if( null != e )
+                return new FutureHandle( item.context ).apply( null, e );
+            item.context.setResult( result );
+            return item.context;
+        } );
+    }
+
+    /**
+     * A permit carries up to maxBatchSize DP tasks.
+     */
+    @Override
+    public int tasksPerPermit( String partition ) {
+        return ClientTask.DP_PARTITION.equals( partition ) ? maxBatchSize : delegate.tasksPerPermit( partition );
+    }
+
+    @Override
+    public boolean isAccepting( String partition ) {
+        return delegate.isAccepting( partition );
+    }
+
+    @Override
+    public boolean isAccepting( ClientTask task ) {
+        return delegate.isAccepting( task );
+    }
+
+    /**
+     * Sends the batch that is still lingering and stops the linger timer, tasks dispatched from now on fail as FAILURE_RETRYABLE.
+     */
+    @Override
+    public void close() {
+        batcher.close();
+        if( null != delegate )
+            delegate.close();
+    }
+
+    private void send( List<Pending> batch ) {
+        // a cancelled item completes while the batch is still running, so the batch mustn't write into the item's context
+        List<EventTaskDPContext> contexts = batch.stream()
+                                                 .map( item -> new EventTaskDPContext( item.context.eventSim(), item.context.getAssetId(),
+                                                                                       item.context.getRuleId() ) )
+                                                 .toList();
+        Callable<List<EventTaskContext>> call = TaskRunEvent.timed( ClientTask.DP_PARTITION, contexts, batchCall.apply( contexts ) );
+        // the batch gets as long as the most patient of its items
+        Duration timeBudget = batch.stream().map( Pending::timeBudget ).max( Comparator.naturalOrder() ).orElse( ClientTask.DEFAULT_TIME_BUDGET );
+        gatedExecutor.supplyAsync( ClientTask.DP_PARTITION, call, TaskScope.NONE, timeBudget ).whenComplete( ( results, e ) -> {
+            Throwable failure = null != e ? e : null == results || results.size() != batch.size()
+                    ? new IllegalStateException( "Batch returned " + (null == results ? 0 : results.size()) + " results for " + batch.size() + " items" )
+                    : null;
+            for( int i = 0; i < batch.size(); i++ ) {
+                Pending item = batch.get( i );
+                if( null != failure )
+                    item.future.completeExceptionally( failure );
+                else
+                    item.future.complete( results.get( i ).getResult() );
+                item.scope.unregister( item.future );
+            }
+        } );
+    }
+
+    /**
+     * An item waiting for its batch. The future carries just the item's result, its context is only written once the future is settled.
+     */
+    private record Pending(EventTaskDPContext context, Duration timeBudget, TaskScope scope, CompletableFuture<EventTaskContext.Result> future) {
+    }
+}
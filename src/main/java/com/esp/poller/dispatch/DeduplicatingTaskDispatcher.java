@@ -0,0 +1,173 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.CopyableTask;
+import com.esp.poller.tasks.FutureHandle;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Single-flight for identical tasks. A burst of events that touch the same assets turns into the same (asset, rule) DP calls over and over, all of
+ * them in the gate at the same time. Tasks with the same identity that are in flight at the same time share one downstream call, and one permit.
+ * <p>
+ * The first task with an identity starts the call, on a copy of itself, and whoever comes along with the same identity before it's done waits for
+ * it. Each of them, the first one too, gets the result copied onto its own context, so no two events ever share a context. Once the call is done the
+ * identity is free again, the next task with it makes a new call. Nothing is cached.
+ * <p>
+ * The shared call runs in a scope of its own. A waiter whose event is cancelled, or runs out of time, stops waiting and fails as retryable, and the
+ * call is only cancelled once every one of its waiters is gone.
+ * <p>
+ * The identity decides what counts as identical, see {@link #byAssetAndRule()}. Only CopyableTasks, which are idempotent, are deduplicated, merging
+ * two calls into one is only safe if making the call twice would have done the same as making it once. Other tasks, and tasks without an identity
+ * (null), go straight to the delegate.
+ */
+public class DeduplicatingTaskDispatcher implements TaskDispatcher {
+    private final TaskDispatcher delegate;
+    private final Function<CopyableTask, Object> identity;
+    private final Map<Object, Flight> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    public DeduplicatingTaskDispatcher( TaskDispatcher delegate ) {
+        this( delegate, byAssetAndRule() );
+    }
+
+    public DeduplicatingTaskDispatcher( TaskDispatcher delegate, Function<CopyableTask, Object> identity ) {
+        this.delegate = delegate;
+        this.identity = identity;
+    }
+
+    /**
+     * The identity of an idempotent task by its downstream, asset and rule. In the real poller this would also take the version of the asset's
+     * content, so an event with newer content never gets the result of a call made for older content.
+     */
+    public record TaskKey(String partition, String assetId, String ruleId) {
+    }
+
+    public static Function<CopyableTask, Object> byAssetAndRule() {
+        return task -> {
+            EventTaskContext context = task.getEventTaskContext();
+            if( null == context.getAssetId() || null == context.getRuleId() )
+                return null;
+            return new TaskKey( task.partition(), context.getAssetId(), context.getRuleId() );
+        };
+    }
+
+    /**
+     * A call in flight and the tasks waiting for it.
+     */
+    private static final class Flight {
+        final CompletableFuture<EventTaskContext> result = new CompletableFuture<>();
+        final TaskScope scope = new TaskScope();
+        final AtomicInteger waiters = new AtomicInteger( 1 );
+
+        /**
+         * @return false if every waiter has already given up on the call and it's being cancelled
+         */
+        boolean join() {
+            return waiters.getAndUpdate( n -> n == 0 ? 0 : n + 1 ) != 0;
+        }
+
+        void leave() {
+            if( waiters.decrementAndGet() == 0 )
+                scope.cancel();
+        }
+    }
+
+    @Override
+    public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+        if( !(task instanceof CopyableTask copyable) )
+            return delegate.dispatch( task, scope );
+        Object key = identity.apply( copyable );
+        if( null == key )
+            return delegate.dispatch( task, scope );
+
+        while( true ) {
+            Flight flight = inFlight.get( key );
+            if( null != flight && flight.join() ) {
+                hits.increment();
+                return await( task, scope, flight );
+            }
+
+            Flight started = new Flight();
+            if( null == flight ? null == inFlight.putIfAbsent( key, started ) : inFlight.replace( key, flight, started ) ) {
+                calls.increment();
+                delegate.dispatch( copyable.copy(), started.scope ).whenComplete( ( context, e ) -> {
+                    // free the identity before anyone sees the result, whoever comes next makes a new call
+                    inFlight.remove( key, started );
+                    started.scope.close();
+                    if( null == e )
+                        started.result.complete( context );
+                    else
+                        started.result.completeExceptionally( e );
+                } );
+                return await( task, scope, started );
+            }
+            // someone else started a call for the identity in the meantime, go again
+        }
+    }
+
+    private CompletableFuture<EventTaskContext> await( ClientTask task, TaskScope scope, Flight flight ) {
+        CompletableFuture<EventTaskContext> own = new CompletableFuture<>();
+        flight.result.whenComplete( ( shared, e ) -> {
+            if( null != e ) {
+                own.completeExceptionally( e );
+                return;
+            }
+            EventTaskContext context = task.getEventTaskContext();
+            context.setResult( shared.getResult() );
+            own.complete( context );
+        } );
+
+        scope.register( own );
+        return own.handle( ( context, e ) -> {
+            scope.unregister( own );
+            if( null == e )
+                return context;
+            if( own.isCancelled() )
+                flight.leave();
+            return new FutureHandle( task.getEventTaskContext() ).apply( null, e );
+        } );
+    }
+
+    @Override
+    public int tasksPerPermit( String partition ) {
+        return delegate.tasksPerPermit( partition );
+    }
+
+    @Override
+    public boolean isAccepting( String partition ) {
+        return delegate.isAccepting( partition );
+    }
+
+    @Override
+    public boolean isAccepting( ClientTask task ) {
+        return delegate.isAccepting( task );
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * The number of calls made for tasks with an identity.
+     */
+    public long calls() {
+        return calls.sum();
+    }
+
+    /**
+     * The number of tasks that shared a call that was already in flight, instead of making their own.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+}
@@ -0,0 +1,31 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.GatedVirtualThreadExecutor;
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.jfr.TaskRunEvent;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.FutureHandle;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs the task once through the gated executor, in the task's partition, and turns the outcome into a result on the task's context with FutureHandle.
+ * The call is recorded in JFR as a TaskRunEvent. It gets the task's time budget, within the deadline of its scope, and waits for its permit under the
+ * task's scheduling key.
+ */
+public class GatedTaskDispatcher implements TaskDispatcher {
+    private final GatedVirtualThreadExecutor gatedExecutor;
+
+    public GatedTaskDispatcher( GatedVirtualThreadExecutor gatedExecutor ) {
+        this.gatedExecutor = gatedExecutor;
+    }
+
+    @Override
+    public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+        String partition = task.partition();
+        return gatedExecutor.supplyAsync( partition, TaskRunEvent.timed( partition, task.getEventTaskContext(), task ), scope, task.timeBudget(),
+                                          task.schedulingKey() )
+                            .handle( new FutureHandle( task.getEventTaskContext() ) );
+    }
+}
@@ -0,0 +1,27 @@
+package com.esp.poller.dispatch;
+
+/**
+ * When to hedge a task and how many hedges we can afford.
+ * A task that hasn't completed once it has taken longer than the given quantile of recent latencies gets a second attempt. The quantile is taken over
+ * windows of windowSize completed tasks, so it follows the downstream as it gets faster or slower. Until the first window is full nothing is hedged.
+ * <p>
+ * Every task dispatched earns budgetRatio of a hedge, and a hedge spends a whole one, so there are never more than budgetRatio extra calls, e.g. 5%,
+ * on top of the normal traffic. At most maxBurst hedges can be saved up for a burst of slow calls.
+ *
+ * @param quantile    the latency quantile after which a task is hedged, e.g. 0.95
+ * @param budgetRatio extra calls as a share of the tasks dispatched
+ * @param maxBurst    the most hedges that can be saved up
+ * @param windowSize  the number of completed tasks the quantile is taken over
+ */
+public record HedgePolicy(double quantile, double budgetRatio, int maxBurst, int windowSize) {
+    public static final HedgePolicy DEFAULT = new HedgePolicy( 0.95, 0.05, 20, 500 );
+
+    public HedgePolicy {
+        if( quantile <= 0 || quantile >= 1 )
+            throw new IllegalArgumentException( "quantile must be in (0, 1)" );
+        if( budgetRatio <= 0 || budgetRatio > 1 )
+            throw new IllegalArgumentException( "budgetRatio must be in (0, 1]" );
+        if( maxBurst < 1 || windowSize < 1 )
+            throw new IllegalArgumentException( "maxBurst and windowSize must be at least 1" );
+    }
+}
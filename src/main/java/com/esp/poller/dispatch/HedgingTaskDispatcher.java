@@ -0,0 +1,226 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.GatedVirtualThreadExecutor;
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.jfr.TaskRunEvent;
+import com.esp.poller.logger.Log;
+import com.esp.poller.metrics.LatencyHistogram;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.CopyableTask;
+import com.esp.poller.tasks.FutureHandle;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hedges idempotent tasks to cut the tail of the latency. The slowest of an event's DP calls decides when the event is done, so a call that's stuck at
+ * 600ms holds up the other eight. When an idempotent task hasn't completed by the HedgePolicy's quantile of recent latencies, a second attempt is
+ * started on a copy of the task. Whichever attempt succeeds first wins and the other one is cancelled, which interrupts it and gives its permit back.
+ * If both fail, the task gets the result of the first attempt.
+ * <p>
+ * Both attempts run on copies of the task, so neither of them ever writes to the task's own context. Only the result that decides the task, the
+ * winner's, is copied onto it, and the future completes with the task's own context like with any other dispatcher. The loser's cancellation, or a
+ * late write from a call that ignored its interrupt, lands on its copy.
+ * <p>
+ * Hedges are optional work, they must never take permits from the normal traffic. So a hedge only runs if a permit of its partition is free right
+ * now, taken with trySupplyAsync, and only while there is budget for it. The budget grows with every task dispatched, see HedgePolicy. The hedge is
+ * a single call straight through the gated executor, it doesn't wait for a DP batch to fill up.
+ * <p>
+ * Tasks that aren't idempotent, i.e. aren't CopyableTasks, go straight to the delegate.
+ */
+public class HedgingTaskDispatcher implements TaskDispatcher {
+    private static final Log LOG = Log.get( HedgingTaskDispatcher.class );
+    // the budget is kept in thousandths of a hedge, so it can grow by a fraction with every task
+    private static final long HEDGE = 1000;
+
+    private final TaskDispatcher delegate;
+    private final GatedVirtualThreadExecutor gatedExecutor;
+    private final HedgePolicy policy;
+    private final long earnedPerTask;
+    private final long maxBudget;
+    private final AtomicLong budget = new AtomicLong();
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final LongAdder hedgesStarted = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+
+    public HedgingTaskDispatcher( TaskDispatcher delegate, GatedVirtualThreadExecutor gatedExecutor, HedgePolicy policy ) {
+        this.delegate = delegate;
+        this.gatedExecutor = gatedExecutor;
+        this.policy = policy;
+        this.earnedPerTask = Math.round( policy.budgetRatio() * HEDGE );
+        this.maxBudget = policy.maxBurst() * HEDGE;
+    }
+
+    /**
+     * The latencies of the last window of completed tasks of a partition, and the hedge delay that came out of the window before it.
+     */
+    private final class LatencyWindow {
+        private final AtomicReference<LatencyHistogram> current = new AtomicReference<>( new LatencyHistogram() );
+        // negative until the first window is full
+        private volatile long hedgeAfterNanos = -1;
+
+        void record( long nanos ) {
+            LatencyHistogram histogram = current.get();
+            histogram.record( nanos );
+            if( histogram.count() >= policy.windowSize() && current.compareAndSet( histogram, new LatencyHistogram() ) )
+                hedgeAfterNanos = histogram.valueAtQuantile( policy.quantile() );
+        }
+    }
+
+    @Override
+    public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+        if( !(task instanceof CopyableTask copyable) )
+            return delegate.dispatch( task, scope );
+
+        budget.getAndUpdate( b -> Math.min( maxBudget, b + earnedPerTask ) );
+        LatencyWindow window = latencies.computeIfAbsent( task.partition(), p -> new LatencyWindow() );
+        long started = System.nanoTime();
+        Hedged attempts = new Hedged( copyable, scope );
+        attempts.result.thenAccept( context -> {
+            if( context.getResult() == EventTaskContext.Result.SUCCESS )
+                window.record( System.nanoTime() - started );
+        } );
+
+        long hedgeAfterNanos = window.hedgeAfterNanos;
+        if( hedgeAfterNanos >= 0 && !attempts.result.isDone() )
+            CompletableFuture.delayedExecutor( hedgeAfterNanos, TimeUnit.NANOSECONDS ).execute( attempts::hedge );
+        return attempts.result;
+    }
+
+    @Override
+    public int tasksPerPermit( String partition ) {
+        return delegate.tasksPerPermit( partition );
+    }
+
+    @Override
+    public boolean isAccepting( String partition ) {
+        return delegate.isAccepting( partition );
+    }
+
+    @Override
+    public boolean isAccepting( ClientTask task ) {
+        return delegate.isAccepting( task );
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * The number of hedges that were started.
+     */
+    public long hedgesStarted() {
+        return hedgesStarted.sum();
+    }
+
+    /**
+     * The number of hedges that succeeded before the first attempt.
+     */
+    public long hedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    /**
+     * The first attempt of a task and, if it comes to that, its hedge. The first attempt runs in a scope of its own within the task's scope, so it can
+     * be cancelled without cancelling the rest of the event. Whoever sets won settles the task, nobody else touches its context.
+     */
+    private final class Hedged {
+        private final CompletableFuture<EventTaskContext> result = new CompletableFuture<>();
+        private final CopyableTask task;
+        private final TaskScope scope;
+        private final TaskScope firstScope;
+        // attempts still running, 0 once the result is in and no hedge can start any more
+        private final AtomicInteger running = new AtomicInteger( 1 );
+        private final AtomicBoolean won = new AtomicBoolean();
+        private volatile CompletableFuture<EventTaskContext> hedge;
+        private volatile EventTaskContext.Result firstResult;
+
+        Hedged( CopyableTask task, TaskScope scope ) {
+            this.task = task;
+            this.scope = scope;
+            this.firstScope = scope.newChild();
+            ClientTask first = task.copy();
+            delegate.dispatch( first, firstScope ).whenComplete( ( context, e ) -> {
+                EventTaskContext outcome = null == e ? context : new FutureHandle( first.getEventTaskContext() ).apply( null, e );
+                firstResult = outcome.getResult();
+                done( outcome, false );
+            } );
+        }
+
+        void hedge() {
+            if( result.isDone() || !spend() )
+                return;
+            if( running.getAndUpdate( n -> n == 0 ? 0 : n + 1 ) == 0 ) {
+                refund();
+                return;
+            }
+
+            ClientTask copy = task.copy();
+            String partition = copy.partition();
+            CompletableFuture<EventTaskContext> attempt =
+                    gatedExecutor.trySupplyAsync( partition, TaskRunEvent.timed( partition, copy.getEventTaskContext(), copy ), scope, copy.timeBudget() );
+            if( null == attempt ) {
+                // no free permit, the hedge would only compete with the normal traffic
+                refund();
+                done( null, true );
+                return;
+            }
+
+            hedgesStarted.increment();
+            LOG.debug( "Hedging task: {}", copy.getEventTaskContext() );
+            hedge = attempt;
+            attempt.handle( new FutureHandle( copy.getEventTaskContext() ) ).thenAccept( context -> done( context, true ) );
+            // the first attempt may have won while the hedge was being started
+            if( won.get() )
+                attempt.cancel( true );
+        }
+
+        /**
+         * @param context the result of an attempt, or null for a hedge that didn't start
+         */
+        private void done( EventTaskContext context, boolean isHedge ) {
+            if( null != context && context.getResult() == EventTaskContext.Result.SUCCESS && won.compareAndSet( false, true ) ) {
+                // cancel the other attempt before anything chained onto the result runs
+                if( isHedge ) {
+                    hedgesWon.increment();
+                    firstScope.cancel();
+                } else {
+                    CompletableFuture<EventTaskContext> other = hedge;
+                    if( null != other )
+                        other.cancel( true );
+                }
+                firstScope.close();
+                settle( context.getResult() );
+            }
+
+            if( running.decrementAndGet() == 0 && won.compareAndSet( false, true ) ) {
+                // both failed, go with the first attempt
+                firstScope.close();
+                settle( firstResult );
+            }
+        }
+
+        private void settle( EventTaskContext.Result outcome ) {
+            EventTaskContext own = task.getEventTaskContext();
+            own.setResult( outcome );
+            result.complete( own );
+        }
+    }
+
+    private boolean spend() {
+        return budget.getAndUpdate( b -> b >= HEDGE ? b - HEDGE : b ) >= HEDGE;
+    }
+
+    private void refund() {
+        budget.getAndUpdate( b -> Math.min( maxBudget, b + HEDGE ) );
+    }
+}
@@ -0,0 +1,35 @@
+package com.esp.poller.dispatch;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often and how fast to retry a task that failed with a RetryableException.
+ * The delay before retry n is picked at random between 0 and baseDelay * 2^(n-1), capped at maxDelay ("full jitter"). The randomness spreads the
+ * retries of a burst of failures out, instead of having them all hit the downstream again at the same moment.
+ *
+ * @param maxAttempts total number of attempts, including the first one
+ * @param baseDelay   the upper bound of the delay before the first retry
+ * @param maxDelay    the upper bound of any delay
+ */
+public record RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay) {
+    public static final RetryPolicy DEFAULT = new RetryPolicy( 3, Duration.ofMillis( 200 ), Duration.ofSeconds( 2 ) );
+
+    public RetryPolicy {
+        if( maxAttempts < 1 )
+            throw new IllegalArgumentException( "maxAttempts must be at least 1" );
+    }
+
+    public boolean canRetry( int attempts ) {
+        return attempts < maxAttempts;
+    }
+
+    /**
+     * @param attempts the number of attempts made so far
+     * @return how long to wait before the next attempt, in milliseconds
+     */
+    public long delayMillis( int attempts ) {
+        long ceiling = Math.min( maxDelay.toMillis(), baseDelay.toMillis() << Math.min( attempts - 1, 20 ) );
+        return ThreadLocalRandom.current().nextLong( ceiling + 1 );
+    }
+}
@@ -0,0 +1,67 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.tasks.ClientTask;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries a task that ended up FAILURE_RETRYABLE, with jittered exponential backoff, until it succeeds, fails non-retryable or runs out of attempts.
+ * Only the failed task is retried, with its original context, instead of the whole event being polled and processed again.
+ * <p>
+ * The backoff is a delayed executor, not a sleep, so a task waiting for its next attempt holds neither a permit nor a thread. The future returned by
+ * dispatch only completes once the task is terminal, which means the event isn't finalized until all of its tasks are. Retries stop once the task's
+ * scope is cancelled or its deadline would pass before the next attempt.
+ */
+public class RetryingTaskDispatcher implements TaskDispatcher {
+    private final TaskDispatcher delegate;
+    private final RetryPolicy retryPolicy;
+
+    public RetryingTaskDispatcher( TaskDispatcher delegate, RetryPolicy retryPolicy ) {
+        this.delegate = delegate;
+        this.retryPolicy = retryPolicy;
+    }
+
+    @Override
+    public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+        return attempt( task, scope, 1 );
+    }
+
+    @Override
+    public int tasksPerPermit( String partition ) {
+        return delegate.tasksPerPermit( partition );
+    }
+
+    @Override
+    public boolean isAccepting( String partition ) {
+        return delegate.isAccepting( partition );
+    }
+
+    @Override
+    public boolean isAccepting( ClientTask task ) {
+        return delegate.isAccepting( task );
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private CompletableFuture<EventTaskContext> attempt( ClientTask task, TaskScope scope, int attempts ) {
+        return delegate.dispatch( task, scope ).thenCompose( context -> {
+            if( context.getResult() != EventTaskContext.Result.FAILURE_RETRYABLE || !retryPolicy.canRetry( attempts ) )
+                return CompletableFuture.completedFuture( context );
+
+            // no point in waiting for a retry the scope won't let run
+            long delayMillis = retryPolicy.delayMillis( attempts );
+            if( scope.isCancelled() || scope.remainingNanos() <= TimeUnit.MILLISECONDS.toNanos( delayMillis ) )
+                return CompletableFuture.completedFuture( context );
+
+            return CompletableFuture.supplyAsync( () -> attempt( task, scope, attempts + 1 ),
+                                                  CompletableFuture.delayedExecutor( delayMillis, TimeUnit.MILLISECONDS ) )
+                                    .thenCompose( next -> next );
+        } );
+    }
+}
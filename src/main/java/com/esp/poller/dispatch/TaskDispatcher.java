@@ -0,0 +1,84 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.tasks.ClientTask;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches a ClientTask to its downstream. The returned future always completes normally, with the task's own context, once the task has reached a
+ * terminal result (SUCCESS, FAILURE_RETRYABLE or FAILURE_NON_RETRYABLE). Failures never complete the future exceptionally. A task that runs out of
+ * its time budget, or whose scope is cancelled, ends up FAILURE_RETRYABLE.
+ * <p>
+ * Dispatchers are stacked like decorators. {@link GatedTaskDispatcher} is the bottom of the stack and runs the task through the gated executor, the
+ * others wrap it to add behaviour, for example {@link RetryingTaskDispatcher}, {@link CircuitBreakingTaskDispatcher} and
+ * {@link DPBatchingTaskDispatcher}.
+ * <p>
+ * Closing a dispatcher closes the stack below it, a dispatcher with threads of its own stops them, after it has sent what it was still holding on to.
+ */
+public interface TaskDispatcher extends AutoCloseable {
+    /**
+     * @param scope the scope of the task's event, cancelling it cancels the task, and the task doesn't run past its deadline
+     */
+    CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope );
+
+    default CompletableFuture<EventTaskContext> dispatch( ClientTask task ) {
+        return dispatch( task, TaskScope.NONE );
+    }
+
+    /**
+     * How many tasks one permit of the partition carries. One, unless the dispatcher puts several tasks into one downstream call.
+     */
+    default int tasksPerPermit( String partition ) {
+        return 1;
+    }
+
+    /**
+     * Whether tasks of the partition would be let through right now. False while the partition's downstream is known to be down, so the poller doesn't
+     * fetch events only to fail them.
+     */
+    default boolean isAccepting( String partition ) {
+        return true;
+    }
+
+    /**
+     * Whether the task would be let through right now, or fail fast.
+     */
+    default boolean isAccepting( ClientTask task ) {
+        return true;
+    }
+
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Dispatches all the tasks of an event, as a TaskGraph so a task only runs once the tasks it depends on have succeeded, and returns a future that
+     * completes with their contexts, in the order of the tasks, once all of them are terminal. The future is completed by the last task to finish, so
+     * waiting for the event doesn't hold a permit.
+     */
+    default CompletableFuture<List<EventTaskContext>> dispatchAll( List<ClientTask> tasks ) {
+        if( tasks.isEmpty() )
+            return CompletableFuture.completedFuture( List.of() );
+
+        Map<ClientTask, Integer> positions = new IdentityHashMap<>( tasks.size() );
+        for( int i = 0; i < tasks.size(); i++ )
+            positions.put( tasks.get( i ), i );
+        EventTaskContext[] contexts = new EventTaskContext[tasks.size()];
+        AtomicInteger remaining = new AtomicInteger( tasks.size() );
+        CompletableFuture<List<EventTaskContext>> all = new CompletableFuture<>();
+
+        new TaskGraph( tasks ).dispatch( this, TaskScope.NONE, ( task, context ) -> {
+            contexts[positions.get( task )] = context;
+            if( remaining.decrementAndGet() == 0 )
+                all.complete( Arrays.asList( contexts ) );
+        } );
+        return all;
+    }
+}
@@ -0,0 +1,143 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.logger.Log;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.FutureHandle;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * The tasks of one event and the dependencies between them, see ClientTask.dependencies. For example the EP call of a process complete event only
+ * makes sense once all of the event's DP calls have succeeded.
+ * <p>
+ * dispatch hands the tasks without dependencies to the dispatcher straight away. Every other task is held back, without a permit or a thread, until
+ * the last of its upstream tasks has succeeded, and is dispatched by the thread that completed it. If an upstream task fails, its dependents are
+ * never dispatched. They are completed on the spot with the upstream's failure, and so are their own dependents, so a retryable failure upstream
+ * leaves them retryable and a non-retryable one leaves them non-retryable.
+ * <p>
+ * Every task of the graph is handed to onDone exactly once, whether it ran or not, so an EventAggregator over the whole graph completes as usual.
+ * The graph checks for dependencies outside of it and for cycles up front, either would leave tasks that can never run. A graph is dispatched once.
+ */
+public class TaskGraph {
+    private static final Log LOG = Log.get( TaskGraph.class );
+
+    private final List<Node> nodes;
+    private final List<Node> roots = new ArrayList<>();
+    private final AtomicBoolean dispatched = new AtomicBoolean();
+
+    private static final class Node {
+        final ClientTask task;
+        final List<Node> dependents = new ArrayList<>();
+        // upstream tasks that haven't succeeded yet
+        final AtomicInteger pending;
+        // set once the task is dispatched or short-circuited
+        final AtomicBoolean released = new AtomicBoolean();
+
+        Node( ClientTask task ) {
+            this.task = task;
+            this.pending = new AtomicInteger( task.dependencies().size() );
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a task depends on a task that isn't in the list, or the dependencies have a cycle
+     */
+    public TaskGraph( List<ClientTask> tasks ) {
+        Map<ClientTask, Node> byTask = new IdentityHashMap<>( tasks.size() );
+        nodes = new ArrayList<>( tasks.size() );
+        for( ClientTask task : tasks ) {
+            Node node = new Node( task );
+            nodes.add( node );
+            byTask.put( task, node );
+        }
+
+        for( Node node : nodes ) {
+            for( ClientTask upstream : node.task.dependencies() ) {
+                Node upstreamNode = byTask.get( upstream );
+                if( null == upstreamNode )
+                    throw new IllegalArgumentException( "Task depends on a task outside of its event: " + node.task.getEventTaskContext() );
+                upstreamNode.dependents.add( node );
+            }
+            if( node.task.dependencies().isEmpty() )
+                roots.add( node );
+        }
+
+        checkAcyclic();
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Dispatches the tasks as their dependencies allow and hands each task's result to onDone, on the thread that completed it.
+     */
+    public void dispatch( TaskDispatcher dispatcher, TaskScope scope, BiConsumer<ClientTask, EventTaskContext> onDone ) {
+        if( !dispatched.compareAndSet( false, true ) )
+            throw new IllegalStateException( "A task graph can only be dispatched once" );
+
+        for( Node root : roots )
+            release( root, dispatcher, scope, onDone );
+    }
+
+    private void release( Node node, TaskDispatcher dispatcher, TaskScope scope, BiConsumer<ClientTask, EventTaskContext> onDone ) {
+        if( !node.released.compareAndSet( false, true ) )
+            return;
+
+        dispatcher.dispatch( node.task, scope ).whenComplete( ( result, e ) -> {
+            // the dispatcher completes normally with the task's result, but if it ever doesn't the task still has to be counted
+            EventTaskContext context = null == e ? result : new FutureHandle( node.task.getEventTaskContext() ).apply( null, e );
+            EventTaskContext.Result outcome = context.getResult();
+            for( Node dependent : node.dependents ) {
+                if( outcome != EventTaskContext.Result.SUCCESS )
+                    shortCircuit( dependent, outcome, onDone );
+                else if( dependent.pending.decrementAndGet() == 0 )
+                    release( dependent, dispatcher, scope, onDone );
+            }
+            onDone.accept( node.task, context );
+        } );
+    }
+
+    private void shortCircuit( Node node, EventTaskContext.Result failure, BiConsumer<ClientTask, EventTaskContext> onDone ) {
+        if( !node.released.compareAndSet( false, true ) )
+            return;
+
+        LOG.debug( "Not dispatching task, an upstream task failed {}: {}", failure, node.task.getEventTaskContext() );
+        EventTaskContext context = node.task.getEventTaskContext();
+        context.setResult( failure );
+        for( Node dependent : node.dependents )
+            shortCircuit( dependent, failure, onDone );
+        onDone.accept( node.task, context );
+    }
+
+    /**
+     * Kahn's algorithm: take away the tasks without dependencies, and whatever they leave without dependencies, until nothing is left. Anything that is
+     * left over is on a cycle.
+     */
+    private void checkAcyclic() {
+        Map<Node, Integer> inDegree = new IdentityHashMap<>( nodes.size() );
+        for( Node node : nodes )
+            inDegree.put( node, node.task.dependencies().size() );
+
+        List<Node> ready = new ArrayList<>( roots );
+        int visited = 0;
+        while( !ready.isEmpty() ) {
+            Node node = ready.removeLast();
+            visited++;
+            for( Node dependent : node.dependents )
+                if( inDegree.merge( dependent, -1, Integer::sum ) == 0 )
+                    ready.add( dependent );
+        }
+
+        if( visited != nodes.size() )
+            throw new IllegalArgumentException( "The dependencies of the tasks have a cycle, " + (nodes.size() - visited) + " tasks could never run" );
+    }
+}
@@ -0,0 +1,10 @@
+package com.esp.poller.exception;
+
+/**
+ * A task ran out of its time budget, waiting for a permit or while running. It is retryable, the next attempt may well be faster.
+ */
+public class TaskTimeoutException extends RetryableException {
+    public TaskTimeoutException( String message ) {
+        super( message );
+    }
+}
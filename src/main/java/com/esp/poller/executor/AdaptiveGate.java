@@ -0,0 +1,126 @@
+package com.esp.poller.executor;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Adaptive gate. Instead of a fixed number of permits chosen up front, the limit moves with the downstream using AIMD (additive increase,
+ * multiplicative decrease), the same way TCP finds the capacity of a link.
+ * <ul>
+ *     <li>Every task that completes within the latency threshold, while the gate is actually being used, grows the limit by 1/limit, so a whole limit's
+ *     worth of fast tasks grows it by one, the congestion avoidance step of TCP rather than its slow start.</li>
+ *     <li>A task that takes longer than the latency threshold, or fails with a RetryableException, shrinks the limit by the backoff ratio. The limit only
+ *     shrinks once per threshold window, otherwise one slow burst would collapse it to the minimum.</li>
+ * </ul>
+ * The permits live in a Semaphore like the fixed gate. Growing releases permits, shrinking takes them away with reducePermits, which can take the
+ * Semaphore negative while more tasks are in flight than the new limit. Those drain as the tasks finish.
+ * Every completed task reports a sample, so the limit is kept in an immutable Limit swapped with a CAS rather than behind a lock. Whoever wins the swap
+ * moves the Semaphore by the difference between the limit it replaced and its own, so concurrent updates add up to the right number of permits.
+ *
+ * @author esp
+ */
+public class AdaptiveGate implements Gate {
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final ResizableSemaphore semaphore;
+    private final AtomicInteger inFlight = new AtomicInteger( 0 );
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+
+    private final AtomicReference<Limit> limit;
+
+    /**
+     * The limit as estimated, a fraction that grows a little with every fast task, and as applied to the Semaphore.
+     */
+    private record Limit(double estimated, int applied, long lastDecreaseNanos) {
+        Limit( double estimated, long lastDecreaseNanos ) {
+            this( estimated, (int) estimated, lastDecreaseNanos );
+        }
+    }
+
+    public AdaptiveGate( int initialLimit, int minLimit, int maxLimit, Duration latencyThreshold ) {
+        if( minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit )
+            throw new IllegalArgumentException( "Expected 1 <= minLimit <= initialLimit <= maxLimit" );
+
+        this.semaphore = new ResizableSemaphore( initialLimit );
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThreshold.toNanos();
+        this.limit = new AtomicReference<>( new Limit( initialLimit, System.nanoTime() - latencyThresholdNanos ) );
+    }
+
+    @Override
+    public void acquire() throws InterruptedException {
+        semaphore.acquire();
+        inFlight.incrementAndGet();
+    }
+
+    @Override
+    public boolean tryAcquire( long timeout, TimeUnit unit ) throws InterruptedException {
+        if( !semaphore.tryAcquire( timeout, unit ) )
+            return false;
+        inFlight.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void release() {
+        inFlight.decrementAndGet();
+        semaphore.release();
+    }
+
+    @Override
+    public int availablePermits() {
+        return Math.max( 0, semaphore.availablePermits() );
+    }
+
+    @Override
+    public int limit() {
+        return limit.get().applied();
+    }
+
+    @Override
+    public void onSample( long latencyNanos, boolean overloaded ) {
+        boolean slow = overloaded || latencyNanos > latencyThresholdNanos;
+        while( true ) {
+            Limit current = limit.get();
+            Limit next;
+            if( slow ) {
+                long now = System.nanoTime();
+                if( now - current.lastDecreaseNanos() < latencyThresholdNanos )
+                    return;
+                next = new Limit( Math.max( minLimit, current.estimated() * BACKOFF_RATIO ), now );
+            } else if( inFlight.get() * 2 >= current.applied() ) {
+                // only grow when we're using at least half the limit, otherwise a quiet period would inflate it with nothing to back it up
+                next = new Limit( Math.min( maxLimit, current.estimated() + 1.0 / current.estimated() ), current.lastDecreaseNanos() );
+            } else
+                return;
+
+            if( limit.compareAndSet( current, next ) ) {
+                if( next.applied() > current.applied() )
+                    semaphore.release( next.applied() - current.applied() );
+                else if( next.applied() < current.applied() )
+                    semaphore.reducePermits( current.applied() - next.applied() );
+                return;
+            }
+        }
+    }
+
+    /**
+     * Semaphore.reducePermits is protected, this just opens it up.
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        ResizableSemaphore( int permits ) {
+            super( permits );
+        }
+
+        @Override
+        protected void reducePermits( int reduction ) {
+            super.reducePermits( reduction );
+        }
+    }
+}
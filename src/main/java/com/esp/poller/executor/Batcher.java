@@ -0,0 +1,131 @@
+package com.esp.poller.executor;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Collects items into batches by size or linger. A batch goes out when it reaches maxBatchSize, or when its first item has waited maxLinger,
+ * whichever comes first. A full batch is sent on the thread that added the last item, a lingering one on the linger timer's thread, so send should
+ * only hand the batch off, not do the work itself.
+ * <p>
+ * Every batch taken starts a new generation, so a linger timer that fires after its batch already filled up and went out does nothing.
+ *
+ * @author esp
+ */
+public class Batcher<T> implements AutoCloseable {
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final Consumer<List<T>> send;
+    private final ScheduledExecutorService lingerTimer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock
+    private List<T> pending = new ArrayList<>();
+    private long generation;
+    private boolean closed;
+
+    /**
+     * @param name the name of the linger timer's thread
+     */
+    public Batcher( String name, int maxBatchSize, Duration maxLinger, Consumer<List<T>> send ) {
+        if( maxBatchSize < 1 )
+            throw new IllegalArgumentException( "maxBatchSize must be at least 1" );
+
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = maxLinger.toNanos();
+        this.send = send;
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, name );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Adds the item to the pending batch, and sends the batch if that filled it up.
+     *
+     * @return false if the batcher is closed and the item wasn't added
+     */
+    public boolean add( T item ) {
+        List<T> full = null;
+        lock.lock();
+        try {
+            if( closed )
+                return false;
+            pending.add( item );
+            if( pending.size() >= maxBatchSize ) {
+                full = takePending();
+            } else if( pending.size() == 1 ) {
+                long batch = generation;
+                lingerTimer.schedule( () -> flushIfStill( batch ), maxLingerNanos, TimeUnit.NANOSECONDS );
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if( null != full )
+            send.accept( full );
+        return true;
+    }
+
+    /**
+     * Sends what is pending now, without waiting for the batch to fill up or linger.
+     */
+    public void flush() {
+        List<T> batch;
+        lock.lock();
+        try {
+            batch = pending.isEmpty() ? null : takePending();
+        } finally {
+            lock.unlock();
+        }
+
+        if( null != batch )
+            send.accept( batch );
+    }
+
+    /**
+     * Sends what is pending and stops taking items.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if( closed )
+                return;
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        flush();
+        lingerTimer.shutdown();
+    }
+
+    private void flushIfStill( long batch ) {
+        List<T> lingering = null;
+        lock.lock();
+        try {
+            // the batch may have filled up and gone out already
+            if( batch == generation && !pending.isEmpty() )
+                lingering = takePending();
+        } finally {
+            lock.unlock();
+        }
+
+        if( null != lingering )
+            send.accept( lingering );
+    }
+
+    private List<T> takePending() {
+        List<T> batch = pending;
+        pending = new ArrayList<>( maxBatchSize );
+        generation++;
+        return batch;
+    }
+}
@@ -0,0 +1,49 @@
+package com.esp.poller.executor;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one timer thread behind all task and scope deadlines. What it runs only interrupts threads and hands the completing of futures to a virtual
+ * thread, since whatever is chained onto a future runs on the thread that completes it, and one slow continuation would hold up every deadline
+ * behind it. That way one thread keeps up.
+ * Cancelled timers are taken off the queue straight away, because nearly every deadline is cancelled when its task finishes in time.
+ *
+ * @author esp
+ */
+final class DeadlineTimer {
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor( 1, TimerThread::new );
+
+    static {
+        TIMER.setRemoveOnCancelPolicy( true );
+    }
+
+    private static final class TimerThread extends Thread {
+        TimerThread( Runnable r ) {
+            super( r, "task-deadlines" );
+            setDaemon( true );
+        }
+    }
+
+    private DeadlineTimer() {
+    }
+
+    static ScheduledFuture<?> schedule( Runnable action, long delayNanos ) {
+        return TIMER.schedule( action, Math.max( 0, delayNanos ), TimeUnit.NANOSECONDS );
+    }
+
+    static boolean isTimerThread() {
+        return Thread.currentThread() instanceof TimerThread;
+    }
+
+    /**
+     * Runs the completion of a future on a virtual thread when called on the timer thread, and right here otherwise.
+     */
+    static void completeOffTimer( Runnable completion ) {
+        if( isTimerThread() )
+            Thread.startVirtualThread( completion );
+        else
+            completion.run();
+    }
+}
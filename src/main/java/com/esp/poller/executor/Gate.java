@@ -0,0 +1,57 @@
+package com.esp.poller.executor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The gate in front of the virtual threads. A task has to acquire a permit before it runs and releases it when it's done.
+ * The plain implementation is a fixed size Semaphore ({@link SemaphoreGate}). Other implementations can move the limit around while running
+ * ({@link AdaptiveGate}), which is why the executor reports every completed task back to the gate through onSample. A gate can also decide who gets
+ * the next permit by the task's SchedulingKey ({@link WeightedFairGate}), the others ignore the key.
+ *
+ * @author esp
+ */
+public interface Gate {
+    void acquire() throws InterruptedException;
+
+    /**
+     * Like acquire, but gives up after the timeout.
+     *
+     * @return true if a permit was acquired, false if the timeout ran out first
+     */
+    boolean tryAcquire( long timeout, TimeUnit unit ) throws InterruptedException;
+
+    /**
+     * Like acquire, for a task with a priority class and a fairness key. Only a fair gate looks at the key.
+     */
+    default void acquire( SchedulingKey key ) throws InterruptedException {
+        acquire();
+    }
+
+    /**
+     * Like tryAcquire, for a task with a priority class and a fairness key. Only a fair gate looks at the key.
+     */
+    default boolean tryAcquire( SchedulingKey key, long timeout, TimeUnit unit ) throws InterruptedException {
+        return tryAcquire( timeout, unit );
+    }
+
+    void release();
+
+    /**
+     * Permits that can be acquired right now without blocking. Never negative, even while an adaptive gate is shrinking below what's in flight.
+     */
+    int availablePermits();
+
+    /**
+     * The current concurrency limit of the gate.
+     */
+    int limit();
+
+    /**
+     * Called by the executor once for every task that held a permit, before the permit is released.
+     *
+     * @param latencyNanos how long the task held the permit
+     * @param overloaded   true when the task failed in a way that says the downstream is overloaded (a RetryableException)
+     */
+    default void onSample( long latencyNanos, boolean overloaded ) {
+    }
+}
@@ -0,0 +1,22 @@
+package com.esp.poller.executor;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One bulkhead of the executor: a gate and the active and queued counts of the tasks going through it.
+ * The counts are LongAdders. They're updated by every task and only read now and then, which is exactly the case LongAdder spreads over cells to avoid
+ * every task contending on one AtomicLong.
+ *
+ * @author esp
+ */
+class GatePartition {
+    final String name;
+    final Gate gate;
+    final LongAdder activeCount = new LongAdder();
+    final LongAdder queuedCount = new LongAdder();
+
+    GatePartition( String name, Gate gate ) {
+        this.name = name;
+        this.gate = gate;
+    }
+}
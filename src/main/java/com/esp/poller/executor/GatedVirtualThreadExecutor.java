@@ -1,109 +1,490 @@
 package com.esp.poller.executor;
 
+import com.esp.poller.exception.RetryableException;
+import com.esp.poller.exception.TaskTimeoutException;
+import com.esp.poller.jfr.GateAcquireEvent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.IntSupplier;
 
 /**
  * Gated virtual thread executor.
  * This uses a 'new virtual thread per task' executor service, instead of an old-fashioned thread pool. This is a newer concept in Java 21, given how light
  * virtual threads are to create and destroy.
- * It uses a Semaphore to gate the number of concurrent tasks. This is a simple way to control the number of concurrent tasks. Semaphores aren't new.
- * It also uses AtomicLong to track the number of active and queued tasks. This is a simple way to track the number of active and queued tasks.
- * It has two methods to submit work: supplyAsync and runAsync. These are similar to the ones in ExecutorService.
+ * It uses a gate of permits to limit the number of concurrent tasks. The gate is behind the {@link Gate} interface, so the limit can either be fixed
+ * ({@link StripedGate}, the default, or a plain Semaphore in {@link SemaphoreGate}) or follow the downstream ({@link AdaptiveGate}). Every task
+ * reports how long it held its permit, and whether it failed as retryable, back to the gate.
+ * It also uses LongAdders to track the number of active and queued tasks, which stay cheap with lots of virtual threads updating them at once.
+ * It has two methods to submit work: supplyAsync and runAsync. These are similar to the ones in ExecutorService. trySupplyAsync only submits the task
+ * if a permit is free right now, for optional work like hedges.
+ * It also has supplyAllAsync to submit a group of tasks (an event's tasks) and get a single future for all of them. Only the tasks take permits, the
+ * aggregation of the group doesn't.
+ * <p>
+ * The gate can be split into named partitions (bulkheads), one per downstream, each with its own gate and counters. A task picks its partition by
+ * implementing {@link Partitioned}. Tasks for a partition that was never added, and tasks that aren't Partitioned, go through the default partition,
+ * which is the gate given to the constructor. That way a slow EP can only use up the EP permits and DP keeps its throughput.
+ * <p>
+ * Tasks can be given a time budget and a {@link TaskScope}. A task that runs out of time, or is cancelled, is interrupted and gives its permit back
+ * straight away, so a hung downstream call can't hold on to a permit forever. Cancelling the future returned by supplyAsync interrupts the task.
+ * <p>
+ * Tasks can be submitted with a {@link SchedulingKey}, a priority class and a fairness key, which a {@link WeightedFairGate} uses to decide who gets
+ * the next permit. The other gates ignore it.
+ * <p>
+ * {@link TaskObserver}s can be added to see how long each task waited for its permit, by priority class, and how long it ran with it. Waits for a
+ * permit are also recorded in JFR as GateAcquireEvents.
+ * <p>
+ * A poller can wait for capacity with awaitCapacity instead of polling on a fixed schedule. Waiters are woken up whenever a permit is released, in any
+ * partition, and check their own idea of capacity again. Nothing is done on release while nobody is waiting.
  *
  * @author esp
  */
 public class GatedVirtualThreadExecutor {
+    public static final String DEFAULT_PARTITION = "default";
+
     private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
-    private final Semaphore gate;
-    private final AtomicLong activeCount = new AtomicLong( 0 );
-    private final AtomicLong queuedCount = new AtomicLong( 0 );
+    private final Map<String, GatePartition> partitions = new ConcurrentHashMap<>();
+    private final GatePartition defaultPartition;
+    private final Set<Thread> capacityWaiters = ConcurrentHashMap.newKeySet();
+    // copied on write, so the hot path can loop over it without allocating an iterator
+    private volatile TaskObserver[] observers = new TaskObserver[0];
 
     public GatedVirtualThreadExecutor( int maxConcurrent ) {
-        this.gate = new Semaphore( maxConcurrent );
+        this( new StripedGate( maxConcurrent ) );
+    }
+
+    public GatedVirtualThreadExecutor( Gate gate ) {
+        this.defaultPartition = new GatePartition( DEFAULT_PARTITION, gate );
+        partitions.put( DEFAULT_PARTITION, defaultPartition );
+    }
+
+    /**
+     * Adds a named partition with its own gate. Returns this so partitions can be chained onto the constructor.
+     */
+    public GatedVirtualThreadExecutor addPartition( String name, Gate gate ) {
+        if( null != partitions.putIfAbsent( name, new GatePartition( name, gate ) ) )
+            throw new IllegalArgumentException( "Partition already exists: " + name );
+        return this;
+    }
+
+    public synchronized void addObserver( TaskObserver observer ) {
+        TaskObserver[] current = observers;
+        TaskObserver[] updated = Arrays.copyOf( current, current.length + 1 );
+        updated[current.length] = observer;
+        observers = updated;
     }
 
     public <T> CompletableFuture<T> supplyAsync( Callable<T> task ) {
-        queuedCount.incrementAndGet();
-        AtomicBoolean wasDecremented = new AtomicBoolean( false );
+        return supplyAsync( partitionOf( task ), task );
+    }
 
-        return CompletableFuture.supplyAsync( () -> {
-            try {
-//                System.out.println( "Queued count in: " + queuedCount.get() + ". Active count in: " + activeCount.get() );
-                gate.acquire(); // Block if too many active
-                queuedCount.decrementAndGet();
-                wasDecremented.set( true );
-                activeCount.incrementAndGet();
+    public <T> CompletableFuture<T> supplyAsync( String partition, Callable<T> task ) {
+        return supplyAsync( partition, task, TaskScope.NONE, null );
+    }
 
-                try {
-                    return task.call();
-                } finally {
-                    activeCount.decrementAndGet();
-                    gate.release();
-//                    System.out.println( "Queued count: " + queuedCount.get() + ". Active count: " + activeCount.get() );
-                }
-            } catch( InterruptedException e ) {
-                Thread.currentThread().interrupt();
-                if( !wasDecremented.get() )
-                    queuedCount.decrementAndGet();
-                throw new CompletionException( "Task was interrupted", e );
-            } catch( Exception e ) {
-                if( !wasDecremented.get() )
-                    queuedCount.decrementAndGet();
-                throw new CompletionException( "Task failed", e );
-            }
-        }, executor );
+    /**
+     * Submits a task with a time budget, within a scope. The budget starts now, so the wait at the gate counts against it, and it never runs past the
+     * deadline of the scope. A task whose time is up, waiting or running, is interrupted, its permit is released and its future fails with a
+     * TaskTimeoutException, which is retryable.
+     * <p>
+     * Cancelling the returned future, or the scope, does the same with a CancellationException. Either way the permit is released right away, even
+     * if the task ignores the interrupt and keeps running for a while.
+     *
+     * @param timeBudget the task's own budget, or null to only be bounded by the scope
+     */
+    public <T> CompletableFuture<T> supplyAsync( String partition, Callable<T> task, TaskScope scope, Duration timeBudget ) {
+        return supplyAsync( partition, task, scope, timeBudget, SchedulingKey.DEFAULT );
+    }
+
+    /**
+     * Like supplyAsync with a time budget and scope, with the key the task is scheduled by at a fair gate.
+     */
+    public <T> CompletableFuture<T> supplyAsync( String partition, Callable<T> task, TaskScope scope, Duration timeBudget, SchedulingKey key ) {
+        GatePartition p = partition( partition );
+        long scopeNanos = scope.remainingNanos();
+        long budgetNanos = null == timeBudget ? scopeNanos : Math.min( scopeNanos, timeBudget.toNanos() );
+
+        p.queuedCount.increment();
+        return submit( new GatedTask<>( p, partition, task, scope, budgetNanos, false, key ), budgetNanos < scopeNanos );
+    }
+
+    /**
+     * Like supplyAsync, but only if a permit of the partition is free right now. The permit is taken on the calling thread, without waiting, so the
+     * task never queues at the gate in front of tasks that were submitted with supplyAsync. Meant for optional work, like a hedged second attempt.
+     *
+     * @return the task's future, or null if no permit was free and the task wasn't submitted
+     */
+    public <T> CompletableFuture<T> trySupplyAsync( String partition, Callable<T> task, TaskScope scope, Duration timeBudget ) {
+        GatePartition p = partition( partition );
+        long scopeNanos = scope.remainingNanos();
+        long budgetNanos = null == timeBudget ? scopeNanos : Math.min( scopeNanos, timeBudget.toNanos() );
+        try {
+            if( scope.isCancelled() || !p.gate.tryAcquire( 0, TimeUnit.NANOSECONDS ) )
+                return null;
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        p.activeCount.increment();
+        return submit( new GatedTask<>( p, partition, task, scope, budgetNanos, true, SchedulingKey.DEFAULT ), budgetNanos < scopeNanos );
+    }
+
+    /**
+     * Only a task whose own budget ends before the deadline of its scope gets a timer. Otherwise the scope's timer cancels it, which is one timer for
+     * all of an event's tasks instead of one each, and the task turns that cancel into a timeout.
+     */
+    private <T> GatedTask<T> submit( GatedTask<T> gated, boolean ownDeadline ) {
+        if( ownDeadline )
+            gated.timer = DeadlineTimer.schedule( gated::timeout, gated.deadline - System.nanoTime() );
+        gated.scope.register( gated );
+        executor.execute( gated );
+        return gated;
+    }
+
+    /**
+     * Submits every task through the gate and returns a future that completes with all of their (handled) results, in the order of the tasks.
+     * Only the tasks take a permit. The returned future is completed as a continuation by whichever task finishes last, after it has released its
+     * permit, so nothing sits on a permit waiting for the group. Anything chained onto the returned future runs without a permit as well.
+     *
+     * @param tasks   the tasks to run through the gate
+     * @param handler applied to each task's outcome, so one failure doesn't fail the group
+     */
+    public <T> CompletableFuture<List<T>> supplyAllAsync( List<? extends Callable<T>> tasks, BiFunction<? super T, Throwable, ? extends T> handler ) {
+        List<CompletableFuture<T>> futures = tasks.stream()
+                                                  .map( task -> supplyAsync( task ).<T>handle( handler ) )
+                                                  .toList();
+
+        return CompletableFuture.allOf( futures.toArray( CompletableFuture[]::new ) )
+                                .thenApply( v -> futures.stream().map( CompletableFuture::join ).toList() );
     }
 
     public CompletableFuture<Void> runAsync( Runnable task ) {
-        queuedCount.incrementAndGet();
-        AtomicBoolean wasDecremented = new AtomicBoolean( false );
+        return runAsync( partitionOf( task ), task );
+    }
+
+    public CompletableFuture<Void> runAsync( String partition, Runnable task ) {
+        return supplyAsync( partition, Executors.callable( task, (Void) null ) );
+    }
+
+    /**
+     * A task's future, and the task itself as it runs on its virtual thread. Whoever settles the task first decides the outcome: the task when it
+     * returns or throws, the deadline timer (its own or its scope's) when time is up, or cancel. A timeout or cancel gives the permit back before it
+     * completes the future, without waiting for the task to notice its interrupt, so anything chained onto the future already sees the permit free.
+     * <p>
+     * Where the task is at lives in a single state, changed with a CAS: QUEUED while it waits for its permit, RUNNING while it holds it, DONE once it's
+     * settled. Whoever moves it to DONE gives back what the state it left held, a place in the queue or the permit, so that only ever happens once.
+     */
+    final class GatedTask<T> extends CompletableFuture<T> implements Runnable {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final VarHandle STATE;
+
+        static {
+            try {
+                STATE = MethodHandles.lookup().findVarHandle( GatedTask.class, "state", int.class );
+            } catch( ReflectiveOperationException e ) {
+                throw new ExceptionInInitializerError( e );
+            }
+        }
+
+        private final GatePartition p;
+        // the partition the task was submitted for, which is what the observers see, even when it shares the default gate
+        private final String partition;
+        private final Callable<T> task;
+        private final TaskScope scope;
+        private final SchedulingKey key;
+        private final long submitted = System.nanoTime();
+        private final long deadline;
+        private final boolean timed;
+        private volatile int state;
+        private volatile Thread worker;
+        private volatile ScheduledFuture<?> timer;
+        // written before the state moves to RUNNING, read after it moves on from there
+        private long started;
+
+        /**
+         * @param preAcquired the permit was taken by trySupplyAsync before the task was submitted
+         */
+        GatedTask( GatePartition p, String partition, Callable<T> task, TaskScope scope, long budgetNanos, boolean preAcquired, SchedulingKey key ) {
+            this.p = p;
+            this.partition = partition;
+            this.task = task;
+            this.scope = scope;
+            this.key = key;
+            this.timed = budgetNanos != Long.MAX_VALUE;
+            this.deadline = timed ? submitted + budgetNanos : 0;
+            this.started = submitted;
+            this.state = preAcquired ? RUNNING : QUEUED;
+        }
 
-        return CompletableFuture.runAsync( () -> {
+        @Override
+        public void run() {
+            worker = Thread.currentThread();
             try {
-                gate.acquire(); // Block if too many active
-                queuedCount.decrementAndGet();
-                wasDecremented.set( true );
-                activeCount.incrementAndGet();
+                int initial = state;
+                if( initial == DONE )
+                    return; // cancelled before it started
 
+                if( initial == QUEUED ) {
+                    if( !acquire() ) {
+                        timeout();
+                        return;
+                    }
+                    started = System.nanoTime();
+                    p.activeCount.increment();
+                    if( !STATE.compareAndSet( this, QUEUED, RUNNING ) ) {
+                        // cancelled or timed out while we were getting the permit, it was never counted as ours
+                        p.activeCount.decrement();
+                        returnPermit();
+                        return;
+                    }
+                    p.queuedCount.decrement();
+                }
+                // the scope may be cancelled while its tasks are handed the permits the cancelled ones gave back
+                if( scope.isCancelled() ) {
+                    cancel( true );
+                    return;
+                }
+
+                TaskObserver[] observers = GatedVirtualThreadExecutor.this.observers;
+                for( TaskObserver observer : observers )
+                    observer.onAcquired( partition, key.priorityClass(), started - submitted );
+                T result = null;
+                Throwable failure = null;
                 try {
-                    task.run();
+                    result = task.call();
+                } catch( Exception e ) {
+                    failure = e;
                 } finally {
-                    activeCount.decrementAndGet();
-                    gate.release();
+                    long runNanos = System.nanoTime() - started;
+                    for( TaskObserver observer : observers )
+                        observer.onCompleted( partition, runNanos, failure );
                 }
+                finish( result, failure );
             } catch( InterruptedException e ) {
-                Thread.currentThread().interrupt();
-                if( !wasDecremented.get() )
-                    queuedCount.decrementAndGet();
-                throw new CompletionException( "Task was interrupted", e );
-            } catch( Exception e ) {
-                if( !wasDecremented.get() )
-                    queuedCount.decrementAndGet();
-                throw new CompletionException( "Task failed", e );
+                // when we were interrupted by a timeout or cancel the task is already settled and this does nothing
+                finish( null, e );
+            } catch( RuntimeException | Error e ) {
+                finish( null, e );
+                throw e;
+            } finally {
+                worker = null;
+                ScheduledFuture<?> deadlineTimer = timer;
+                if( null != deadlineTimer )
+                    deadlineTimer.cancel( false );
+                scope.unregister( this );
+            }
+        }
+
+        private void finish( T result, Throwable failure ) {
+            if( !settle( true, failure instanceof RetryableException ) )
+                return;
+            if( null == failure )
+                complete( result );
+            else
+                completeExceptionally( new CompletionException( failure instanceof InterruptedException ? "Task was interrupted" : "Task failed", failure ) );
+        }
+
+        private boolean acquire() throws InterruptedException {
+            GateAcquireEvent acquireEvent = new GateAcquireEvent();
+            acquireEvent.begin();
+            boolean acquired = true;
+            if( timed )
+                acquired = p.gate.tryAcquire( key, deadline - System.nanoTime(), TimeUnit.NANOSECONDS );
+            else
+                p.gate.acquire( key ); // Block if too many active
+            acquireEvent.end();
+            if( acquireEvent.shouldCommit() ) {
+                acquireEvent.partition = p.name;
+                acquireEvent.availablePermits = p.gate.availablePermits();
+                acquireEvent.commit();
+            }
+            return acquired;
+        }
+
+        /**
+         * Settles the task and interrupts it where we are, which may be the timer thread, but completes the future off it.
+         */
+        boolean timeout() {
+            if( !abandon( true ) )
+                return false;
+            DeadlineTimer.completeOffTimer(
+                    () -> completeExceptionally( new CompletionException( new TaskTimeoutException( "Task in partition " + p.name + " ran out of time" ) ) ) );
+            return true;
+        }
+
+        @Override
+        public boolean cancel( boolean mayInterruptIfRunning ) {
+            // without a timer of its own the task is cancelled by its scope when the deadline passes, which is the task running out of time
+            if( scope.remainingNanos() <= 0 )
+                return timeout();
+            if( !abandon( false ) )
+                return false;
+            // only we complete the future once the task is settled, so the cancel can't lose to anything, even when it happens a little later
+            DeadlineTimer.completeOffTimer( () -> super.cancel( mayInterruptIfRunning ) );
+            return true;
+        }
+
+        /**
+         * @param timedOut the task ran out of time, which the gate takes as a sign of overload. A cancelled task was given up on for reasons of its
+         *                 own, like a hedge that lost, and how long it ran says nothing about the downstream, so the gate doesn't hear about it.
+         */
+        private boolean abandon( boolean timedOut ) {
+            if( !settle( timedOut, timedOut ) )
+                return false;
+            Thread current = worker;
+            if( null != current && current != Thread.currentThread() )
+                current.interrupt();
+            return true;
+        }
+
+        /**
+         * Moves the task to DONE and gives back its place in the queue or its permit. Only the first caller gets true.
+         *
+         * @param sample whether how long the task held its permit is a sample for the gate
+         */
+        private boolean settle( boolean sample, boolean overloaded ) {
+            while( true ) {
+                int current = state;
+                if( current == DONE )
+                    return false;
+                if( STATE.compareAndSet( this, current, DONE ) ) {
+                    if( current == QUEUED )
+                        p.queuedCount.decrement();
+                    else {
+                        p.activeCount.decrement();
+                        if( sample )
+                            p.gate.onSample( System.nanoTime() - started, overloaded );
+                        returnPermit();
+                    }
+                    return true;
+                }
             }
-        }, executor );
+        }
+
+        private void returnPermit() {
+            p.gate.release();
+            if( !capacityWaiters.isEmpty() )
+                capacityWaiters.forEach( LockSupport::unpark );
+        }
+    }
+
+    /**
+     * Blocks until capacity reaches the threshold or the timeout runs out. Capacity is checked again every time a task releases its permit.
+     *
+     * @param capacity  how much capacity there is right now, for example the available permits of the partitions the caller cares about
+     * @param threshold the capacity to wait for
+     * @return true if the threshold was reached, false on timeout
+     */
+    public boolean awaitCapacity( IntSupplier capacity, int threshold, long timeout, TimeUnit unit ) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
+        Thread current = Thread.currentThread();
+        // register before checking, so a release between the check and the park still wakes us up
+        capacityWaiters.add( current );
+        try {
+            while( capacity.getAsInt() < threshold ) {
+                long remaining = deadline - System.nanoTime();
+                if( remaining <= 0 )
+                    return false;
+                LockSupport.parkNanos( this, remaining );
+                if( Thread.interrupted() )
+                    throw new InterruptedException();
+            }
+            return true;
+        } finally {
+            capacityWaiters.remove( current );
+        }
+    }
+
+    /**
+     * The names of all partitions, including the default one.
+     */
+    public Set<String> getPartitions() {
+        return Set.copyOf( partitions.keySet() );
     }
 
+    private static String partitionOf( Object task ) {
+        return task instanceof Partitioned partitioned ? partitioned.partition() : DEFAULT_PARTITION;
+    }
+
+    private GatePartition partition( String name ) {
+        return partitions.getOrDefault( name, defaultPartition );
+    }
+
+    /**
+     * Active tasks across all partitions.
+     */
     public long getActiveCount() {
-        return activeCount.get();
+        return partitions.values().stream().mapToLong( p -> p.activeCount.sum() ).sum();
     }
 
+    public long getActiveCount( String partition ) {
+        return partition( partition ).activeCount.sum();
+    }
+
+    /**
+     * Queued tasks across all partitions.
+     */
     public long getQueuedCount() {
-        return queuedCount.get();
+        return partitions.values().stream().mapToLong( p -> p.queuedCount.sum() ).sum();
+    }
+
+    public long getQueuedCount( String partition ) {
+        return partition( partition ).queuedCount.sum();
     }
 
+    /**
+     * Available permits of the default partition.
+     */
     public int getAvailablePermits() {
-        return gate.availablePermits();
+        return defaultPartition.gate.availablePermits();
+    }
+
+    public int getAvailablePermits( String partition ) {
+        return partition( partition ).gate.availablePermits();
+    }
+
+    /**
+     * Available permits of the tightest of the given partitions.
+     */
+    public int getAvailablePermits( Collection<String> partitions ) {
+        return partitions.stream().mapToInt( this::getAvailablePermits ).min().orElse( getAvailablePermits() );
+    }
+
+    /**
+     * The current limit of the default partition. Fixed for a SemaphoreGate, moves over time for an AdaptiveGate.
+     */
+    public int getLimit() {
+        return defaultPartition.gate.limit();
+    }
+
+    public int getLimit( String partition ) {
+        return partition( partition ).gate.limit();
     }
 
     public boolean hasCapacity() {
-        return gate.availablePermits() > 0;
+        return getAvailablePermits() > 0;
+    }
+
+    public boolean hasCapacity( String partition ) {
+        return getAvailablePermits( partition ) > 0;
     }
 }
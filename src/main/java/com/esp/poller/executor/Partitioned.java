@@ -0,0 +1,13 @@
+package com.esp.poller.executor;
+
+/**
+ * Implemented by tasks that want to run in a named partition (bulkhead) of the {@link GatedVirtualThreadExecutor} instead of the default one.
+ * Each partition has its own gate and counters, so a slow downstream can only use up its own permits.
+ *
+ * @author esp
+ */
+public interface Partitioned {
+    default String partition() {
+        return GatedVirtualThreadExecutor.DEFAULT_PARTITION;
+    }
+}
@@ -0,0 +1,23 @@
+package com.esp.poller.executor;
+
+/**
+ * A class of tasks at a WeightedFairGate. While tasks of several classes are waiting, each class gets permits in proportion to its weight, so with
+ * the defaults an interactive task waits about half as long as a standard one and an eighth as long as bulk, but bulk still gets a share and is never
+ * starved. Gates that aren't fair ignore the class.
+ *
+ * @param name   shows up in the metrics
+ * @param weight the permits the class gets in each round, relative to the other classes
+ * @author esp
+ */
+public record PriorityClass(String name, int weight) {
+    public static final PriorityClass INTERACTIVE = new PriorityClass( "interactive", 8 );
+    public static final PriorityClass STANDARD = new PriorityClass( "standard", 4 );
+    public static final PriorityClass BULK = new PriorityClass( "bulk", 1 );
+
+    public PriorityClass {
+        if( null == name || name.isBlank() )
+            throw new IllegalArgumentException( "A priority class needs a name" );
+        if( weight < 1 )
+            throw new IllegalArgumentException( "weight must be at least 1" );
+    }
+}
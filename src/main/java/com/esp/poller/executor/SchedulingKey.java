@@ -0,0 +1,17 @@
+package com.esp.poller.executor;
+
+/**
+ * What a task is scheduled by at a WeightedFairGate: its priority class, and within the class its fairness key, e.g. the event or tenant the task is
+ * for. Tasks with the same key queue behind each other, tasks with different keys take turns.
+ *
+ * @param fairnessKey compared with equals, null for tasks that don't belong to anything in particular, they share one queue
+ * @author esp
+ */
+public record SchedulingKey(PriorityClass priorityClass, Object fairnessKey) {
+    public static final SchedulingKey DEFAULT = new SchedulingKey( PriorityClass.STANDARD, null );
+
+    public SchedulingKey {
+        if( null == priorityClass )
+            throw new IllegalArgumentException( "A scheduling key needs a priority class" );
+    }
+}
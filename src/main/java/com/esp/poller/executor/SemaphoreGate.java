@@ -0,0 +1,44 @@
+package com.esp.poller.executor;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed size gate. This is the original behaviour of the executor, a Semaphore with maxConcurrent permits.
+ *
+ * @author esp
+ */
+public class SemaphoreGate implements Gate {
+    private final Semaphore semaphore;
+    private final int maxConcurrent;
+
+    public SemaphoreGate( int maxConcurrent ) {
+        this.semaphore = new Semaphore( maxConcurrent );
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    @Override
+    public void acquire() throws InterruptedException {
+        semaphore.acquire();
+    }
+
+    @Override
+    public boolean tryAcquire( long timeout, TimeUnit unit ) throws InterruptedException {
+        return semaphore.tryAcquire( timeout, unit );
+    }
+
+    @Override
+    public void release() {
+        semaphore.release();
+    }
+
+    @Override
+    public int availablePermits() {
+        return semaphore.availablePermits();
+    }
+
+    @Override
+    public int limit() {
+        return maxConcurrent;
+    }
+}
@@ -0,0 +1,156 @@
+package com.esp.poller.executor;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed size gate with the permits spread over several stripes, instead of the one counter a Semaphore has.
+ * With tens of thousands of virtual threads acquiring and releasing, every one of them hitting the same cache line shows up as contention. Here a
+ * thread starts at its own stripe (picked from its thread id) and only looks at the others when its own is empty. Each stripe sits on its own cache
+ * line, so threads on different stripes don't get in each other's way.
+ * <p>
+ * Acquiring and releasing while there are permits left doesn't allocate anything. Only a thread that has to wait allocates a Waiter, which goes on a
+ * queue of parked threads. A release puts its permit back on its stripe and, if anyone is waiting, wakes the first waiter up to compete for it.
+ * Waiters check the stripes again after they're queued, so a permit released in between is never missed.
+ * <p>
+ * Like a non-fair Semaphore, a thread that arrives while permits are free can get one ahead of threads that are already waiting. The permit is not
+ * handed directly to the waiter it wakes up, because it would then sit unused until that thread gets scheduled.
+ *
+ * @author esp
+ */
+public class StripedGate implements Gate {
+    // 32 ints is 128 bytes, two cache lines on most hardware, so adjacent stripes never share one even with adjacent line prefetch
+    private static final int PADDING = 32;
+
+    private final int maxConcurrent;
+    private final int mask;
+    private final AtomicIntegerArray stripes;
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    public StripedGate( int maxConcurrent ) {
+        this( maxConcurrent, Runtime.getRuntime().availableProcessors() );
+    }
+
+    public StripedGate( int maxConcurrent, int concurrencyLevel ) {
+        int stripeCount = Integer.highestOneBit( Math.max( 1, Math.min( concurrencyLevel, maxConcurrent ) ) * 2 - 1 );
+        this.maxConcurrent = maxConcurrent;
+        this.mask = stripeCount - 1;
+        this.stripes = new AtomicIntegerArray( stripeCount * PADDING );
+        for( int i = 0; i < stripeCount; i++ )
+            stripes.set( i * PADDING, maxConcurrent / stripeCount + (i < maxConcurrent % stripeCount ? 1 : 0) );
+    }
+
+    @Override
+    public void acquire() throws InterruptedException {
+        acquire( false, 0 );
+    }
+
+    @Override
+    public boolean tryAcquire( long timeout, TimeUnit unit ) throws InterruptedException {
+        return acquire( true, System.nanoTime() + unit.toNanos( timeout ) );
+    }
+
+    private boolean acquire( boolean timed, long deadline ) throws InterruptedException {
+        if( Thread.interrupted() )
+            throw new InterruptedException();
+        if( tryAcquireFromStripes() )
+            return true;
+        if( timed && deadline - System.nanoTime() <= 0 )
+            return false;
+
+        Waiter waiter = new Waiter( Thread.currentThread() );
+        while( true ) {
+            waiter.set( Waiter.WAITING );
+            waiters.add( waiter );
+            // a permit may have been released before we were queued, its releaser wouldn't have seen us
+            if( tryAcquireFromStripes() ) {
+                if( !waiter.compareAndSet( Waiter.WAITING, Waiter.DONE ) )
+                    signalNext(); // we were signalled as well, pass it on to whoever is next
+                return true;
+            }
+
+            while( waiter.get() == Waiter.WAITING ) {
+                if( timed ) {
+                    long remaining = deadline - System.nanoTime();
+                    if( remaining <= 0 ) {
+                        if( !waiter.compareAndSet( Waiter.WAITING, Waiter.DONE ) )
+                            signalNext();
+                        return false;
+                    }
+                    LockSupport.parkNanos( this, remaining );
+                } else {
+                    LockSupport.park( this );
+                }
+                if( Thread.interrupted() ) {
+                    if( !waiter.compareAndSet( Waiter.WAITING, Waiter.DONE ) )
+                        signalNext();
+                    throw new InterruptedException();
+                }
+            }
+            // signalled, go round and compete for the permit
+        }
+    }
+
+    @Override
+    public void release() {
+        stripes.getAndIncrement( home() * PADDING );
+        // Whoever queued before our increment is seen here, whoever queued after it finds the permit on their own second look at the stripes.
+        signalNext();
+    }
+
+    @Override
+    public int availablePermits() {
+        int available = 0;
+        for( int i = 0; i <= mask; i++ )
+            available += stripes.get( i * PADDING );
+        return available;
+    }
+
+    @Override
+    public int limit() {
+        return maxConcurrent;
+    }
+
+    private boolean tryAcquireFromStripes() {
+        int home = home();
+        for( int i = 0; i <= mask; i++ ) {
+            int index = ((home + i) & mask) * PADDING;
+            int permits;
+            while( (permits = stripes.get( index )) > 0 ) {
+                if( stripes.compareAndSet( index, permits, permits - 1 ) )
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void signalNext() {
+        Waiter waiter;
+        while( !waiters.isEmpty() && null != (waiter = waiters.poll()) ) {
+            if( waiter.compareAndSet( Waiter.WAITING, Waiter.SIGNALLED ) ) {
+                LockSupport.unpark( waiter.thread );
+                return;
+            }
+        }
+    }
+
+    private int home() {
+        return (int) Thread.currentThread().threadId() & mask;
+    }
+
+    private static final class Waiter extends AtomicInteger {
+        static final int WAITING = 0;
+        static final int SIGNALLED = 1;
+        static final int DONE = 2;
+
+        final Thread thread;
+
+        Waiter( Thread thread ) {
+            this.thread = thread;
+        }
+    }
+}
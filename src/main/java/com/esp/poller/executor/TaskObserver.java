@@ -0,0 +1,30 @@
+package com.esp.poller.executor;
+
+/**
+ * Gets told about every task that goes through the gate, for metrics and profiling. Observers are called on the task's own thread, on the hot path, so
+ * they must be quick and shouldn't allocate.
+ * <p>
+ * The partition they are given is the one the task was submitted for, e.g. dp or ep, not the gate it went through. Tasks of a partition without a
+ * gate of its own share the default gate, but still show up under their own partition.
+ *
+ * @author esp
+ */
+public interface TaskObserver {
+    /**
+     * The task got its permit.
+     *
+     * @param priorityClass the class the task was scheduled in, see SchedulingKey
+     * @param waitNanos     time from submission until the permit was acquired
+     */
+    default void onAcquired( String partition, PriorityClass priorityClass, long waitNanos ) {
+    }
+
+    /**
+     * The task finished and is about to release its permit.
+     *
+     * @param runNanos time the task ran while holding its permit
+     * @param failure  what the task threw, or null if it completed normally
+     */
+    default void onCompleted( String partition, long runNanos, Throwable failure ) {
+    }
+}
@@ -0,0 +1,134 @@
+package com.esp.poller.executor;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A group of tasks that share a deadline and are cancelled together, for example all the tasks of one event. Tasks submitted with a scope never run
+ * past its deadline. When the deadline passes, or cancel is called, every task still in the scope is cancelled, which interrupts it and releases its
+ * permit, whether it was still waiting at the gate or already running.
+ * <p>
+ * Close the scope once its tasks are done, that cancels its timer.
+ *
+ * @author esp
+ */
+public class TaskScope implements AutoCloseable {
+    /**
+     * No deadline, and nothing to cancel.
+     */
+    public static final TaskScope NONE = new TaskScope( false, Long.MAX_VALUE );
+
+    private final boolean tracked;
+    private final long deadlineNanos;
+    private final Set<Future<?>> children = ConcurrentHashMap.newKeySet();
+    private final ScheduledFuture<?> timer;
+    // cancels this scope when its parent is cancelled, null for a scope without a parent
+    private final CompletableFuture<Void> parentLink;
+    private final TaskScope parent;
+    private volatile boolean cancelled;
+
+    /**
+     * A scope without a deadline, that can still be cancelled.
+     */
+    public TaskScope() {
+        this( true, Long.MAX_VALUE );
+    }
+
+    /**
+     * A scope that is cancelled once the budget, starting now, is used up.
+     */
+    public TaskScope( Duration budget ) {
+        this( true, budget.toNanos() );
+    }
+
+    private TaskScope( boolean tracked, long budgetNanos ) {
+        this.tracked = tracked;
+        this.deadlineNanos = budgetNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + budgetNanos;
+        this.timer = tracked && budgetNanos != Long.MAX_VALUE ? DeadlineTimer.schedule( this::cancel, budgetNanos ) : null;
+        this.parentLink = null;
+        this.parent = null;
+    }
+
+    private TaskScope( TaskScope parent ) {
+        this.tracked = true;
+        this.deadlineNanos = parent.deadlineNanos;
+        // the parent's deadline cancels the parent, which cancels us, no need for a timer of our own
+        this.timer = null;
+        this.parent = parent;
+        this.parentLink = new CompletableFuture<>();
+        parentLink.whenComplete( ( v, e ) -> cancel() );
+        parent.register( parentLink );
+    }
+
+    /**
+     * A scope within this one, with the same deadline, that is cancelled with this one but can also be cancelled on its own. For example one of two
+     * attempts at the same task, so the slower attempt can be cancelled once the faster one is done. Close it when its tasks are done.
+     */
+    public TaskScope newChild() {
+        return new TaskScope( this );
+    }
+
+    /**
+     * Nanoseconds until the deadline, Long.MAX_VALUE when there is none. Zero or less once it has passed.
+     */
+    public long remainingNanos() {
+        return deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineNanos - System.nanoTime();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Adds a task to the scope. If the scope is already cancelled the task is cancelled right away.
+     */
+    public void register( Future<?> child ) {
+        if( !tracked )
+            return;
+        children.add( child );
+        // cancel may have run its loop before we were added
+        if( cancelled && children.remove( child ) )
+            child.cancel( true );
+    }
+
+    /**
+     * Takes a task that is done out of the scope.
+     */
+    public void unregister( Future<?> child ) {
+        if( tracked )
+            children.remove( child );
+    }
+
+    /**
+     * Cancels every task in the scope, and any that are registered later.
+     */
+    public void cancel() {
+        if( !tracked )
+            return;
+        cancelled = true;
+        boolean onTimer = DeadlineTimer.isTimerThread();
+        for( Future<?> child : children ) {
+            if( !children.remove( child ) )
+                continue;
+            // a gated task interrupts its thread right here and completes its future off the timer thread by itself, anything else completes when
+            // it's cancelled, so that is done off the timer thread as a whole
+            if( onTimer && !(child instanceof GatedVirtualThreadExecutor.GatedTask<?>) )
+                DeadlineTimer.completeOffTimer( () -> child.cancel( true ) );
+            else
+                child.cancel( true );
+        }
+    }
+
+    @Override
+    public void close() {
+        if( null != timer )
+            timer.cancel( false );
+        if( null != parent )
+            parent.unregister( parentLink );
+        children.clear();
+    }
+}
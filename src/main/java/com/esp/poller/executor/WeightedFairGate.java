@@ -0,0 +1,258 @@
+package com.esp.poller.executor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed size gate that hands out its permits fairly, instead of to whoever wins the race for them. With a plain gate an event with 500 tasks that
+ * arrives just before an event with 3 gets all of its tasks through first, and the small event waits for the whole big one. Here every waiting task
+ * queues under its SchedulingKey and the permits go round the keys.
+ * <p>
+ * Permits are handed out by deficit round-robin over the priority classes, where every task costs one permit: each class in turn gets as many
+ * permits as its weight before the next class is served, so the classes share the permits in proportion to their weights while all of them have
+ * tasks waiting. Within a class the fairness keys take turns, one permit each, and the tasks of one key get theirs in the order they came. The 3 task
+ * event gets one permit out of every two until it's done, however many tasks the big event still has waiting.
+ * <p>
+ * A released permit is handed straight to the next waiter in that order, unlike StripedGate, and a task that arrives while others are waiting queues
+ * behind them even if it could have raced them. That costs the handoff latency, which is the price of the order. While nobody is waiting, acquire
+ * takes a free permit without queueing. The queues are kept under a lock, the waiters park outside of it.
+ * <p>
+ * Acquiring without a key, through acquire() and tryAcquire(timeout, unit), schedules the task with SchedulingKey.DEFAULT.
+ *
+ * @author esp
+ */
+public class WeightedFairGate implements Gate {
+    private static final Object NO_KEY = new Object();
+
+    private final int maxConcurrent;
+    private final ReentrantLock lock = new ReentrantLock();
+    // written under lock, read without it by availablePermits
+    private volatile int available;
+    // guarded by lock
+    private int waiting;
+    private final Map<PriorityClass, ClassQueue> classes = new HashMap<>();
+    // the classes with waiters, in the order they're served, the one being served now first
+    private final ArrayDeque<ClassQueue> rounds = new ArrayDeque<>();
+
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        // set under the lock, the waiter owns a permit from then on
+        volatile boolean granted;
+        // gave up waiting, skipped when its turn comes
+        boolean abandoned;
+    }
+
+    private static final class KeyQueue {
+        final Object key;
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+        KeyQueue( Object key ) {
+            this.key = key;
+        }
+    }
+
+    private static final class ClassQueue {
+        final PriorityClass priorityClass;
+        final Map<Object, KeyQueue> byKey = new HashMap<>();
+        // the keys with waiters, the one whose turn is next first
+        final ArrayDeque<KeyQueue> keys = new ArrayDeque<>();
+        // permits left in the class's current turn
+        int deficit;
+        boolean inRounds;
+
+        ClassQueue( PriorityClass priorityClass ) {
+            this.priorityClass = priorityClass;
+        }
+
+        void add( Object key, Waiter waiter ) {
+            KeyQueue queue = byKey.get( key );
+            if( null == queue ) {
+                queue = new KeyQueue( key );
+                byKey.put( key, queue );
+                keys.addLast( queue );
+            }
+            queue.waiters.addLast( waiter );
+        }
+
+        /**
+         * The first waiter of the key whose turn it is, and the key goes to the back.
+         */
+        Waiter poll() {
+            while( !keys.isEmpty() ) {
+                KeyQueue queue = keys.pollFirst();
+                Waiter waiter = queue.waiters.pollFirst();
+                if( queue.waiters.isEmpty() )
+                    byKey.remove( queue.key );
+                else
+                    keys.addLast( queue );
+                if( !waiter.abandoned )
+                    return waiter;
+            }
+            return null;
+        }
+    }
+
+    public WeightedFairGate( int maxConcurrent ) {
+        if( maxConcurrent < 1 )
+            throw new IllegalArgumentException( "maxConcurrent must be at least 1" );
+        this.maxConcurrent = maxConcurrent;
+        this.available = maxConcurrent;
+    }
+
+    @Override
+    public void acquire() throws InterruptedException {
+        acquire( SchedulingKey.DEFAULT );
+    }
+
+    @Override
+    public boolean tryAcquire( long timeout, TimeUnit unit ) throws InterruptedException {
+        return tryAcquire( SchedulingKey.DEFAULT, timeout, unit );
+    }
+
+    @Override
+    public void acquire( SchedulingKey key ) throws InterruptedException {
+        acquire( key, false, 0 );
+    }
+
+    @Override
+    public boolean tryAcquire( SchedulingKey key, long timeout, TimeUnit unit ) throws InterruptedException {
+        return acquire( key, true, System.nanoTime() + unit.toNanos( timeout ) );
+    }
+
+    private boolean acquire( SchedulingKey key, boolean timed, long deadline ) throws InterruptedException {
+        if( Thread.interrupted() )
+            throw new InterruptedException();
+
+        Waiter waiter;
+        lock.lock();
+        try {
+            if( waiting == 0 && available > 0 ) {
+                available--;
+                return true;
+            }
+            if( timed && deadline - System.nanoTime() <= 0 )
+                return false;
+            waiter = new Waiter();
+            enqueue( key, waiter );
+        } finally {
+            lock.unlock();
+        }
+
+        while( !waiter.granted ) {
+            if( timed ) {
+                long remaining = deadline - System.nanoTime();
+                if( remaining <= 0 )
+                    return abandon( waiter );
+                LockSupport.parkNanos( this, remaining );
+            } else {
+                LockSupport.park( this );
+            }
+            if( Thread.interrupted() ) {
+                // a permit handed to us in the meantime goes on to the next waiter
+                if( abandon( waiter ) )
+                    release();
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void release() {
+        Waiter next;
+        lock.lock();
+        try {
+            next = next();
+            if( null == next ) {
+                available++;
+                return;
+            }
+            waiting--;
+            next.granted = true;
+        } finally {
+            lock.unlock();
+        }
+        LockSupport.unpark( next.thread );
+    }
+
+    // guarded by lock
+    private void enqueue( SchedulingKey key, Waiter waiter ) {
+        ClassQueue queue = classes.computeIfAbsent( key.priorityClass(), ClassQueue::new );
+        queue.add( null == key.fairnessKey() ? NO_KEY : key.fairnessKey(), waiter );
+        if( !queue.inRounds ) {
+            queue.inRounds = true;
+            rounds.addLast( queue );
+        }
+        waiting++;
+    }
+
+    /**
+     * The waiter that gets the next permit: the class being served gets up to its weight in permits, then the next class has its turn.
+     */
+    // guarded by lock
+    private Waiter next() {
+        while( !rounds.isEmpty() ) {
+            ClassQueue queue = rounds.peekFirst();
+            if( queue.deficit == 0 )
+                queue.deficit = queue.priorityClass.weight();
+            Waiter waiter = queue.poll();
+            if( null != waiter )
+                queue.deficit--;
+            if( queue.keys.isEmpty() ) {
+                // nobody left, a class doesn't save up its turn for later
+                rounds.pollFirst();
+                queue.inRounds = false;
+                queue.deficit = 0;
+            } else if( queue.deficit == 0 ) {
+                rounds.addLast( rounds.pollFirst() );
+            }
+            if( null != waiter )
+                return waiter;
+        }
+        return null;
+    }
+
+    /**
+     * Stops waiting.
+     *
+     * @return true if the permit was handed to the waiter before it could stop, the waiter owns it
+     */
+    private boolean abandon( Waiter waiter ) {
+        lock.lock();
+        try {
+            if( waiter.granted )
+                return true;
+            waiter.abandoned = true;
+            waiting--;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int availablePermits() {
+        return available;
+    }
+
+    @Override
+    public int limit() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Tasks waiting for a permit, in all classes.
+     */
+    public int waiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
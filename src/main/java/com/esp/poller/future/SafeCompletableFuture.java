@@ -1,10 +1,13 @@
 package com.esp.poller.future;
 
+import com.esp.poller.logger.Log;
+
 import java.util.concurrent.CompletableFuture;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
 public class SafeCompletableFuture {
+    private static final Log LOG = Log.get( SafeCompletableFuture.class );
 
     public static <T> CompletableFuture<T> safeExceptionally(
             CompletableFuture<T> future,
@@ -15,7 +18,7 @@ public class SafeCompletableFuture {
             try {
                 return handler.apply( throwable );
             } catch( Exception e ) {
-                System.out.println( "Exception handler failed: " + e );
+                LOG.error( "Exception handler failed: {}", e );
                 return ultimateFallback;
             }
         } );
@@ -30,7 +33,7 @@ public class SafeCompletableFuture {
             try {
                 return handler.apply( result, throwable );
             } catch( Exception e ) {
-                System.out.println( "Handle method failed: " + e );
+                LOG.error( "Handle method failed: {}", e );
                 return ultimateFallback;
             }
         } );
@@ -0,0 +1,35 @@
+package com.esp.poller.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Emitted by the LoggerPollerSim for the aggregation of an event's task results, once the last of them is done, up to and including patching the
+ * event's state.
+ */
+@Name( "com.esp.poller.EventAggregation" )
+@Label( "Event Aggregation" )
+@Category( { "Poller", "Event" } )
+@Description( "Aggregating the task results of an event and patching its state" )
+@StackTrace( false )
+@Threshold( "1 ms" )
+public class EventAggregationEvent extends jdk.jfr.Event {
+    @Label( "Event Id" )
+    public String eventId;
+
+    @Label( "Tasks" )
+    public int tasks;
+
+    @Label( "Succeeded" )
+    public int succeeded;
+
+    @Label( "Failed Retryable" )
+    public int failedRetryable;
+
+    @Label( "Failed Non-Retryable" )
+    public int failedNonRetryable;
+}
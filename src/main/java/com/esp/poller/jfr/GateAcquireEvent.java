@@ -0,0 +1,27 @@
+package com.esp.poller.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Emitted by the GatedVirtualThreadExecutor for the time a task spent in gate.acquire(), waiting for a permit. Long ones mean the gate is the
+ * bottleneck, rather than the downstream.
+ */
+@Name( "com.esp.poller.GateAcquire" )
+@Label( "Gate Acquire" )
+@Category( { "Poller", "Gate" } )
+@Description( "A task waiting for a permit of the gate" )
+@StackTrace( false )
+@Threshold( "1 ms" )
+public class GateAcquireEvent extends jdk.jfr.Event {
+    @Label( "Partition" )
+    public String partition;
+
+    @Label( "Permits Available" )
+    @Description( "Permits left after this one was taken" )
+    public int availablePermits;
+}
@@ -0,0 +1,84 @@
+package com.esp.poller.jfr;
+
+import com.esp.poller.model.EventTaskContext;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Emitted for each call to a downstream, while the task holds its permit. It has the ids of the event, asset and rule the task was for, so a slow
+ * call can be traced back to what caused it. For a DP batch the ids are those of the first item, and batchSize says how many there were.
+ */
+@Name( "com.esp.poller.TaskRun" )
+@Label( "Task Run" )
+@Category( { "Poller", "Task" } )
+@Description( "A task calling its downstream" )
+@StackTrace( false )
+@Threshold( "10 ms" )
+public class TaskRunEvent extends jdk.jfr.Event {
+    @Label( "Partition" )
+    public String partition;
+
+    @Label( "Event Id" )
+    public String eventId;
+
+    @Label( "Asset Id" )
+    public String assetId;
+
+    @Label( "Rule Id" )
+    public String ruleId;
+
+    @Label( "Batch Size" )
+    public int batchSize;
+
+    @Label( "Failure" )
+    @Description( "Class of the exception the call threw, if it did" )
+    public String failure;
+
+    /**
+     * Wraps the call of a single task in a TaskRunEvent.
+     */
+    public static <T> Callable<T> timed( String partition, EventTaskContext context, Callable<T> call ) {
+        return timed( partition, context, 1, call );
+    }
+
+    /**
+     * Wraps a batch call in a TaskRunEvent.
+     */
+    public static <T> Callable<T> timed( String partition, List<? extends EventTaskContext> contexts, Callable<T> call ) {
+        return timed( partition, contexts.isEmpty() ? null : contexts.getFirst(), contexts.size(), call );
+    }
+
+    private static <T> Callable<T> timed( String partition, EventTaskContext context, int batchSize, Callable<T> call ) {
+        return () -> {
+            TaskRunEvent event = new TaskRunEvent();
+            event.begin();
+            Throwable failure = null;
+            try {
+                return call.call();
+            } catch( Exception e ) {
+                failure = e;
+                throw e;
+            } finally {
+                event.end();
+                if( event.shouldCommit() ) {
+                    event.partition = partition;
+                    if( null != context ) {
+                        event.eventId = null != context.eventSim() ? context.eventSim().eventId() : null;
+                        event.assetId = context.getAssetId();
+                        event.ruleId = context.getRuleId();
+                    }
+                    event.batchSize = batchSize;
+                    event.failure = null != failure ? failure.getClass().getName() : null;
+                    event.commit();
+                }
+            }
+        };
+    }
+}
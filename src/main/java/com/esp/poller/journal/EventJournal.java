@@ -0,0 +1,67 @@
+package com.esp.poller.journal;
+
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventState;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.tasks.ClientTask;
+
+import java.util.List;
+
+/**
+ * Keeps track of the events the poller is working on, so a restart can carry on where it left off instead of doing every fetched event again. The
+ * poller records an event when it accepts it, the result of each of its tasks as it becomes terminal, the event's state once all of them are, and
+ * finally that the state was patched to the logger, after which the event is forgotten.
+ * <p>
+ * On startup recover hands back the events that were accepted but never patched. Only their unfinished tasks have to run again, and events that were
+ * done but not patched only have to be patched.
+ * <p>
+ * None of the methods block on the disk. Records that were written but not yet synced when the process dies are lost, which only means a bit more
+ * work is done again. {@link #NONE} keeps no journal at all.
+ */
+public interface EventJournal extends AutoCloseable {
+    EventJournal NONE = new EventJournal() {
+    };
+
+    /**
+     * The event was fetched and its tasks are about to be dispatched.
+     */
+    default void accepted( EventSim eventSim, List<ClientTask> tasks ) {
+    }
+
+    /**
+     * One of the event's tasks reached a terminal result, after any retries.
+     */
+    default void taskDone( String eventId, ClientTask task, EventTaskContext.Result result ) {
+    }
+
+    /**
+     * All of the event's tasks are done and its state is waiting to be patched.
+     */
+    default void completed( String eventId, EventState state ) {
+    }
+
+    /**
+     * The event's state is in the logger, the journal can forget the event.
+     */
+    default void patched( String eventId ) {
+    }
+
+    /**
+     * The event belongs to another poller instance now, which the logger hands it to, the journal can forget the event. Goes into the journal the same
+     * as a patch.
+     */
+    default void released( String eventId ) {
+        patched( eventId );
+    }
+
+    /**
+     * The events that were accepted and not patched yet.
+     */
+    default List<JournaledEvent> recover() {
+        return List.of();
+    }
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,18 @@
+package com.esp.poller.journal;
+
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventState;
+import com.esp.poller.model.EventTaskContext;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An event the journal found unfinished on startup: it was accepted, but its state never made it to the logger.
+ *
+ * @param tasks   all of the event's tasks
+ * @param results the tasks that reached a terminal result, the others have to run again
+ * @param state   the state of the event if all of its tasks were done and it only wasn't patched yet, otherwise null
+ */
+public record JournaledEvent(EventSim eventSim, List<TaskRef> tasks, Map<TaskRef, EventTaskContext.Result> results, EventState state) {
+}
@@ -0,0 +1,609 @@
+package com.esp.poller.journal;
+
+import com.esp.poller.logger.Log;
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventState;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.tasks.ClientTask;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only EventJournal in a memory-mapped file. Appending a record is a copy into the mapping, so recording a task's result costs about as
+ * much as logging it. Nothing waits for the disk: a background thread syncs whatever was appended since its last sync every syncInterval, one sync
+ * for all the records of the interval (group commit). sync waits for everything appended so far to be on disk, for whoever needs that.
+ * <p>
+ * The file is a header and then records back to back:
+ * <pre>
+ * header   magic, version                                        (2 ints)
+ * record   payload length, CRC32 of the payload, payload         (2 ints, bytes)
+ * payload  type (1 byte), then by type
+ *          ACCEPTED   event id, asset count, asset ids, task count, then partition, asset id, rule id of each task
+ *          TASK_DONE  event id, partition, asset id, rule id, result
+ *          COMPLETED  event id, state
+ *          PATCHED    event id
+ * </pre>
+ * Strings are a short length and UTF-8 bytes, -1 for null. The rest of the mapping is zeros, so reading stops at the first zero length, and at the
+ * first record whose CRC doesn't match, which is where a crash tore the last record.
+ * <p>
+ * The journal keeps the state of the events that aren't patched yet in memory, which is what recover returns after the file was read on open.
+ * Patched events are garbage in the file. Once a quarter of the file is used the sync thread compacts the journal: the live events are written to a
+ * new file and synced, without holding up the appends, then what was appended in the meantime is copied after them and the new file is moved over
+ * the old one, so a crash during compaction leaves one or the other. The new file is at least eight times the size of what's live, so there is
+ * always room for a good while before the next compaction, and the rest of the file for what's appended until the sync thread gets to it. A record
+ * that doesn't fit even so is dropped rather than compacting on the caller's thread, the journal is only there to save work after a restart.
+ *
+ * @author esp
+ */
+public class MappedEventJournal implements EventJournal {
+    private static final Log LOG = Log.get( MappedEventJournal.class );
+
+    private static final int MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static final byte ACCEPTED = 1;
+    private static final byte TASK_DONE = 2;
+    private static final byte COMPLETED = 3;
+    private static final byte PATCHED = 4;
+
+    private static final EventTaskContext.Result[] RESULTS = EventTaskContext.Result.values();
+    private static final EventState[] STATES = EventState.values();
+
+    private final Path path;
+    private final int minCapacity;
+    private final long syncIntervalNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private final Thread syncer;
+
+    // guarded by lock
+    private MappedByteBuffer buffer;
+    private int position;
+    private int syncedPosition;
+    // bumped by every compaction, positions from before it mean nothing in the new file
+    private long generation;
+    private int compactions;
+    private boolean closed;
+    // records dropped because they didn't fit, logged by the sync thread
+    private int dropped;
+    // what to add to a position to get the bytes appended since open, which compares positions from before and after a compaction
+    private long shift;
+    private final Map<String, LiveEvent> live;
+
+    /**
+     * An event that isn't patched yet.
+     */
+    private static final class LiveEvent {
+        final EventSim eventSim;
+        final List<TaskRef> tasks;
+        final Map<TaskRef, EventTaskContext.Result> results = new LinkedHashMap<>();
+        EventState state;
+
+        LiveEvent( EventSim eventSim, List<TaskRef> tasks ) {
+            this.eventSim = eventSim;
+            this.tasks = tasks;
+        }
+    }
+
+    private MappedEventJournal( Path path, MappedByteBuffer buffer, int position, Map<String, LiveEvent> live, int minCapacity, Duration syncInterval ) {
+        this.path = path;
+        this.buffer = buffer;
+        this.position = position;
+        this.syncedPosition = position;
+        this.live = live;
+        this.minCapacity = minCapacity;
+        this.syncIntervalNanos = syncInterval.toNanos();
+        this.syncer = new Thread( this::syncLoop, "event-journal-sync" );
+        syncer.setDaemon( true );
+        syncer.start();
+    }
+
+    /**
+     * Opens the journal at the path, or creates it. An existing journal is read, up to its last intact record, and the events it has that weren't
+     * patched yet are what recover returns.
+     *
+     * @param capacity     the size of the file, it grows if the live events ever need more
+     * @param syncInterval how often what was appended is synced to disk
+     */
+    public static MappedEventJournal open( Path path, int capacity, Duration syncInterval ) throws IOException {
+        if( capacity < 1024 || capacity > MAX_CAPACITY )
+            throw new IllegalArgumentException( "capacity must be between 1KB and 1GB" );
+
+        Map<String, LiveEvent> live = new LinkedHashMap<>();
+        try( FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            long size = channel.size();
+            if( size > MAX_CAPACITY )
+                throw new IOException( "Journal is too big: " + path );
+            boolean existing = size >= HEADER_BYTES;
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, Math.max( size, capacity ) );
+
+            int position = HEADER_BYTES;
+            if( existing ) {
+                if( buffer.getInt( 0 ) != MAGIC )
+                    throw new IOException( "Not an event journal: " + path );
+                if( buffer.getInt( 4 ) != VERSION )
+                    throw new IOException( "Unsupported event journal version " + buffer.getInt( 4 ) );
+                position = replay( buffer, live );
+                LOG.info( "Replayed event journal {}: {} events not patched yet", path, live.size() );
+            } else {
+                buffer.putInt( 0, MAGIC );
+                buffer.putInt( 4, VERSION );
+                buffer.force();
+            }
+            return new MappedEventJournal( path, buffer, position, live, capacity, syncInterval );
+        }
+    }
+
+    @Override
+    public void accepted( EventSim eventSim, List<ClientTask> tasks ) {
+        List<TaskRef> refs = tasks.stream().map( TaskRef::of ).toList();
+        byte[] payload = acceptedPayload( eventSim, refs );
+        lock.lock();
+        try {
+            if( append( payload ) )
+                live.put( eventSim.eventId(), new LiveEvent( eventSim, refs ) );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void taskDone( String eventId, ClientTask task, EventTaskContext.Result result ) {
+        TaskRef ref = TaskRef.of( task );
+        // same as the EventAggregator, a task without a result didn't succeed as far as we know
+        byte[] payload = taskDonePayload( eventId, ref, null != result ? result : EventTaskContext.Result.FAILURE_RETRYABLE );
+        lock.lock();
+        try {
+            LiveEvent event = live.get( eventId );
+            if( null != event && append( payload ) )
+                event.results.put( ref, null != result ? result : EventTaskContext.Result.FAILURE_RETRYABLE );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void completed( String eventId, EventState state ) {
+        byte[] payload = completedPayload( eventId, state );
+        lock.lock();
+        try {
+            LiveEvent event = live.get( eventId );
+            if( null != event && append( payload ) )
+                event.state = state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void patched( String eventId ) {
+        byte[] payload = patchedPayload( eventId );
+        lock.lock();
+        try {
+            if( live.containsKey( eventId ) && append( payload ) )
+                live.remove( eventId );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<JournaledEvent> recover() {
+        lock.lock();
+        try {
+            List<JournaledEvent> events = new ArrayList<>( live.size() );
+            for( LiveEvent event : live.values() )
+                events.add( new JournaledEvent( event.eventSim, event.tasks, Map.copyOf( event.results ), event.state ) );
+            return events;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until everything appended so far is on disk. The sync itself is done by the sync thread, together with whatever else was appended.
+     */
+    public void sync() throws InterruptedException {
+        lock.lock();
+        try {
+            long target = shift + position;
+            LockSupport.unpark( syncer );
+            while( !closed && shift + syncedPosition < target )
+                synced.await( syncIntervalNanos, TimeUnit.NANOSECONDS );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The bytes of the file in use, header and records.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int compactions() {
+        lock.lock();
+        try {
+            return compactions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs what's left and stops the sync thread. Records after close are dropped.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if( closed )
+                return;
+            closed = true;
+            if( position > syncedPosition )
+                buffer.force( syncedPosition, position - syncedPosition );
+            syncedPosition = position;
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        LockSupport.unpark( syncer );
+    }
+
+    /**
+     * Appends a record. One that doesn't fit is dropped, and the sync thread is woken up to compact the journal.
+     *
+     * @return false if it wasn't written, because the journal is closed or full
+     */
+    // guarded by lock
+    private boolean append( byte[] payload ) {
+        if( closed )
+            return false;
+
+        int length = RECORD_HEADER_BYTES + payload.length;
+        if( position + length > buffer.capacity() ) {
+            dropped++;
+            LockSupport.unpark( syncer );
+            return false;
+        }
+        writeRecord( buffer, position, payload );
+        position += length;
+        return true;
+    }
+
+    /**
+     * Writes the live events to a new file and swaps it in. Only the sync thread compacts, and it holds the lock only to take the live events and to
+     * swap the files, the new file is written and synced without it.
+     */
+    private void compact() throws IOException {
+        List<byte[]> payloads = new ArrayList<>();
+        int from;
+        lock.lock();
+        try {
+            if( closed )
+                return;
+            for( LiveEvent event : live.values() ) {
+                String eventId = event.eventSim.eventId();
+                payloads.add( acceptedPayload( event.eventSim, event.tasks ) );
+                event.results.forEach( ( ref, result ) -> payloads.add( taskDonePayload( eventId, ref, result ) ) );
+                if( null != event.state )
+                    payloads.add( completedPayload( eventId, event.state ) );
+            }
+            from = position;
+        } finally {
+            lock.unlock();
+        }
+
+        long size = HEADER_BYTES;
+        for( byte[] payload : payloads )
+            size += RECORD_HEADER_BYTES + payload.length;
+        long capacity = minCapacity;
+        while( capacity < 8 * size && capacity < MAX_CAPACITY )
+            capacity *= 2;
+        if( size > capacity )
+            throw new IOException( "Live events don't fit in " + capacity + " bytes" );
+
+        Path compacted = path.resolveSibling( path.getFileName() + ".compact" );
+        MappedByteBuffer next;
+        try( FileChannel channel = FileChannel.open( compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                     StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            next = channel.map( FileChannel.MapMode.READ_WRITE, 0, capacity );
+        }
+        next.putInt( 0, MAGIC );
+        next.putInt( 4, VERSION );
+        int at = HEADER_BYTES;
+        for( byte[] payload : payloads ) {
+            writeRecord( next, at, payload );
+            at += RECORD_HEADER_BYTES + payload.length;
+        }
+        next.force();
+
+        int before;
+        lock.lock();
+        try {
+            if( closed ) {
+                Files.deleteIfExists( compacted );
+                return;
+            }
+            // what was appended while we wrote the new file goes after the live events, as it is, it comes after them on replay as well. Only the
+            // sync thread syncs, so none of it is synced yet and it's synced from the new file like any other record
+            int tail = position - from;
+            if( at + tail > capacity )
+                throw new IOException( "Too much was appended while compacting to fit in " + capacity + " bytes" );
+            next.put( at, buffer, from, tail );
+            Files.move( compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+
+            before = position;
+            buffer = next;
+            shift += from - at;
+            position = at + tail;
+            syncedPosition = at;
+            generation++;
+            compactions++;
+        } finally {
+            lock.unlock();
+        }
+        syncDirectory( path );
+        LOG.debug( "Compacted event journal {} from {} to {} bytes", path, before, at );
+    }
+
+    /**
+     * Syncs the directory the file is in, so the move of a compacted journal over the old one survives a crash.
+     */
+    private static void syncDirectory( Path file ) {
+        Path dir = file.toAbsolutePath().getParent();
+        try( FileChannel channel = FileChannel.open( dir, StandardOpenOption.READ ) ) {
+            channel.force( true );
+        } catch( IOException e ) {
+            // not every platform can open a directory, there the move is as durable as it gets
+            LOG.debug( "Can't sync directory {}: {}", dir, e );
+        }
+    }
+
+    private void syncLoop() {
+        while( true ) {
+            LockSupport.parkNanos( this, syncIntervalNanos );
+
+            boolean compact;
+            int droppedRecords;
+            lock.lock();
+            try {
+                if( closed )
+                    return;
+                compact = position > buffer.capacity() / 4 || dropped > 0;
+                droppedRecords = dropped;
+                dropped = 0;
+            } finally {
+                lock.unlock();
+            }
+            if( droppedRecords > 0 )
+                LOG.warn( "Event journal {} was full, dropped {} records", path, droppedRecords );
+            if( compact ) {
+                try {
+                    compact();
+                } catch( IOException e ) {
+                    LOG.warn( "Failed to compact event journal {}: {}", path, e );
+                }
+            }
+
+            MappedByteBuffer target;
+            int from;
+            int to;
+            long syncGeneration;
+            lock.lock();
+            try {
+                if( closed )
+                    return;
+                target = buffer;
+                from = syncedPosition;
+                to = position;
+                syncGeneration = generation;
+            } finally {
+                lock.unlock();
+            }
+            if( to == from )
+                continue;
+
+            // the sync doesn't hold the lock, appends carry on past what's being synced
+            target.force( from, to - from );
+            lock.lock();
+            try {
+                if( syncGeneration == generation && to > syncedPosition ) {
+                    syncedPosition = to;
+                    synced.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static void writeRecord( ByteBuffer buffer, int at, byte[] payload ) {
+        CRC32 crc = new CRC32();
+        crc.update( payload );
+        buffer.put( at + RECORD_HEADER_BYTES, payload );
+        buffer.putInt( at + Integer.BYTES, (int) crc.getValue() );
+        // the length goes in last, a reader never sees a length in front of a record that isn't there yet
+        buffer.putInt( at, payload.length );
+    }
+
+    /**
+     * Reads the records from the start of the file and applies them to the live events.
+     *
+     * @return the position after the last intact record
+     */
+    private static int replay( MappedByteBuffer buffer, Map<String, LiveEvent> live ) {
+        int position = HEADER_BYTES;
+        int capacity = buffer.capacity();
+        CRC32 crc = new CRC32();
+        while( position + RECORD_HEADER_BYTES <= capacity ) {
+            int length = buffer.getInt( position );
+            if( length <= 0 || length > capacity - position - RECORD_HEADER_BYTES )
+                break;
+            ByteBuffer payload = buffer.slice( position + RECORD_HEADER_BYTES, length );
+            crc.reset();
+            crc.update( payload.duplicate() );
+            if( (int) crc.getValue() != buffer.getInt( position + Integer.BYTES ) )
+                break;
+            apply( payload, live );
+            position += RECORD_HEADER_BYTES + length;
+        }
+
+        // a torn record leaves bytes behind that a shorter record written over it wouldn't cover, clear them
+        if( position + Integer.BYTES <= capacity && buffer.getInt( position ) != 0 ) {
+            LOG.warn( "Event journal has a torn record at {}, ignoring the rest", position );
+            for( int i = position; i < capacity; i++ )
+                buffer.put( i, (byte) 0 );
+        }
+        return position;
+    }
+
+    private static void apply( ByteBuffer payload, Map<String, LiveEvent> live ) {
+        byte type = payload.get();
+        String eventId = readString( payload );
+        switch( type ) {
+            case ACCEPTED -> {
+                int assetCount = payload.getShort();
+                List<String> assetIds = new ArrayList<>( assetCount );
+                for( int i = 0; i < assetCount; i++ )
+                    assetIds.add( readString( payload ) );
+                int taskCount = payload.getShort();
+                List<TaskRef> tasks = new ArrayList<>( taskCount );
+                for( int i = 0; i < taskCount; i++ )
+                    tasks.add( new TaskRef( readString( payload ), readString( payload ), readString( payload ) ) );
+                live.put( eventId, new LiveEvent( new EventSim( eventId, assetIds ), List.copyOf( tasks ) ) );
+            }
+            case TASK_DONE -> {
+                TaskRef ref = new TaskRef( readString( payload ), readString( payload ), readString( payload ) );
+                LiveEvent event = live.get( eventId );
+                if( null != event )
+                    event.results.put( ref, RESULTS[payload.get()] );
+            }
+            case COMPLETED -> {
+                LiveEvent event = live.get( eventId );
+                if( null != event )
+                    event.state = STATES[payload.get()];
+            }
+            case PATCHED -> live.remove( eventId );
+            default -> LOG.warn( "Skipping unknown event journal record type {}", type );
+        }
+    }
+
+    private static byte[] acceptedPayload( EventSim eventSim, List<TaskRef> tasks ) {
+        PayloadWriter out = new PayloadWriter( ACCEPTED, eventSim.eventId() );
+        out.writeShort( eventSim.assetIds().size() );
+        for( String assetId : eventSim.assetIds() )
+            out.writeString( assetId );
+        out.writeShort( tasks.size() );
+        for( TaskRef task : tasks )
+            out.writeTask( task );
+        return out.toBytes();
+    }
+
+    private static byte[] taskDonePayload( String eventId, TaskRef task, EventTaskContext.Result result ) {
+        PayloadWriter out = new PayloadWriter( TASK_DONE, eventId );
+        out.writeTask( task );
+        out.writeByte( result.ordinal() );
+        return out.toBytes();
+    }
+
+    private static byte[] completedPayload( String eventId, EventState state ) {
+        PayloadWriter out = new PayloadWriter( COMPLETED, eventId );
+        out.writeByte( state.ordinal() );
+        return out.toBytes();
+    }
+
+    private static byte[] patchedPayload( String eventId ) {
+        return new PayloadWriter( PATCHED, eventId ).toBytes();
+    }
+
+    private static String readString( ByteBuffer payload ) {
+        int length = payload.getShort();
+        if( length < 0 )
+            return null;
+        byte[] bytes = new byte[length];
+        payload.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Builds a record payload in a byte array that grows as needed. Records are small, a few hundred bytes for an event with a dozen tasks.
+     */
+    private static final class PayloadWriter {
+        private byte[] bytes = new byte[64];
+        private int length;
+
+        PayloadWriter( byte type, String eventId ) {
+            writeByte( type );
+            writeString( eventId );
+        }
+
+        void writeByte( int value ) {
+            ensure( 1 );
+            bytes[length++] = (byte) value;
+        }
+
+        void writeShort( int value ) {
+            if( value > Short.MAX_VALUE )
+                throw new IllegalArgumentException( "Too many entries for a journal record: " + value );
+            ensure( 2 );
+            bytes[length++] = (byte) (value >> 8);
+            bytes[length++] = (byte) value;
+        }
+
+        void writeString( String value ) {
+            if( null == value ) {
+                writeShort( -1 );
+                return;
+            }
+            byte[] utf8 = value.getBytes( StandardCharsets.UTF_8 );
+            writeShort( utf8.length );
+            ensure( utf8.length );
+            System.arraycopy( utf8, 0, bytes, length, utf8.length );
+            length += utf8.length;
+        }
+
+        void writeTask( TaskRef task ) {
+            writeString( task.partition() );
+            writeString( task.assetId() );
+            writeString( task.ruleId() );
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf( bytes, length );
+        }
+
+        private void ensure( int more ) {
+            if( length + more > bytes.length )
+                bytes = Arrays.copyOf( bytes, Math.max( bytes.length * 2, length + more ) );
+        }
+    }
+}
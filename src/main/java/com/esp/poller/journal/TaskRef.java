@@ -0,0 +1,13 @@
+package com.esp.poller.journal;
+
+import com.esp.poller.tasks.ClientTask;
+
+/**
+ * Which of an event's tasks a journal record is about. Within one event a task is unique by its downstream, asset and rule, the EP task has neither
+ * asset nor rule.
+ */
+public record TaskRef(String partition, String assetId, String ruleId) {
+    public static TaskRef of( ClientTask task ) {
+        return new TaskRef( task.partition(), task.getEventTaskContext().getAssetId(), task.getEventTaskContext().getRuleId() );
+    }
+}
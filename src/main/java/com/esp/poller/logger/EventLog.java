@@ -0,0 +1,239 @@
+package com.esp.poller.logger;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous log channel. Logging threads put the level, the format and its arguments in a slot of a fixed ring buffer and go on, they never
+ * wait on a PrintStream lock or format a message. A single background writer drains the ring, formats the messages and writes them, WARN and ERROR
+ * to the error stream and the rest to the output stream.
+ * <p>
+ * The slots are allocated up front and reused, claiming one is a CAS on the tail, so logging doesn't allocate anything itself. When the ring is full
+ * the message is dropped rather than making the caller wait, and the writer reports how many were dropped.
+ * <p>
+ * The ring is a bounded MPSC queue in the style of Dmitry Vyukov's: each slot has a sequence number telling producers and the consumer whose turn it
+ * is, so a slot is never read before it has been written, or written before it has been read.
+ */
+public class EventLog implements AutoCloseable {
+    static final int MAX_ARGS = 4;
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Level level;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Thread writer;
+    private volatile boolean running = true;
+    // only written by the writer
+    private volatile long head;
+    private long reportedDropped;
+
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        long timeMillis;
+        long threadId;
+        String name;
+        String format;
+        final Object[] args = new Object[MAX_ARGS];
+        int argCount;
+    }
+
+    private static class Shared {
+        static final EventLog INSTANCE = new EventLog( 8192, configuredLevel(), System.out, System.err );
+
+        static {
+            Runtime.getRuntime().addShutdownHook( new Thread( INSTANCE::close, "event-log-shutdown" ) );
+        }
+    }
+
+    /**
+     * @param capacity the number of messages that can wait for the writer, rounded up to a power of two
+     * @param level    messages below this level are ignored
+     */
+    public EventLog( int capacity, Level level, PrintStream out, PrintStream err ) {
+        int size = Integer.highestOneBit( Math.max( 2, capacity - 1 ) ) << 1;
+        this.slots = new Slot[size];
+        for( int i = 0; i < size; i++ ) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        this.mask = size - 1;
+        this.level = level;
+        this.out = out;
+        this.err = err;
+        this.writer = Thread.ofPlatform().name( "event-log-writer" ).daemon().start( this::drainLoop );
+    }
+
+    /**
+     * The log everything goes to. Its level comes from the poller.log.level system property, INFO by default. It is drained when the JVM exits.
+     */
+    public static EventLog shared() {
+        return Shared.INSTANCE;
+    }
+
+    private static Level configuredLevel() {
+        String configured = System.getProperty( "poller.log.level", "INFO" );
+        try {
+            return Level.valueOf( configured.trim().toUpperCase() );
+        } catch( IllegalArgumentException e ) {
+            System.err.println( "Unknown poller.log.level " + configured + ", using INFO" );
+            return Level.INFO;
+        }
+    }
+
+    public boolean isEnabled( Level level ) {
+        return level.compareTo( this.level ) >= 0;
+    }
+
+    /**
+     * The number of messages dropped because the ring was full.
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Queues a message. The format uses {} for each argument, it is only filled in by the writer.
+     *
+     * @return false if the message was dropped, because the ring is full or the log is closed
+     */
+    boolean log( Level level, String name, String format, int argCount, Object a0, Object a1, Object a2, Object a3 ) {
+        if( !running ) {
+            dropped.increment();
+            return false;
+        }
+        long position = tail.get();
+        while( true ) {
+            Slot slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+            if( difference == 0 ) {
+                if( tail.compareAndSet( position, position + 1 ) ) {
+                    slot.level = level;
+                    slot.timeMillis = System.currentTimeMillis();
+                    slot.threadId = Thread.currentThread().threadId();
+                    slot.name = name;
+                    slot.format = format;
+                    slot.argCount = argCount;
+                    slot.args[0] = a0;
+                    slot.args[1] = a1;
+                    slot.args[2] = a2;
+                    slot.args[3] = a3;
+                    slot.sequence = position + 1; // publish to the writer
+                    return true;
+                }
+                position = tail.get();
+            } else if( difference < 0 ) {
+                // the writer hasn't freed this slot yet, the ring is full
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Waits until everything logged so far has been written.
+     */
+    public void flush() {
+        long target = tail.get();
+        while( running && head < target )
+            LockSupport.parkNanos( TimeUnit.MILLISECONDS.toNanos( 1 ) );
+    }
+
+    /**
+     * Writes what's left in the ring and stops the writer. Messages logged after this are dropped.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark( writer );
+        try {
+            writer.join();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder( 256 );
+        long idleNanos = 0;
+        while( true ) {
+            boolean stopping = !running;
+            int written = drain( line );
+            reportDropped();
+            // a producer that got past the running check just before close may have claimed a slot it hasn't published yet, wait for it
+            if( stopping && written == 0 && tail.get() == head ) {
+                out.flush();
+                err.flush();
+                return;
+            }
+            if( written > 0 ) {
+                idleNanos = 0;
+            } else {
+                // nothing to write, back off up to MAX_IDLE_NANOS so an idle log costs next to nothing
+                out.flush();
+                err.flush();
+                idleNanos = Math.min( MAX_IDLE_NANOS, Math.max( 50_000, idleNanos * 2 ) );
+                LockSupport.parkNanos( idleNanos );
+            }
+        }
+    }
+
+    private int drain( StringBuilder line ) {
+        int written = 0;
+        while( true ) {
+            Slot slot = slots[(int) head & mask];
+            if( slot.sequence != head + 1 )
+                return written;
+
+            line.setLength( 0 );
+            format( line, slot );
+            PrintStream stream = slot.level.compareTo( Level.WARN ) >= 0 ? err : out;
+
+            // hand the slot back to the producers before the write, which may block
+            slot.name = null;
+            slot.format = null;
+            slot.args[0] = slot.args[1] = slot.args[2] = slot.args[3] = null;
+            slot.sequence = head + slots.length;
+            head++;
+
+            stream.append( line ).append( '\n' );
+            written++;
+        }
+    }
+
+    private void reportDropped() {
+        long total = dropped.sum();
+        long count = total - reportedDropped;
+        reportedDropped = total;
+        if( count > 0 )
+            err.append( Instant.now().toString() ).append( " WARN  [EventLog] Dropped " ).append( Long.toString( count ) )
+               .append( " messages, the log buffer was full\n" );
+    }
+
+    private static void format( StringBuilder line, Slot slot ) {
+        line.append( Instant.ofEpochMilli( slot.timeMillis ) ).append( ' ' );
+        String levelName = slot.level.name();
+        line.append( levelName ).repeat( ' ', 6 - levelName.length() );
+        line.append( '[' ).append( slot.name ).append( "] #" ).append( slot.threadId ).append( ' ' );
+
+        String format = slot.format;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while( arg < slot.argCount && (at = format.indexOf( "{}", from )) >= 0 ) {
+            line.append( format, from, at ).append( slot.args[arg++] );
+            from = at + 2;
+        }
+        line.append( format, from, format.length() );
+    }
+}
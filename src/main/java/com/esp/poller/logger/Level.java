@@ -0,0 +1,8 @@
+package com.esp.poller.logger;
+
+public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR
+}
@@ -0,0 +1,113 @@
+package com.esp.poller.logger;
+
+/**
+ * What classes log through. It checks the level before anything else, so a disabled debug call costs a compare, and hands the format and arguments to
+ * the EventLog without building the message. Messages use {} for each argument, up to four of them:
+ * <pre>
+ *     private static final Log LOG = Log.get( LoggerPollerSim.class );
+ *     LOG.info( "{} Submitted futures: {}", eventId, tasks.size() );
+ * </pre>
+ * Arguments are turned into strings later, on the writer thread, so they shouldn't be changed after they were logged.
+ */
+public final class Log {
+    private final String name;
+    private final EventLog eventLog;
+
+    private Log( String name, EventLog eventLog ) {
+        this.name = name;
+        this.eventLog = eventLog;
+    }
+
+    public static Log get( Class<?> type ) {
+        return new Log( type.getSimpleName(), EventLog.shared() );
+    }
+
+    public static Log get( String name, EventLog eventLog ) {
+        return new Log( name, eventLog );
+    }
+
+    public boolean isEnabled( Level level ) {
+        return eventLog.isEnabled( level );
+    }
+
+    public void debug( String message ) {
+        log( Level.DEBUG, message, 0, null, null, null, null );
+    }
+
+    public void debug( String format, Object a0 ) {
+        log( Level.DEBUG, format, 1, a0, null, null, null );
+    }
+
+    public void debug( String format, Object a0, Object a1 ) {
+        log( Level.DEBUG, format, 2, a0, a1, null, null );
+    }
+
+    public void debug( String format, Object a0, Object a1, Object a2 ) {
+        log( Level.DEBUG, format, 3, a0, a1, a2, null );
+    }
+
+    public void debug( String format, Object a0, Object a1, Object a2, Object a3 ) {
+        log( Level.DEBUG, format, 4, a0, a1, a2, a3 );
+    }
+
+    public void info( String message ) {
+        log( Level.INFO, message, 0, null, null, null, null );
+    }
+
+    public void info( String format, Object a0 ) {
+        log( Level.INFO, format, 1, a0, null, null, null );
+    }
+
+    public void info( String format, Object a0, Object a1 ) {
+        log( Level.INFO, format, 2, a0, a1, null, null );
+    }
+
+    public void info( String format, Object a0, Object a1, Object a2 ) {
+        log( Level.INFO, format, 3, a0, a1, a2, null );
+    }
+
+    public void info( String format, Object a0, Object a1, Object a2, Object a3 ) {
+        log( Level.INFO, format, 4, a0, a1, a2, a3 );
+    }
+
+    public void warn( String message ) {
+        log( Level.WARN, message, 0, null, null, null, null );
+    }
+
+    public void warn( String format, Object a0 ) {
+        log( Level.WARN, format, 1, a0, null, null, null );
+    }
+
+    public void warn( String format, Object a0, Object a1 ) {
+        log( Level.WARN, format, 2, a0, a1, null, null );
+    }
+
+    public void warn( String format, Object a0, Object a1, Object a2 ) {
+        log( Level.WARN, format, 3, a0, a1, a2, null );
+    }
+
+    public void warn( String format, Object a0, Object a1, Object a2, Object a3 ) {
+        log( Level.WARN, format, 4, a0, a1, a2, a3 );
+    }
+
+    public void error( String message ) {
+        log( Level.ERROR, message, 0, null, null, null, null );
+    }
+
+    public void error( String format, Object a0 ) {
+        log( Level.ERROR, format, 1, a0, null, null, null );
+    }
+
+    public void error( String format, Object a0, Object a1 ) {
+        log( Level.ERROR, format, 2, a0, a1, null, null );
+    }
+
+    public void error( String format, Object a0, Object a1, Object a2 ) {
+        log( Level.ERROR, format, 3, a0, a1, a2, null );
+    }
+
+    private void log( Level level, String format, int argCount, Object a0, Object a1, Object a2, Object a3 ) {
+        if( eventLog.isEnabled( level ) )
+            eventLog.log( level, name, format, argCount, a0, a1, a2, a3 );
+    }
+}
@@ -0,0 +1,80 @@
+package com.esp.poller.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram in the style of HdrHistogram, with log-linear buckets. Each power of two is split into 32 buckets, so any value is counted in a
+ * bucket that is at most about 3% wide, from nanoseconds to hours, in a fixed array of about 1900 counters.
+ * <p>
+ * Recording is a few bit operations and an atomic increment, it doesn't allocate or lock, so it can be called on every task. Percentiles are worked
+ * out when somebody asks for them, from a racy read of the counters, which is fine for metrics.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKET_COUNT );
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record( long nanos ) {
+        long value = Math.max( 0, nanos );
+        counts.incrementAndGet( indexOf( value ) );
+        count.increment();
+        sumNanos.add( value );
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * The value below which the given fraction of the recorded values fall, as the upper end of the bucket it lands in.
+     *
+     * @param quantile between 0 and 1
+     * @return the value in nanoseconds, or 0 if nothing was recorded
+     */
+    public long valueAtQuantile( double quantile ) {
+        long total = 0;
+        for( int i = 0; i < BUCKET_COUNT; i++ )
+            total += counts.get( i );
+        if( total == 0 )
+            return 0;
+
+        long rank = Math.max( 1, (long) Math.ceil( quantile * total ) );
+        long seen = 0;
+        for( int i = 0; i < BUCKET_COUNT; i++ ) {
+            seen += counts.get( i );
+            if( seen >= rank )
+                return highestValueIn( i );
+        }
+        return highestValueIn( BUCKET_COUNT - 1 );
+    }
+
+    // Values below SUB_BUCKET_COUNT get a bucket each. Above that the bucket is picked by the position of the highest bit, and by the next
+    // SUB_BUCKET_BITS bits below it.
+    static int indexOf( long value ) {
+        if( value < SUB_BUCKET_COUNT )
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros( value );
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    static long lowestValueIn( int index ) {
+        if( index < SUB_BUCKET_COUNT )
+            return index;
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        return (long) (SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1))) << shift;
+    }
+
+    static long highestValueIn( int index ) {
+        return index == BUCKET_COUNT - 1 ? Long.MAX_VALUE : lowestValueIn( index + 1 ) - 1;
+    }
+}
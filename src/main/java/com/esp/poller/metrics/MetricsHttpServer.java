@@ -0,0 +1,61 @@
+package com.esp.poller.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the PollerMetrics at /metrics for Prometheus to scrape, using the HTTP server that comes with the JDK, so we don't need another dependency.
+ * Each scrape is handled on its own virtual thread.
+ */
+public class MetricsHttpServer implements AutoCloseable {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final ExecutorService handlers = Executors.newVirtualThreadPerTaskExecutor();
+    private final PollerMetrics metrics;
+
+    public MetricsHttpServer( PollerMetrics metrics, InetSocketAddress address ) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create( address, 0 );
+        server.createContext( "/metrics", this::scrape );
+        server.setExecutor( handlers );
+        server.start();
+    }
+
+    /**
+     * The port we're listening on, useful when we were started on port 0.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void scrape( HttpExchange exchange ) throws IOException {
+        try( exchange ) {
+            if( !"GET".equals( exchange.getRequestMethod() ) ) {
+                exchange.sendResponseHeaders( 405, -1 );
+                return;
+            }
+            StringBuilder body = new StringBuilder( 4096 );
+            metrics.writePrometheus( body );
+            byte[] bytes = body.toString().getBytes( StandardCharsets.UTF_8 );
+            exchange.getResponseHeaders().set( "Content-Type", CONTENT_TYPE );
+            exchange.sendResponseHeaders( 200, bytes.length );
+            try( OutputStream out = exchange.getResponseBody() ) {
+                out.write( bytes );
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop( 0 );
+        handlers.shutdown();
+    }
+}
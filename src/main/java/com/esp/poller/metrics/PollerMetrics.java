@@ -0,0 +1,207 @@
+package com.esp.poller.metrics;
+
+import com.esp.poller.executor.GatedVirtualThreadExecutor;
+import com.esp.poller.executor.PriorityClass;
+import com.esp.poller.executor.TaskObserver;
+import com.esp.poller.model.EventTaskContext;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The poller's metrics. Per partition (DP, EP, ...) we keep how long tasks waited at the gate for a permit and how long they ran with it, as separate
+ * histograms, so we can tell a gate that is too tight from a downstream that is slow. The wait is also kept per priority class, which shows whether
+ * a WeightedFairGate gives each class the share it should. Next to those the end to end latency of each event, from
+ * dispatch until all its tasks are done, and the counts of task results, from which Prometheus works out the success and failure rates.
+ * <p>
+ * The histograms and results are kept by the task's own partition, even when DP and EP share the default gate. The gate utilisation and queue depth
+ * are a gate's, so they are kept by the gate's partition, and read from the executor whenever the metrics are scraped, so they cost nothing in between.
+ * <p>
+ * It registers itself as a TaskObserver of the executor. Recording doesn't allocate once a partition has been seen.
+ * <p>
+ * Other parts of the poller can add counters of their own with addCounter, e.g. the dispatchers count their hedges and deduplicated tasks. They are
+ * read when the metrics are scraped.
+ */
+public class PollerMetrics implements TaskObserver {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final EventTaskContext.Result[] RESULTS = EventTaskContext.Result.values();
+
+    private final GatedVirtualThreadExecutor gatedExecutor;
+    private final Map<String, PartitionMetrics> partitions = new ConcurrentHashMap<>();
+    private final LatencyHistogram eventLatency = new LatencyHistogram();
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+
+    private record Counter(String help, LongSupplier value) {
+    }
+
+    private static class PartitionMetrics {
+        final LatencyHistogram gateWait = new LatencyHistogram();
+        final Map<String, LatencyHistogram> classWait = new ConcurrentHashMap<>();
+        final LatencyHistogram call = new LatencyHistogram();
+        final LongAdder[] results = new LongAdder[RESULTS.length];
+
+        PartitionMetrics() {
+            for( int i = 0; i < results.length; i++ )
+                results[i] = new LongAdder();
+        }
+
+        LatencyHistogram classWait( String priorityClass ) {
+            LatencyHistogram histogram = classWait.get( priorityClass );
+            return null != histogram ? histogram : classWait.computeIfAbsent( priorityClass, c -> new LatencyHistogram() );
+        }
+    }
+
+    public PollerMetrics( GatedVirtualThreadExecutor gatedExecutor ) {
+        this.gatedExecutor = gatedExecutor;
+        gatedExecutor.addObserver( this );
+    }
+
+    @Override
+    public void onAcquired( String partition, PriorityClass priorityClass, long waitNanos ) {
+        PartitionMetrics metrics = partition( partition );
+        metrics.gateWait.record( waitNanos );
+        metrics.classWait( priorityClass.name() ).record( waitNanos );
+    }
+
+    @Override
+    public void onCompleted( String partition, long runNanos, Throwable failure ) {
+        partition( partition ).call.record( runNanos );
+    }
+
+    /**
+     * Counts the final result of a task, after any retries.
+     */
+    public void recordResult( String partition, EventTaskContext.Result result ) {
+        if( null != result )
+            partition( partition ).results[result.ordinal()].increment();
+    }
+
+    /**
+     * Records how long an event took from dispatching its tasks until the last of them was done.
+     */
+    public void recordEvent( long latencyNanos ) {
+        eventLatency.record( latencyNanos );
+    }
+
+    /**
+     * Adds a counter that is read on every scrape. A counter added under a name that's already taken replaces the old one.
+     *
+     * @param name the metric name, ending in _total
+     */
+    public void addCounter( String name, String help, LongSupplier value ) {
+        counters.put( name, new Counter( help, value ) );
+    }
+
+    public LatencyHistogram gateWait( String partition ) {
+        return partition( partition ).gateWait;
+    }
+
+    /**
+     * The gate wait of the tasks of one priority class.
+     */
+    public LatencyHistogram gateWait( String partition, String priorityClass ) {
+        return partition( partition ).classWait( priorityClass );
+    }
+
+    public LatencyHistogram call( String partition ) {
+        return partition( partition ).call;
+    }
+
+    public LatencyHistogram eventLatency() {
+        return eventLatency;
+    }
+
+    public long results( String partition, EventTaskContext.Result result ) {
+        return partition( partition ).results[result.ordinal()].sum();
+    }
+
+    private PartitionMetrics partition( String partition ) {
+        PartitionMetrics metrics = partitions.get( partition );
+        return null != metrics ? metrics : partitions.computeIfAbsent( partition, p -> new PartitionMetrics() );
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus( Appendable out ) throws IOException {
+        TreeSet<String> gates = new TreeSet<>( gatedExecutor.getPartitions() );
+        TreeSet<String> names = new TreeSet<>( partitions.keySet() );
+        names.addAll( gates );
+
+        header( out, "poller_gate_wait_seconds", "summary", "Time tasks waited from submission until they got a permit." );
+        for( String p : names )
+            summary( out, "poller_gate_wait_seconds", "partition=\"" + p + "\"", partition( p ).gateWait );
+
+        header( out, "poller_gate_class_wait_seconds", "summary", "Time tasks waited for a permit, by priority class." );
+        for( String p : names )
+            for( Map.Entry<String, LatencyHistogram> classWait : new TreeMap<>( partition( p ).classWait ).entrySet() )
+                summary( out, "poller_gate_class_wait_seconds", "partition=\"" + p + "\",class=\"" + classWait.getKey() + "\"", classWait.getValue() );
+
+        header( out, "poller_task_call_seconds", "summary", "Time tasks ran while holding their permit." );
+        for( String p : names )
+            summary( out, "poller_task_call_seconds", "partition=\"" + p + "\"", partition( p ).call );
+
+        header( out, "poller_event_seconds", "summary", "Time from dispatching the tasks of an event until all of them were done." );
+        summary( out, "poller_event_seconds", null, eventLatency );
+
+        header( out, "poller_task_results_total", "counter", "Final results of tasks, after retries." );
+        for( String p : names )
+            for( EventTaskContext.Result result : RESULTS )
+                sample( out, "poller_task_results_total", "partition=\"" + p + "\",result=\"" + result.name().toLowerCase() + "\"",
+                        partition( p ).results[result.ordinal()].sum() );
+
+        header( out, "poller_gate_active_tasks", "gauge", "Tasks holding a permit." );
+        for( String p : gates )
+            sample( out, "poller_gate_active_tasks", "partition=\"" + p + "\"", gatedExecutor.getActiveCount( p ) );
+
+        header( out, "poller_gate_queued_tasks", "gauge", "Tasks submitted and waiting for a permit." );
+        for( String p : gates )
+            sample( out, "poller_gate_queued_tasks", "partition=\"" + p + "\"", gatedExecutor.getQueuedCount( p ) );
+
+        header( out, "poller_gate_limit", "gauge", "The current number of permits of the gate." );
+        for( String p : gates )
+            sample( out, "poller_gate_limit", "partition=\"" + p + "\"", gatedExecutor.getLimit( p ) );
+
+        header( out, "poller_gate_utilisation", "gauge", "Share of the permits in use, between 0 and 1." );
+        for( String p : gates ) {
+            int limit = gatedExecutor.getLimit( p );
+            sample( out, "poller_gate_utilisation", "partition=\"" + p + "\"", limit > 0 ? (double) gatedExecutor.getActiveCount( p ) / limit : 0 );
+        }
+
+        for( Map.Entry<String, Counter> counter : counters.entrySet() ) {
+            header( out, counter.getKey(), "counter", counter.getValue().help() );
+            sample( out, counter.getKey(), null, counter.getValue().value().getAsLong() );
+        }
+    }
+
+    private static void header( Appendable out, String name, String type, String help ) throws IOException {
+        out.append( "# HELP " ).append( name ).append( ' ' ).append( help ).append( '\n' );
+        out.append( "# TYPE " ).append( name ).append( ' ' ).append( type ).append( '\n' );
+    }
+
+    private static void summary( Appendable out, String name, String labels, LatencyHistogram histogram ) throws IOException {
+        String prefix = null == labels ? "" : labels + ",";
+        for( double q : QUANTILES )
+            sample( out, name, prefix + "quantile=\"" + q + "\"", seconds( histogram.valueAtQuantile( q ) ) );
+        sample( out, name + "_sum", labels, seconds( histogram.sumNanos() ) );
+        sample( out, name + "_count", labels, histogram.count() );
+    }
+
+    private static void sample( Appendable out, String name, String labels, double value ) throws IOException {
+        out.append( name );
+        if( null != labels )
+            out.append( '{' ).append( labels ).append( '}' );
+        out.append( ' ' ).append( value == Math.rint( value ) && Math.abs( value ) < 1e15 ? Long.toString( (long) value ) : Double.toString( value ) )
+           .append( '\n' );
+    }
+
+    private static double seconds( long nanos ) {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,11 @@
+package com.esp.poller.model;
+
+/**
+ * The final state of an event, as patched back to the logger once all of its tasks are done.
+ */
+public enum EventState {
+    SUCCESS,
+    FAILURE_RETRYABLE,
+    FAILURE_NON_RETRYABLE,
+    PARTIAL
+}
@@ -0,0 +1,7 @@
+package com.esp.poller.model;
+
+/**
+ * One event's state, as it goes to the logger in a bulk patch.
+ */
+public record EventStatePatch(EventSim eventSim, EventState state) {
+}
@@ -11,7 +11,9 @@ import lombok.ToString;
 @ToString
 public class EventTaskDPContext implements EventTaskContext {
     private final EventSim eventSim;
+    @Getter
     private final String assetId;
+    @Getter
     private final String ruleId;
     @Getter
     @Setter
@@ -0,0 +1,33 @@
+package com.esp.poller.ownership;
+
+import com.esp.poller.model.EventSim;
+
+/**
+ * Which events this poller instance is allowed to fetch, when several instances share the logger. The poller only fetches the events it owns, and
+ * tells the ownership when it takes on an event and when the event's state is in the logger, so an event's owner is never switched while the event
+ * is in flight. {@link #ALL} owns every event, for a poller that has the logger to itself.
+ */
+public interface EventOwnership {
+    EventOwnership ALL = eventSim -> true;
+
+    boolean owns( EventSim eventSim );
+
+    /**
+     * Whether there are any events this instance is allowed to fetch at the moment, e.g. false while it holds no partitions.
+     */
+    default boolean ownsAny() {
+        return true;
+    }
+
+    /**
+     * The poller has taken the event on.
+     */
+    default void eventStarted( EventSim eventSim ) {
+    }
+
+    /**
+     * The event's state was patched to the logger, it's no longer in flight.
+     */
+    default void eventDone( EventSim eventSim ) {
+    }
+}
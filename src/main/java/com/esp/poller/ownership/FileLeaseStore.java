@@ -0,0 +1,148 @@
+package com.esp.poller.ownership;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A LeaseStore in a file, for poller instances on the same host, or on hosts that share a file system with working locks. Every operation locks the
+ * file, reads the table, changes it and writes it back, which is a few hundred bytes for a few dozen partitions, so this is fine for a lease renewal
+ * every few seconds and not much more.
+ * <p>
+ * The file has a line per lease, "lease partition expiresAtMillis owner", and a line per instance, "member expiresAtMillis instance".
+ */
+public class FileLeaseStore implements LeaseStore {
+    // a file lock is held by the whole JVM, two stores on the same file in one JVM have to take turns before they take it
+    private static final Map<Path, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final Clock clock;
+    private final ReentrantLock localLock;
+
+    public FileLeaseStore( Path path ) {
+        this( path, Clock.systemUTC() );
+    }
+
+    public FileLeaseStore( Path path, Clock clock ) {
+        this.path = path.toAbsolutePath().normalize();
+        this.clock = clock;
+        this.localLock = LOCAL_LOCKS.computeIfAbsent( this.path, p -> new ReentrantLock() );
+    }
+
+    @Override
+    public boolean tryAcquire( int partition, String owner, Duration ttl ) {
+        return update( table -> table.tryAcquire( partition, owner, ttl ) );
+    }
+
+    @Override
+    public void release( int partition, String owner ) {
+        update( table -> {
+            table.release( partition, owner );
+            return null;
+        } );
+    }
+
+    @Override
+    public Map<Integer, Lease> leases() {
+        return update( LeaseTable::leases );
+    }
+
+    @Override
+    public void heartbeat( String instance, Duration ttl ) {
+        update( table -> {
+            table.expire();
+            table.heartbeat( instance, ttl );
+            return null;
+        } );
+    }
+
+    @Override
+    public void leave( String instance ) {
+        update( table -> {
+            table.leave( instance );
+            return null;
+        } );
+    }
+
+    @Override
+    public Set<String> instances() {
+        return update( LeaseTable::instances );
+    }
+
+    /**
+     * Runs the operation on the table in the file, and writes the table back, under the file's lock.
+     *
+     * @throws UncheckedIOException if the file can't be read or written
+     */
+    private <T> T update( Function<LeaseTable, T> operation ) {
+        localLock.lock();
+        try( FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+             FileLock ignored = channel.lock() ) {
+            ByteBuffer content = ByteBuffer.allocate( (int) channel.size() );
+            while( content.hasRemaining() )
+                if( channel.read( content ) < 0 )
+                    break;
+            String before = new String( content.array(), 0, content.position(), StandardCharsets.UTF_8 );
+            LeaseTable table = parse( before );
+
+            T result = operation.apply( table );
+
+            String after = format( table );
+            if( !after.equals( before ) ) {
+                channel.truncate( 0 );
+                channel.write( ByteBuffer.wrap( after.getBytes( StandardCharsets.UTF_8 ) ), 0 );
+                channel.force( false );
+            }
+            return result;
+        } catch( IOException e ) {
+            throw new UncheckedIOException( "Failed to update the leases in " + path, e );
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    private LeaseTable parse( String content ) throws IOException {
+        LeaseTable table = new LeaseTable( clock );
+        for( String line : content.split( "\n" ) ) {
+            if( line.isBlank() )
+                continue;
+            try {
+                // the owner or instance comes last, it's whatever is left of the line
+                if( line.startsWith( "lease " ) ) {
+                    String[] fields = line.split( " ", 4 );
+                    int partition = Integer.parseInt( fields[1] );
+                    table.leases.put( partition, new Lease( partition, fields[3], Long.parseLong( fields[2] ) ) );
+                } else if( line.startsWith( "member " ) ) {
+                    String[] fields = line.split( " ", 3 );
+                    table.members.put( fields[2], Long.parseLong( fields[1] ) );
+                } else {
+                    throw new IOException( "Unknown line in " + path + ": " + line );
+                }
+            } catch( RuntimeException e ) {
+                throw new IOException( "Malformed line in " + path + ": " + line, e );
+            }
+        }
+        return table;
+    }
+
+    private static String format( LeaseTable table ) {
+        StringBuilder content = new StringBuilder();
+        for( Lease lease : table.leases.values() )
+            content.append( "lease " ).append( lease.partition() ).append( ' ' ).append( lease.expiresAtMillis() ).append( ' ' ).append( lease.owner() )
+                   .append( '\n' );
+        table.members.forEach( ( instance, expiresAt ) -> content.append( "member " ).append( expiresAt ).append( ' ' ).append( instance ).append( '\n' ) );
+        return content.toString();
+    }
+}
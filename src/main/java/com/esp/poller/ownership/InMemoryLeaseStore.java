@@ -0,0 +1,74 @@
+package com.esp.poller.ownership;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A LeaseStore for poller instances in the same JVM, e.g. in tests, or to split one process's work between pollers.
+ */
+public class InMemoryLeaseStore implements LeaseStore {
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock
+    private final LeaseTable table;
+
+    public InMemoryLeaseStore() {
+        this( Clock.systemUTC() );
+    }
+
+    public InMemoryLeaseStore( Clock clock ) {
+        this.table = new LeaseTable( clock );
+    }
+
+    @Override
+    public boolean tryAcquire( int partition, String owner, Duration ttl ) {
+        return locked( () -> table.tryAcquire( partition, owner, ttl ) );
+    }
+
+    @Override
+    public void release( int partition, String owner ) {
+        locked( () -> {
+            table.release( partition, owner );
+            return null;
+        } );
+    }
+
+    @Override
+    public Map<Integer, Lease> leases() {
+        return locked( table::leases );
+    }
+
+    @Override
+    public void heartbeat( String instance, Duration ttl ) {
+        locked( () -> {
+            table.expire();
+            table.heartbeat( instance, ttl );
+            return null;
+        } );
+    }
+
+    @Override
+    public void leave( String instance ) {
+        locked( () -> {
+            table.leave( instance );
+            return null;
+        } );
+    }
+
+    @Override
+    public Set<String> instances() {
+        return locked( table::instances );
+    }
+
+    private <T> T locked( Supplier<T> operation ) {
+        lock.lock();
+        try {
+            return operation.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.esp.poller.ownership;
+
+/**
+ * An instance's claim on a partition of the events, good until expiresAtMillis unless it's renewed.
+ */
+public record Lease(int partition, String owner, long expiresAtMillis) {
+}
@@ -0,0 +1,47 @@
+package com.esp.poller.ownership;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where the poller instances keep their leases on partitions, and which instances are alive. Every operation is atomic against every other instance
+ * using the same store, that's all LeasedPartitions needs to never have two instances own a partition at the same time.
+ * <p>
+ * Leases and memberships both expire, so an instance that dies without a word loses its partitions once its leases run out, and drops out of the
+ * instances that share the partitions once its membership does. See InMemoryLeaseStore for instances in one JVM and FileLeaseStore for instances on
+ * one host. In production this would be a table in the logger's database, or whatever coordination service is around.
+ */
+public interface LeaseStore {
+    /**
+     * Claims the partition for the owner, if nobody else has an unexpired lease on it, or renews the owner's lease on it.
+     *
+     * @return false if another instance owns the partition
+     */
+    boolean tryAcquire( int partition, String owner, Duration ttl );
+
+    /**
+     * Gives the partition up, if the owner still has it.
+     */
+    void release( int partition, String owner );
+
+    /**
+     * The leases that haven't expired, by partition.
+     */
+    Map<Integer, Lease> leases();
+
+    /**
+     * Announces that the instance is alive, for ttl.
+     */
+    void heartbeat( String instance, Duration ttl );
+
+    /**
+     * The instance is going away, whatever it still owns is released.
+     */
+    void leave( String instance );
+
+    /**
+     * The instances whose heartbeat hasn't expired.
+     */
+    Set<String> instances();
+}
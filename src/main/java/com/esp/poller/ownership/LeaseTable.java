@@ -0,0 +1,76 @@
+package com.esp.poller.ownership;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The leases and memberships of a LeaseStore and the rules for changing them. The stores only add the locking and, for FileLeaseStore, the file.
+ * Not thread safe.
+ */
+final class LeaseTable {
+    private final Clock clock;
+    final Map<Integer, Lease> leases = new TreeMap<>();
+    // instance -> expires at, in millis
+    final Map<String, Long> members = new TreeMap<>();
+
+    LeaseTable( Clock clock ) {
+        this.clock = clock;
+    }
+
+    boolean tryAcquire( int partition, String owner, Duration ttl ) {
+        long now = clock.millis();
+        Lease lease = leases.get( partition );
+        if( null != lease && lease.expiresAtMillis() > now && !lease.owner().equals( owner ) )
+            return false;
+        leases.put( partition, new Lease( partition, owner, now + ttl.toMillis() ) );
+        return true;
+    }
+
+    void release( int partition, String owner ) {
+        Lease lease = leases.get( partition );
+        if( null != lease && lease.owner().equals( owner ) )
+            leases.remove( partition );
+    }
+
+    Map<Integer, Lease> leases() {
+        long now = clock.millis();
+        Map<Integer, Lease> live = new HashMap<>();
+        for( Lease lease : leases.values() )
+            if( lease.expiresAtMillis() > now )
+                live.put( lease.partition(), lease );
+        return live;
+    }
+
+    void heartbeat( String instance, Duration ttl ) {
+        members.put( instance, clock.millis() + ttl.toMillis() );
+    }
+
+    void leave( String instance ) {
+        members.remove( instance );
+        leases.values().removeIf( lease -> lease.owner().equals( instance ) );
+    }
+
+    Set<String> instances() {
+        long now = clock.millis();
+        Set<String> live = new TreeSet<>();
+        members.forEach( ( instance, expiresAt ) -> {
+            if( expiresAt > now )
+                live.add( instance );
+        } );
+        return live;
+    }
+
+    /**
+     * Forgets what has expired, so the table doesn't grow with every instance that ever came and went.
+     */
+    void expire() {
+        long now = clock.millis();
+        leases.values().removeIf( lease -> lease.expiresAtMillis() <= now );
+        members.values().removeIf( expiresAt -> expiresAt <= now );
+    }
+}
@@ -0,0 +1,225 @@
+package com.esp.poller.ownership;
+
+import com.esp.poller.logger.Log;
+import com.esp.poller.model.EventSim;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Splits the events between poller instances. Every event hashes into one of a fixed number of partitions, by its id, and an instance only fetches the
+ * events of the partitions it holds a lease on in the LeaseStore. The leases are renewed every third of their duration, so no two instances ever own
+ * the same partition and throughput grows with the number of instances instead of all of them fetching the same events.
+ * <p>
+ * Every rebalance the instance works out its fair share of the partitions from the instances that are alive, the partitions divided by the instances,
+ * and the first few instances, in id order, take one more for the remainder. An instance with fewer than its share claims free partitions, so the
+ * partitions of an instance that left or died, once its leases ran out, are picked up by the others. An instance with more than its share, because
+ * another one joined, gives up the extras, but not straight away. It stops fetching events for them and keeps renewing their leases until the events
+ * it's already working on for them are patched, and only then releases them, so the next owner never fetches an event that is still in flight here.
+ * If that takes longer than a lease, they're released anyway, an event whose patch failed would otherwise hold the partition forever.
+ * <p>
+ * If the store can't be reached the instance keeps what it has, but owns stops admitting a partition once its last renewal is a lease old, by the local
+ * clock, by which time another instance may have taken it.
+ */
+public class LeasedPartitions implements EventOwnership, AutoCloseable {
+    private static final Log LOG = Log.get( LeasedPartitions.class );
+
+    private final String instanceId;
+    private final int partitions;
+    private final LeaseStore store;
+    private final Duration leaseDuration;
+    private final long leaseNanos;
+    private final ReentrantLock rebalanceLock = new ReentrantLock();
+    // partition -> System.nanoTime() until which the lease is good, for the partitions we fetch events for
+    private final Map<Integer, Long> fetching = new ConcurrentHashMap<>();
+    // partition -> System.nanoTime() when we started giving it up, for the partitions we're waiting to release
+    private final Map<Integer, Long> draining = new ConcurrentHashMap<>();
+    // events started and not done yet, per partition
+    private final AtomicIntegerArray inFlight;
+    private final ScheduledExecutorService renewals = Executors.newSingleThreadScheduledExecutor( r -> {
+        Thread thread = new Thread( r, "partition-leases" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+    private volatile boolean closed;
+
+    /**
+     * @param partitions    the number of partitions the events are hashed into, the same for every instance, and more than there will ever be
+     *                      instances
+     * @param leaseDuration how long a lease is good for without a renewal, which is how long the partitions of an instance that died stay unowned
+     */
+    public LeasedPartitions( String instanceId, int partitions, LeaseStore store, Duration leaseDuration ) {
+        if( partitions < 1 )
+            throw new IllegalArgumentException( "partitions must be at least 1" );
+        if( leaseDuration.toMillis() < 3 )
+            throw new IllegalArgumentException( "leaseDuration must be at least 3ms" );
+
+        this.instanceId = instanceId;
+        this.partitions = partitions;
+        this.store = store;
+        this.leaseDuration = leaseDuration;
+        this.leaseNanos = leaseDuration.toNanos();
+        this.inFlight = new AtomicIntegerArray( partitions );
+    }
+
+    /**
+     * Joins the instances, takes a first share of the partitions and renews it from then on.
+     */
+    public LeasedPartitions start() {
+        rebalance();
+        long period = leaseNanos / 3;
+        renewals.scheduleWithFixedDelay( this::rebalance, period, period, TimeUnit.NANOSECONDS );
+        return this;
+    }
+
+    /**
+     * The partition of an event. The id's hash is mixed first, so ids that only differ in their last digit don't all land next to each other.
+     */
+    public int partitionOf( EventSim eventSim ) {
+        return Math.floorMod( eventSim.eventId().hashCode() * 0x9E3779B9, partitions );
+    }
+
+    @Override
+    public boolean owns( EventSim eventSim ) {
+        Long validUntil = fetching.get( partitionOf( eventSim ) );
+        return null != validUntil && validUntil - System.nanoTime() > 0;
+    }
+
+    @Override
+    public boolean ownsAny() {
+        long now = System.nanoTime();
+        return fetching.values().stream().anyMatch( validUntil -> validUntil - now > 0 );
+    }
+
+    @Override
+    public void eventStarted( EventSim eventSim ) {
+        inFlight.incrementAndGet( partitionOf( eventSim ) );
+    }
+
+    @Override
+    public void eventDone( EventSim eventSim ) {
+        inFlight.decrementAndGet( partitionOf( eventSim ) );
+    }
+
+    /**
+     * The partitions we fetch events for right now.
+     */
+    public Set<Integer> ownedPartitions() {
+        long now = System.nanoTime();
+        Set<Integer> owned = new TreeSet<>();
+        fetching.forEach( ( partition, validUntil ) -> {
+            if( validUntil - now > 0 )
+                owned.add( partition );
+        } );
+        return owned;
+    }
+
+    /**
+     * Renews our leases and moves towards our fair share of the partitions. Runs on its own every third of a lease, see start.
+     */
+    public void rebalance() {
+        rebalanceLock.lock();
+        try {
+            if( closed )
+                return;
+            long now = System.nanoTime();
+            store.heartbeat( instanceId, leaseDuration );
+            List<String> instances = new ArrayList<>( store.instances() );
+            if( !instances.contains( instanceId ) )
+                instances.add( instanceId );
+            instances.sort( null );
+            int index = instances.indexOf( instanceId );
+            int share = partitions / instances.size() + (index < partitions % instances.size() ? 1 : 0);
+
+            renew( now );
+
+            // too many, start giving up the ones at the end
+            while( fetching.size() > share ) {
+                int partition = fetching.keySet().stream().mapToInt( Integer::intValue ).max().orElseThrow();
+                fetching.remove( partition );
+                draining.put( partition, now );
+                LOG.info( "{} Giving up partition {}, {} instances share {} partitions", instanceId, partition, instances.size(), partitions );
+            }
+            releaseDrained( now );
+
+            // too few, claim free ones, each instance starts looking at a different place so they don't all go for the same ones
+            if( fetching.size() < share ) {
+                Map<Integer, Lease> leases = store.leases();
+                int start = index * partitions / instances.size();
+                for( int i = 0; i < partitions && fetching.size() < share; i++ ) {
+                    int partition = (start + i) % partitions;
+                    Lease lease = leases.get( partition );
+                    boolean free = null == lease || lease.owner().equals( instanceId );
+                    if( free && !draining.containsKey( partition ) && store.tryAcquire( partition, instanceId, leaseDuration ) ) {
+                        fetching.put( partition, now + leaseNanos );
+                        LOG.info( "{} Claimed partition {}", instanceId, partition );
+                    }
+                }
+            }
+        } catch( RuntimeException e ) {
+            // keep what we have, owns stops admitting partitions whose lease may have run out
+            LOG.warn( "{} Failed to rebalance the partitions: {}", instanceId, e );
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    private void renew( long now ) {
+        for( Integer partition : new ArrayList<>( fetching.keySet() ) ) {
+            if( store.tryAcquire( partition, instanceId, leaseDuration ) ) {
+                fetching.put( partition, now + leaseNanos );
+            } else {
+                fetching.remove( partition );
+                LOG.warn( "{} Lost partition {}, its lease ran out and another instance took it", instanceId, partition );
+            }
+        }
+        for( Integer partition : new ArrayList<>( draining.keySet() ) )
+            if( !store.tryAcquire( partition, instanceId, leaseDuration ) )
+                draining.remove( partition );
+    }
+
+    private void releaseDrained( long now ) {
+        for( Map.Entry<Integer, Long> entry : new ArrayList<>( draining.entrySet() ) ) {
+            int partition = entry.getKey();
+            boolean drained = inFlight.get( partition ) <= 0;
+            if( drained || now - entry.getValue() > leaseNanos ) {
+                if( !drained )
+                    LOG.warn( "{} Releasing partition {} with {} events still in flight", instanceId, partition, inFlight.get( partition ) );
+                store.release( partition, instanceId );
+                draining.remove( partition );
+            }
+        }
+    }
+
+    /**
+     * Stops renewing, releases every partition and leaves, the other instances pick the partitions up on their next rebalance. Close the pollers
+     * first, so the states of the events they have done are patched.
+     */
+    @Override
+    public void close() {
+        rebalanceLock.lock();
+        try {
+            if( closed )
+                return;
+            closed = true;
+            renewals.shutdownNow();
+            fetching.clear();
+            draining.clear();
+            store.leave( instanceId );
+        } catch( RuntimeException e ) {
+            LOG.warn( "{} Failed to leave, the leases will run out on their own: {}", instanceId, e );
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+}
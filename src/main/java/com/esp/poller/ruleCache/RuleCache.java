@@ -0,0 +1,267 @@
+package com.esp.poller.ruleCache;
+
+import com.esp.poller.exception.RetryableException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared cache of the rule ids for each asset, an index keyed by assetId in front of the rules store.
+ * <ul>
+ *     <li>Single flight: the entry for an asset holds a future of its rules. Concurrent lookups for an asset that isn't loaded yet all wait on the same
+ *     future, so a burst of events for one asset causes one load.</li>
+ *     <li>TTL: an entry older than ttl is reloaded, and the lookup waits for the new rules.</li>
+ *     <li>Refresh ahead: an entry older than refreshAfter (but younger than ttl) is still served, and reloaded in the background on a virtual thread.
+ *     Busy assets never expire on the hot path.</li>
+ *     <li>Size bound: when there are more than maxSize entries, entries are evicted in insertion order, except that an entry that was read since it
+ *     was last looked at gets a second chance (CLOCK). This approximates LRU without keeping an ordered list up to date on every read.</li>
+ * </ul>
+ * A failed load is never cached. Waiting lookups get a RetryableException and the next lookup tries again.
+ * <p>
+ * After a restart the cache can be warm started from a {@link RuleSnapshot} written by the previous run. An asset that isn't cached yet is looked up
+ * in the memory-mapped snapshot before going to the rules store, and its rules are served straight away. They are treated as due for a refresh, so
+ * they get reloaded from the store in the background the next time they're used. Changes pushed by the rules store are applied with put and
+ * invalidate, and take precedence over the snapshot from then on.
+ */
+public class RuleCache {
+    private final RuleLoader loader;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long refreshAfterNanos;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final Queue<String> evictionQueue = new ConcurrentLinkedQueue<>();
+    // the ids in the eviction queue, so an id is never in it twice
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refresher = Executors.newVirtualThreadPerTaskExecutor();
+    private final RuleSnapshot warmStart;
+    // only assets that are in the snapshot, the others have nothing to shadow
+    private final Set<String> changedSinceSnapshot = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder warmStartHits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loadTimeNanos = new LongAdder();
+
+    public RuleCache( RuleLoader loader, int maxSize, Duration ttl, Duration refreshAfter ) {
+        this( loader, maxSize, ttl, refreshAfter, null );
+    }
+
+    /**
+     * @param warmStart snapshot to serve assets from until they've been loaded from the rules store, may be null
+     */
+    public RuleCache( RuleLoader loader, int maxSize, Duration ttl, Duration refreshAfter, RuleSnapshot warmStart ) {
+        if( refreshAfter.compareTo( ttl ) > 0 )
+            throw new IllegalArgumentException( "refreshAfter must not be longer than ttl" );
+
+        this.loader = loader;
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.refreshAfterNanos = refreshAfter.toNanos();
+        this.warmStart = warmStart;
+    }
+
+    /**
+     * The rule ids for the asset. Blocks while the rules are loaded, if they have to be.
+     *
+     * @throws RetryableException if the rules couldn't be loaded
+     */
+    public List<String> getRules( String assetId ) {
+        while( true ) {
+            long now = System.nanoTime();
+            Entry entry = index.get( assetId );
+
+            // a failed load is on its way out of the index, go around and load again
+            if( null != entry && entry.isLoaded() && !entry.rules.isCompletedExceptionally() && now - entry.loadedAtNanos < ttlNanos ) {
+                hits.increment();
+                entry.accessed = true;
+                if( now - entry.loadedAtNanos >= refreshAfterNanos && entry.refreshing.compareAndSet( false, true ) )
+                    refresher.execute( () -> refresh( assetId, entry ) );
+                return await( entry );
+            }
+
+            if( null != entry && !entry.isLoaded() ) {
+                // someone is already loading this asset, wait for them
+                misses.increment();
+                coalesced.increment();
+                return await( entry );
+            }
+
+            if( null == entry && null != warmStart && !changedSinceSnapshot.contains( assetId ) ) {
+                List<String> rules = warmStart.getRules( assetId );
+                if( null != rules ) {
+                    Entry snapshot = new Entry();
+                    snapshot.loadedAtNanos = now - refreshAfterNanos;
+                    snapshot.rules.complete( rules );
+                    if( null != index.putIfAbsent( assetId, snapshot ) )
+                        continue;
+
+                    warmStartHits.increment();
+                    enqueue( assetId );
+                    return rules;
+                }
+            }
+
+            // not cached, or expired. Whoever manages to put their entry in the index does the load, anyone else goes around again and waits for it.
+            Entry loading = new Entry();
+            boolean installed = null == entry ? null == index.putIfAbsent( assetId, loading ) : index.replace( assetId, entry, loading );
+            if( !installed )
+                continue;
+
+            misses.increment();
+            if( null == entry )
+                enqueue( assetId );
+            load( assetId, loading );
+            return await( loading );
+        }
+    }
+
+    /**
+     * Applies a change pushed by the rules store, replacing whatever is cached or in the snapshot for the asset.
+     */
+    public void put( String assetId, List<String> rules ) {
+        shadowSnapshot( assetId );
+        Entry entry = new Entry();
+        entry.loadedAtNanos = System.nanoTime();
+        entry.rules.complete( List.copyOf( rules ) );
+        if( null == index.put( assetId, entry ) )
+            enqueue( assetId );
+    }
+
+    /**
+     * Drops the asset, the next lookup goes to the rules store, not the snapshot.
+     */
+    public void invalidate( String assetId ) {
+        shadowSnapshot( assetId );
+        index.remove( assetId );
+    }
+
+    /**
+     * Writes everything that's currently loaded to a snapshot file, for the next start. Assets that are only in the current warm start snapshot and
+     * were never used are left out.
+     */
+    public void writeSnapshot( Path path ) throws IOException {
+        Map<String, List<String>> rulesByAsset = new HashMap<>();
+        index.forEach( ( assetId, entry ) -> {
+            if( entry.isLoaded() && !entry.rules.isCompletedExceptionally() )
+                rulesByAsset.put( assetId, entry.rules.join() );
+        } );
+        RuleSnapshot.write( path, rulesByAsset );
+    }
+
+    public RuleCacheStats stats() {
+        long loaded = loads.sum();
+        return new RuleCacheStats( hits.sum(), misses.sum(), warmStartHits.sum(), loaded, loadFailures.sum(), coalesced.sum(), evictions.sum(),
+                                   loaded == 0 ? 0 : loadTimeNanos.sum() / 1_000_000.0 / loaded );
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    private void load( String assetId, Entry entry ) {
+        long start = System.nanoTime();
+        try {
+            List<String> rules = List.copyOf( loader.loadRules( assetId ) );
+            loads.increment();
+            loadTimeNanos.add( System.nanoTime() - start );
+            entry.loadedAtNanos = System.nanoTime();
+            entry.rules.complete( rules );
+        } catch( Exception e ) {
+            loadFailures.increment();
+            index.remove( assetId, entry );
+            entry.rules.completeExceptionally( new RetryableException( "Failed to load rules for asset " + assetId, e ) );
+        }
+    }
+
+    private void refresh( String assetId, Entry stale ) {
+        Entry fresh = new Entry();
+        load( assetId, fresh );
+        // only swap in the fresh rules if the stale entry is still the current one, and keep serving the stale ones if the refresh failed
+        if( fresh.isLoaded() && !fresh.rules.isCompletedExceptionally() )
+            index.replace( assetId, stale, fresh );
+        else
+            stale.refreshing.set( false );
+    }
+
+    private void shadowSnapshot( String assetId ) {
+        if( null != warmStart && null != warmStart.getRules( assetId ) )
+            changedSinceSnapshot.add( assetId );
+    }
+
+    /**
+     * Puts the id of an entry that was just added to the index in the eviction queue, unless it's still in there from an entry that was invalidated
+     * or failed to load.
+     */
+    private void enqueue( String assetId ) {
+        if( queued.add( assetId ) )
+            evictionQueue.add( assetId );
+        evictIfNeeded();
+    }
+
+    /**
+     * Evicts while there are too many entries. The ids of entries that were invalidated or failed to load are dropped from the queue as they come up,
+     * and when they make up most of it they are cleared out even if nothing has to be evicted, so the queue is never much longer than the index.
+     */
+    private void evictIfNeeded() {
+        int stale = Math.max( 0, queued.size() - 2 * maxSize );
+        while( index.size() > maxSize || stale > 0 ) {
+            String assetId = evictionQueue.poll();
+            if( null == assetId )
+                return;
+            // taken out of the set first, an entry added for the id from here on queues it again
+            queued.remove( assetId );
+
+            Entry entry = index.get( assetId );
+            boolean full = index.size() > maxSize;
+            if( null == entry ) {
+                stale--;
+            } else if( full && !entry.accessed ) {
+                if( index.remove( assetId, entry ) )
+                    evictions.increment();
+            } else {
+                // a second chance, or we're only clearing out stale ids and leave it as it is
+                if( full )
+                    entry.accessed = false;
+                if( queued.add( assetId ) )
+                    evictionQueue.add( assetId );
+            }
+        }
+    }
+
+    private static List<String> await( Entry entry ) {
+        try {
+            return entry.rules.join();
+        } catch( CompletionException e ) {
+            throw e.getCause() instanceof RetryableException retryable ? retryable : e;
+        }
+    }
+
+    private static class Entry {
+        final CompletableFuture<List<String>> rules = new CompletableFuture<>();
+        final AtomicBoolean refreshing = new AtomicBoolean( false );
+        volatile long loadedAtNanos;
+        volatile boolean accessed;
+
+        boolean isLoaded() {
+            return rules.isDone();
+        }
+    }
+}
@@ -1,25 +1,59 @@
 package com.esp.poller.ruleCache;
 
+import com.esp.poller.logger.Log;
 import com.esp.poller.model.EventSim;
 import com.esp.poller.model.EventTaskDPContext;
 
-import java.util.stream.IntStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.stream.Stream;
 
 /**
  * Simulated rule cache. Takes an event and returns a stream of EventTaskDPContext objects containing the exploded set of assets and rules for that event
  * that need to be processed by DP.
+ * The rules for each asset come from a shared RuleCache, so the rules store is only hit when an asset isn't cached yet or its rules are due for a
+ * refresh, rather than once per event. One RuleCacheSim should be shared by everything that fetches rules.
  */
 public class RuleCacheSim {
+    private static final Log LOG = Log.get( RuleCacheSim.class );
+
+    private final RuleCache ruleCache;
+
     public RuleCacheSim() {
+        this( new RuleCache( new SimulatedRuleStore(), 100_000, Duration.ofMinutes( 10 ), Duration.ofMinutes( 5 ) ) );
+    }
+
+    public RuleCacheSim( RuleCache ruleCache ) {
+        this.ruleCache = ruleCache;
+    }
+
+    /**
+     * A rule cache that starts warm from the snapshot at the path, if there is one. A missing or unreadable snapshot just means a cold start.
+     */
+    public static RuleCacheSim warmStarted( Path snapshot ) {
+        RuleSnapshot warmStart = null;
+        if( Files.exists( snapshot ) ) {
+            try {
+                warmStart = RuleSnapshot.open( snapshot );
+            } catch( IOException e ) {
+                LOG.warn( "Ignoring rule snapshot {}: {}", snapshot, e );
+            }
+        }
+        return new RuleCacheSim( new RuleCache( new SimulatedRuleStore(), 100_000, Duration.ofMinutes( 10 ), Duration.ofMinutes( 5 ), warmStart ) );
     }
 
     public Stream<EventTaskDPContext> getRules( EventSim eventSim ) {
         // For the purposes of the simulation I'm showing 3 assets per event and 3 rules per asset. So each event generates 9 tasks.
-        // The flatMap does the multiplication by 3.
-        // The mapToObj does the conversion to EventTaskDPContext.
+        // The flatMap does the multiplication by the rules for each asset.
+        // The map does the conversion to EventTaskDPContext.
         return eventSim.assetIds()
                        .stream()
-                       .flatMap( assetId -> IntStream.range( 0, 3 ).mapToObj( i -> new EventTaskDPContext( eventSim, assetId, "rule" + i ) ) );
+                       .flatMap( assetId -> ruleCache.getRules( assetId ).stream().map( ruleId -> new EventTaskDPContext( eventSim, assetId, ruleId ) ) );
+    }
+
+    public RuleCache getRuleCache() {
+        return ruleCache;
     }
 }
@@ -0,0 +1,21 @@
+package com.esp.poller.ruleCache;
+
+/**
+ * Point in time statistics of a RuleCache.
+ *
+ * @param hits               lookups served from the cache, including stale values served while a refresh is running
+ * @param misses             lookups that had to wait for a load, their own or one already in flight
+ * @param warmStartHits      lookups of assets that weren't cached yet, served from the warm start snapshot
+ * @param loads              loads that completed successfully
+ * @param loadFailures       loads that failed
+ * @param coalesced          lookups that joined a load already in flight for the same asset instead of starting their own
+ * @param evictions          entries removed to stay within the size bound
+ * @param averageLoadTimeMillis average time of a successful load
+ */
+public record RuleCacheStats(long hits, long misses, long warmStartHits, long loads, long loadFailures, long coalesced, long evictions,
+                             double averageLoadTimeMillis) {
+    public double hitRate() {
+        long lookups = hits + warmStartHits + misses;
+        return lookups == 0 ? 0 : (double) (hits + warmStartHits) / lookups;
+    }
+}
@@ -0,0 +1,11 @@
+package com.esp.poller.ruleCache;
+
+import java.util.List;
+
+/**
+ * Loads the rule ids for an asset from the rules store. This is the remote call the RuleCache saves us from making for every event.
+ */
+@FunctionalInterface
+public interface RuleLoader {
+    List<String> loadRules( String assetId ) throws Exception;
+}
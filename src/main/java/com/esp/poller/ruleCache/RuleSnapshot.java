@@ -0,0 +1,243 @@
+package com.esp.poller.ruleCache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Compact, read-only snapshot of asset to rule ids, memory-mapped so a freshly started poller has its rules right away instead of loading them one
+ * asset at a time from the rules store.
+ * <p>
+ * Every distinct string (asset ids and rule ids) is stored once, so a rule that applies to thousands of assets costs 4 bytes per asset. The layout is
+ * <pre>
+ * header       magic, version, string count, asset count, string bytes length     (5 ints)
+ * string table offset of each string in the string bytes, plus one for the end    (string count + 1 ints)
+ * asset index  string id of the asset, offset of its rule ids, number of rule ids (3 ints per asset, sorted by the asset's UTF-8 bytes)
+ * rule ids     string ids                                                          (ints)
+ * string bytes all strings, UTF-8, back to back
+ * </pre>
+ * A lookup binary searches the asset index, comparing the asset id against the mapped bytes in place, so nothing is read or decoded for the assets
+ * it passes over. Rule id strings are decoded the first time they're needed and then shared by every asset that has them.
+ * <p>
+ * One MappedByteBuffer limits a snapshot to 2GB, which is a long way off for asset to rule ids.
+ */
+public class RuleSnapshot {
+    private static final int MAGIC = 0x52554C45; // "RULE"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES;
+    private static final int ASSET_ENTRY_BYTES = 3 * Integer.BYTES;
+
+    private final MappedByteBuffer buffer;
+    private final int assetCount;
+    private final int stringTableStart;
+    private final int assetIndexStart;
+    private final int ruleIdsStart;
+    private final int stringBytesStart;
+    private final AtomicReferenceArray<String> decoded;
+
+    private RuleSnapshot( MappedByteBuffer buffer ) throws IOException {
+        if( buffer.capacity() < HEADER_BYTES || buffer.getInt( 0 ) != MAGIC )
+            throw new IOException( "Not a rule snapshot" );
+        if( buffer.getInt( 4 ) != VERSION )
+            throw new IOException( "Unsupported rule snapshot version " + buffer.getInt( 4 ) );
+
+        int stringCount = buffer.getInt( 8 );
+        int assetCount = buffer.getInt( 12 );
+        int stringBytesLength = buffer.getInt( 16 );
+        if( stringCount < 0 || assetCount < 0 || stringBytesLength < 0 )
+            throw new IOException( "Corrupt rule snapshot, negative counts" );
+        // in longs, so a corrupt count can't overflow into something that looks like it fits
+        long assetIndexStart = HEADER_BYTES + (stringCount + 1L) * Integer.BYTES;
+        long ruleIdsStart = assetIndexStart + (long) assetCount * ASSET_ENTRY_BYTES;
+        long stringBytesStart = (long) buffer.capacity() - stringBytesLength;
+        if( ruleIdsStart > stringBytesStart || (stringBytesStart - ruleIdsStart) % Integer.BYTES != 0 )
+            throw new IOException( "Corrupt rule snapshot, its sections don't fit in " + buffer.capacity() + " bytes" );
+
+        this.buffer = buffer;
+        this.assetCount = assetCount;
+        this.stringTableStart = HEADER_BYTES;
+        this.assetIndexStart = (int) assetIndexStart;
+        this.ruleIdsStart = (int) ruleIdsStart;
+        this.stringBytesStart = (int) stringBytesStart;
+        this.decoded = new AtomicReferenceArray<>( stringCount );
+        validate( stringCount, stringBytesLength, (int) ((stringBytesStart - ruleIdsStart) / Integer.BYTES) );
+    }
+
+    /**
+     * Checks every offset and id in the snapshot against the sections they point into, once, so a lookup never reads outside the mapping. A torn or
+     * corrupt file fails here, on open, rather than on the event path.
+     */
+    private void validate( int stringCount, int stringBytesLength, int ruleIdCount ) throws IOException {
+        int previous = 0;
+        for( int i = 0; i <= stringCount; i++ ) {
+            int offset = buffer.getInt( stringTableStart + i * Integer.BYTES );
+            if( offset < previous || offset > stringBytesLength || (i == 0 && offset != 0) )
+                throw new IOException( "Corrupt rule snapshot, string " + i + " is out of bounds" );
+            previous = offset;
+        }
+        if( previous != stringBytesLength )
+            throw new IOException( "Corrupt rule snapshot, the string table doesn't cover the string bytes" );
+
+        for( int i = 0; i < assetCount; i++ ) {
+            int position = assetIndexStart + i * ASSET_ENTRY_BYTES;
+            int stringId = buffer.getInt( position );
+            int ruleOffset = buffer.getInt( position + 4 );
+            int ruleCount = buffer.getInt( position + 8 );
+            if( stringId < 0 || stringId >= stringCount || ruleOffset < 0 || ruleCount < 0 || (long) ruleOffset + ruleCount > ruleIdCount )
+                throw new IOException( "Corrupt rule snapshot, asset " + i + " is out of bounds" );
+        }
+        for( int i = 0; i < ruleIdCount; i++ ) {
+            int stringId = buffer.getInt( ruleIdsStart + i * Integer.BYTES );
+            if( stringId < 0 || stringId >= stringCount )
+                throw new IOException( "Corrupt rule snapshot, rule id " + i + " is out of bounds" );
+        }
+    }
+
+    /**
+     * Maps the snapshot file. The mapping stays valid after the channel is closed.
+     */
+    public static RuleSnapshot open( Path path ) throws IOException {
+        try( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+            return new RuleSnapshot( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ) );
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given rules. It's written to a temporary file next to the target, synced, and moved into place, so a reader never maps
+     * a half written snapshot, not even after a crash.
+     */
+    public static void write( Path path, Map<String, List<String>> rulesByAsset ) throws IOException {
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        byte[][] assets = rulesByAsset.keySet().stream().map( assetId -> assetId.getBytes( StandardCharsets.UTF_8 ) ).toArray( byte[][]::new );
+        Arrays.sort( assets, Arrays::compareUnsigned );
+
+        int[] assetStringIds = new int[assets.length];
+        int[][] ruleStringIds = new int[assets.length][];
+        for( int i = 0; i < assets.length; i++ ) {
+            String assetId = new String( assets[i], StandardCharsets.UTF_8 );
+            assetStringIds[i] = intern( assetId, stringIds, strings );
+            ruleStringIds[i] = rulesByAsset.get( assetId ).stream().mapToInt( ruleId -> intern( ruleId, stringIds, strings ) ).toArray();
+        }
+        int stringBytesLength = strings.stream().mapToInt( bytes -> bytes.length ).sum();
+
+        Path tmp = path.resolveSibling( path.getFileName() + ".tmp" );
+        try( FileChannel channel = FileChannel.open( tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE );
+             DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Channels.newOutputStream( channel ) ) ) ) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( strings.size() );
+            out.writeInt( assets.length );
+            out.writeInt( stringBytesLength );
+
+            int offset = 0;
+            for( byte[] bytes : strings ) {
+                out.writeInt( offset );
+                offset += bytes.length;
+            }
+            out.writeInt( offset );
+
+            int ruleOffset = 0;
+            for( int i = 0; i < assets.length; i++ ) {
+                out.writeInt( assetStringIds[i] );
+                out.writeInt( ruleOffset );
+                out.writeInt( ruleStringIds[i].length );
+                ruleOffset += ruleStringIds[i].length;
+            }
+            for( int[] ruleIds : ruleStringIds )
+                for( int ruleId : ruleIds )
+                    out.writeInt( ruleId );
+            for( byte[] bytes : strings )
+                out.write( bytes );
+            out.flush();
+            channel.force( true );
+        }
+        Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    /**
+     * The rule ids for the asset, or null if the asset isn't in the snapshot.
+     */
+    public List<String> getRules( String assetId ) {
+        int entry = find( assetId.getBytes( StandardCharsets.UTF_8 ) );
+        if( entry < 0 )
+            return null;
+
+        int position = assetIndexStart + entry * ASSET_ENTRY_BYTES;
+        int ruleOffset = buffer.getInt( position + 4 );
+        int ruleCount = buffer.getInt( position + 8 );
+        String[] rules = new String[ruleCount];
+        for( int i = 0; i < ruleCount; i++ )
+            rules[i] = string( buffer.getInt( ruleIdsStart + (ruleOffset + i) * Integer.BYTES ) );
+        return List.of( rules );
+    }
+
+    public int assetCount() {
+        return assetCount;
+    }
+
+    private int find( byte[] key ) {
+        int low = 0;
+        int high = assetCount - 1;
+        while( low <= high ) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare( buffer.getInt( assetIndexStart + mid * ASSET_ENTRY_BYTES ), key );
+            if( cmp < 0 )
+                low = mid + 1;
+            else if( cmp > 0 )
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the mapped string with the key, byte by byte, unsigned, without copying it out of the mapping.
+     */
+    private int compare( int stringId, byte[] key ) {
+        int start = stringBytesStart + buffer.getInt( stringTableStart + stringId * Integer.BYTES );
+        int length = stringBytesStart + buffer.getInt( stringTableStart + (stringId + 1) * Integer.BYTES ) - start;
+        int common = Math.min( length, key.length );
+        for( int i = 0; i < common; i++ ) {
+            int cmp = Byte.compareUnsigned( buffer.get( start + i ), key[i] );
+            if( cmp != 0 )
+                return cmp;
+        }
+        return Integer.compare( length, key.length );
+    }
+
+    private String string( int stringId ) {
+        String string = decoded.get( stringId );
+        if( null == string ) {
+            int start = stringBytesStart + buffer.getInt( stringTableStart + stringId * Integer.BYTES );
+            int end = stringBytesStart + buffer.getInt( stringTableStart + (stringId + 1) * Integer.BYTES );
+            byte[] bytes = new byte[end - start];
+            buffer.get( start, bytes );
+            string = new String( bytes, StandardCharsets.UTF_8 );
+            decoded.compareAndSet( stringId, null, string );
+        }
+        return string;
+    }
+
+    private static int intern( String string, Map<String, Integer> stringIds, List<byte[]> strings ) {
+        return stringIds.computeIfAbsent( string, s -> {
+            strings.add( s.getBytes( StandardCharsets.UTF_8 ) );
+            return strings.size() - 1;
+        } );
+    }
+}
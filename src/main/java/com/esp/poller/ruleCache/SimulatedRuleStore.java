@@ -0,0 +1,16 @@
+package com.esp.poller.ruleCache;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Simulated rules store. For the purposes of the simulation every asset has 3 rules, and loading them takes a little while, like a remote call would.
+ * Put real code here to load the rules for an asset.
+ */
+public class SimulatedRuleStore implements RuleLoader {
+    @Override
+    public List<String> loadRules( String assetId ) throws Exception {
+        Thread.sleep( 20 );
+        return IntStream.range( 0, 3 ).mapToObj( i -> "rule" + i ).toList();
+    }
+}
@@ -1,9 +1,46 @@
 package com.esp.poller.tasks;
 
+import com.esp.poller.executor.Partitioned;
+import com.esp.poller.executor.PriorityClass;
+import com.esp.poller.executor.SchedulingKey;
 import com.esp.poller.model.EventTaskContext;
 
+import java.time.Duration;
+import java.util.List;
 import java.util.concurrent.Callable;
 
-public interface ClientTask extends Callable<EventTaskContext> {
+/**
+ * A call to a downstream service for one part of an event. The partition says which downstream, so the gated executor can run it in that
+ * downstream's bulkhead. The time budget bounds how long the call can hold on to a permit.
+ */
+public interface ClientTask extends Callable<EventTaskContext>, Partitioned {
+    String DP_PARTITION = "dp";
+    String EP_PARTITION = "ep";
+    Duration DEFAULT_TIME_BUDGET = Duration.ofSeconds( 5 );
+
     EventTaskContext getEventTaskContext();
+
+    /**
+     * How long the task may take, from being dispatched until it's done, including its wait at the gate. A task that takes longer is interrupted and
+     * fails as retryable.
+     */
+    default Duration timeBudget() {
+        return DEFAULT_TIME_BUDGET;
+    }
+
+    /**
+     * How the task is scheduled at a fair gate, see WeightedFairGate. By default every task is STANDARD and the tasks of an event share its id as the
+     * fairness key, so the events take turns at the gate and a small event doesn't wait for all the tasks of a big one that came just before it.
+     */
+    default SchedulingKey schedulingKey() {
+        EventTaskContext context = getEventTaskContext();
+        return new SchedulingKey( PriorityClass.STANDARD, null != context && null != context.eventSim() ? context.eventSim().eventId() : null );
+    }
+
+    /**
+     * The tasks of the same event that have to succeed before this one may run. See TaskGraph.
+     */
+    default List<ClientTask> dependencies() {
+        return List.of();
+    }
 }
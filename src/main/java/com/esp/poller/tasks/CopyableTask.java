@@ -0,0 +1,13 @@
+package com.esp.poller.tasks;
+
+/**
+ * A task whose call can be made more than once, at the same time, without the downstream doing anything twice, and which can be copied to do so.
+ * Only CopyableTasks are hedged, see HedgingTaskDispatcher, and only they can share a call with identical tasks, see DeduplicatingTaskDispatcher.
+ * Being idempotent and being copyable go together in one type, so a task can't say it's one without being the other.
+ */
+public interface CopyableTask extends ClientTask {
+    /**
+     * A copy of the task with a fresh context of its own, so a second call can run next to this one without them overwriting each other's result.
+     */
+    CopyableTask copy();
+}
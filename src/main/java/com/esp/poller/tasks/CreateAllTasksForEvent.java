@@ -1,26 +1,73 @@
 package com.esp.poller.tasks;
 
+import com.esp.poller.journal.JournaledEvent;
+import com.esp.poller.journal.TaskRef;
 import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
 import com.esp.poller.model.EventTaskEPContext;
+import com.esp.poller.ruleCache.RuleCacheSim;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
  * Put real code here to create tasks for an event.
+ * The tasks can depend on each other, see ClientTask.dependencies, and are dispatched as a TaskGraph.
  */
 public class CreateAllTasksForEvent implements Function<EventSim, Stream<ClientTask>> {
+    private final FetchRulesForEvent fetchRulesForEvent;
+
+    public CreateAllTasksForEvent( RuleCacheSim ruleCache ) {
+        this.fetchRulesForEvent = new FetchRulesForEvent( ruleCache );
+    }
+
     @Override
     public Stream<ClientTask> apply( EventSim eventSim ) {
-        Stream<ClientTask> dpStream = new FetchRulesForEvent().apply( eventSim );
-
         // this simulates that the event is a process complete event
         if( Math.random() > .5 ) {
-            Stream<ClientTask> epStream = Stream.of( new EPTaskSim( new EventTaskEPContext(
-                    eventSim ) ) );
+            // EP is only told the process is complete once DP has processed every asset of the event
+            List<ClientTask> dpTasks = fetchRulesForEvent.apply( eventSim ).toList();
+            Stream<ClientTask> epStream = Stream.of( new EPTaskSim( new EventTaskEPContext( eventSim ), dpTasks ) );
 
-            return Stream.concat( dpStream, epStream );
+            return Stream.concat( dpTasks.stream(), epStream );
         } else
-            return dpStream;
+            return fetchRulesForEvent.apply( eventSim );
+    }
+
+    /**
+     * Rebuilds the tasks of an event the journal found unfinished, from what was journaled rather than from the rules, which may have changed since.
+     * The tasks that were done already have their result set, the others don't and are what's left to run. The EP task only depends on the DP tasks
+     * that are left, and if one of the done ones failed, the EP task is done too, with that failure, the same as the TaskGraph would have done.
+     */
+    public static List<ClientTask> recreate( JournaledEvent journaled ) {
+        EventSim eventSim = journaled.eventSim();
+        List<ClientTask> dpTasks = new ArrayList<>();
+        List<ClientTask> unfinished = new ArrayList<>();
+        EventTaskContext.Result dpFailure = null;
+        for( TaskRef ref : journaled.tasks() ) {
+            if( !ClientTask.DP_PARTITION.equals( ref.partition() ) )
+                continue;
+            EventTaskContext.Result result = journaled.results().get( ref );
+            DPTaskSim task = new DPTaskSim( new EventTaskDPContext( eventSim, ref.assetId(), ref.ruleId(), result ) );
+            dpTasks.add( task );
+            if( null == result )
+                unfinished.add( task );
+            else if( result != EventTaskContext.Result.SUCCESS && null == dpFailure )
+                dpFailure = result;
+        }
+
+        List<ClientTask> tasks = new ArrayList<>( dpTasks );
+        for( TaskRef ref : journaled.tasks() ) {
+            if( !ClientTask.EP_PARTITION.equals( ref.partition() ) )
+                continue;
+            EventTaskEPContext context = new EventTaskEPContext( eventSim );
+            EventTaskContext.Result result = journaled.results().get( ref );
+            context.setResult( null != result ? result : dpFailure );
+            tasks.add( new EPTaskSim( context, null == context.getResult() ? unfinished : List.of() ) );
+        }
+        return tasks;
     }
 }
@@ -0,0 +1,39 @@
+package com.esp.poller.tasks;
+
+import com.esp.poller.executor.Partitioned;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Simulated multi-item DP call. For the purposes of this simulation, it takes a batch of EventTaskDPContexts, possibly from different events, and sends
+ * them to DP in one request. It returns the same contexts, in the same order, each with its own result set, the way a batch API reports per item.
+ * The real implementation would be a single call to the DP batch endpoint.
+ */
+public record DPBatchTaskSim(List<EventTaskDPContext> contexts, LatencyModel latency) implements Callable<List<EventTaskContext>>, Partitioned {
+
+    public DPBatchTaskSim( List<EventTaskDPContext> contexts ) {
+        this( contexts, LatencyModel.SIMULATED );
+    }
+
+    @Override
+    public List<EventTaskContext> call() throws Exception {
+        // one round-trip for the whole batch
+        latency.await();
+
+        for( EventTaskDPContext context : contexts ) {
+            double rand = Math.random();
+            context.setResult( rand < .02
+                                       ? EventTaskContext.Result.FAILURE_NON_RETRYABLE : rand < .05
+                                       ? EventTaskContext.Result.FAILURE_RETRYABLE : EventTaskContext.Result.SUCCESS );
+        }
+        return List.copyOf( contexts );
+    }
+
+    @Override
+    public String partition() {
+        return ClientTask.DP_PARTITION;
+    }
+}
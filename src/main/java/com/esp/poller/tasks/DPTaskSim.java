@@ -2,24 +2,27 @@ package com.esp.poller.tasks;
 
 import com.esp.poller.exception.NonRetryableException;
 import com.esp.poller.exception.RetryableException;
+import com.esp.poller.logger.Log;
 import com.esp.poller.model.EventTaskContext;
 import com.esp.poller.model.EventTaskDPContext;
 
-import java.util.concurrent.Callable;
-
 /**
  * Simulated DP task implemented as a Callable. For the purposes of this simulation, it takes an EventTaskDPContext and returns an EventTaskContext with the
  * result set.
- * The real implementation would be a call to the DP service.
+ * The real implementation would be a call to the DP service. How long the call takes comes from the LatencyModel.
  */
-public record DPTaskSim(EventTaskDPContext context) implements ClientTask {
+public record DPTaskSim(EventTaskDPContext context, LatencyModel latency) implements CopyableTask {
+    private static final Log LOG = Log.get( DPTaskSim.class );
+
+    public DPTaskSim( EventTaskDPContext context ) {
+        this( context, LatencyModel.SIMULATED );
+    }
 
     @Override
     public EventTaskContext call() throws Exception {
-        int randSleep = (int) (Math.random() * 1000);
-        Thread.sleep( Math.min( Math.max( randSleep, 300 ), 600 ) );
+        latency.await();
         context.setResult( EventTaskContext.Result.SUCCESS );
-//        System.out.println( "DP task completed: " + context );
+        LOG.debug( "DP task completed: {}", context );
 
         if( Math.random() < .02 ) {
             throw new NonRetryableException( "Simulated non-retryable failure!!!" );
@@ -31,8 +34,21 @@ public record DPTaskSim(EventTaskDPContext context) implements ClientTask {
         return context;
     }
 
+    @Override
+    public String partition() {
+        return DP_PARTITION;
+    }
+
     @Override
     public EventTaskContext getEventTaskContext() {
         return context;
     }
+
+    /**
+     * DP only evaluates the rule for the asset, calling it twice gives the same answer.
+     */
+    @Override
+    public DPTaskSim copy() {
+        return new DPTaskSim( new EventTaskDPContext( context.eventSim(), context.getAssetId(), context.getRuleId() ), latency );
+    }
 }
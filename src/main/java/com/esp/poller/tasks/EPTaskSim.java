@@ -1,26 +1,41 @@
 package com.esp.poller.tasks;
 
+import com.esp.poller.logger.Log;
 import com.esp.poller.model.EventTaskContext;
 import com.esp.poller.model.EventTaskEPContext;
 
-import java.util.concurrent.Callable;
+import java.util.List;
 
 /**
  * Simulated EP task implemented as a Callable. For the purposes of this simulation, it takes an EventTaskDPContext and returns an EventTaskContext with the
  * result set.
- * The real implementation would be a call to the EP service.
+ * The real implementation would be a call to the EP service. How long the call takes comes from the LatencyModel.
+ * The EP call of a process complete event depends on the event's DP tasks, it only runs once all of them have succeeded.
  */
-public record EPTaskSim(EventTaskEPContext context) implements ClientTask {
+public record EPTaskSim(EventTaskEPContext context, LatencyModel latency, List<ClientTask> dependencies) implements ClientTask {
+    private static final Log LOG = Log.get( EPTaskSim.class );
+
+    public EPTaskSim( EventTaskEPContext context ) {
+        this( context, List.of() );
+    }
+
+    public EPTaskSim( EventTaskEPContext context, List<ClientTask> dependencies ) {
+        this( context, LatencyModel.SIMULATED, dependencies );
+    }
 
     @Override
     public EventTaskContext call() throws Exception {
-        int randSleep = (int) (Math.random() * 1000);
-        Thread.sleep( Math.min( Math.max( randSleep, 300 ), 600 ) );
+        latency.await();
         context.setResult( EventTaskContext.Result.SUCCESS );
-//        System.out.println( "EP task completed: " + context );
+        LOG.debug( "EP task completed: {}", context );
         return context;
     }
 
+    @Override
+    public String partition() {
+        return EP_PARTITION;
+    }
+
     @Override
     public EventTaskContext getEventTaskContext() {
         return context;
@@ -0,0 +1,123 @@
+package com.esp.poller.tasks;
+
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventState;
+import com.esp.poller.model.EventTaskContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Aggregates the results of an event's tasks as they come in, instead of waiting for all of them with allOf and then grouping the results into a map
+ * of lists just to count them. Each task's result bumps a counter for its Result and counts down the tasks that are left. The task that lands last
+ * runs onComplete, on its own thread, which then reads the counts.
+ * <p>
+ * Failed contexts are kept, for whatever follows up on them, on a linked stack that only allocates a node per failure. An event where everything
+ * succeeded costs the aggregator and its counters and nothing else.
+ * <p>
+ * Every task has to be reported exactly once, with complete. A context without a result is counted as FAILURE_RETRYABLE, since we don't know that it
+ * succeeded.
+ */
+public class EventAggregator {
+    private static final EventTaskContext.Result[] RESULTS = EventTaskContext.Result.values();
+
+    private final EventSim eventSim;
+    private final int tasks;
+    private final long startedNanos = System.nanoTime();
+    private final Consumer<EventAggregator> onComplete;
+    private final AtomicInteger remaining;
+    private final AtomicIntegerArray counts = new AtomicIntegerArray( RESULTS.length );
+    private final AtomicReference<Failed> failed = new AtomicReference<>();
+
+    private record Failed(EventTaskContext context, Failed next) {
+    }
+
+    public EventAggregator( EventSim eventSim, int tasks, Consumer<EventAggregator> onComplete ) {
+        if( tasks < 1 )
+            throw new IllegalArgumentException( "An event needs at least one task to aggregate" );
+
+        this.eventSim = eventSim;
+        this.tasks = tasks;
+        this.onComplete = onComplete;
+        this.remaining = new AtomicInteger( tasks );
+    }
+
+    /**
+     * Reports the result of one of the event's tasks. The last one runs onComplete before this returns.
+     */
+    public void complete( EventTaskContext context ) {
+        EventTaskContext.Result result = null != context && null != context.getResult()
+                ? context.getResult() : EventTaskContext.Result.FAILURE_RETRYABLE;
+        counts.incrementAndGet( result.ordinal() );
+        if( result != EventTaskContext.Result.SUCCESS && null != context ) {
+            Failed head;
+            do {
+                head = failed.get();
+            } while( !failed.compareAndSet( head, new Failed( context, head ) ) );
+        }
+
+        // every count and failure above happens before the decrement, so the last task sees them all
+        int left = remaining.decrementAndGet();
+        if( left == 0 )
+            onComplete.accept( this );
+        else if( left < 0 )
+            throw new IllegalStateException( eventSim.eventId() + " got more results than its " + tasks + " tasks" );
+    }
+
+    public EventSim eventSim() {
+        return eventSim;
+    }
+
+    public int tasks() {
+        return tasks;
+    }
+
+    /**
+     * System.nanoTime() when the aggregator was created, which is when the event's tasks were dispatched.
+     */
+    public long startedNanos() {
+        return startedNanos;
+    }
+
+    public int count( EventTaskContext.Result result ) {
+        return counts.get( result.ordinal() );
+    }
+
+    /**
+     * Whether every task of the event ended with the given result.
+     */
+    public boolean all( EventTaskContext.Result result ) {
+        return count( result ) == tasks;
+    }
+
+    /**
+     * The state of the event as a whole: SUCCESS, FAILURE_RETRYABLE or FAILURE_NON_RETRYABLE when all its tasks ended that way, PARTIAL otherwise.
+     */
+    public EventState state() {
+        if( all( EventTaskContext.Result.SUCCESS ) )
+            return EventState.SUCCESS;
+        if( all( EventTaskContext.Result.FAILURE_RETRYABLE ) )
+            return EventState.FAILURE_RETRYABLE;
+        if( all( EventTaskContext.Result.FAILURE_NON_RETRYABLE ) )
+            return EventState.FAILURE_NON_RETRYABLE;
+        return EventState.PARTIAL;
+    }
+
+    public boolean isComplete() {
+        return remaining.get() <= 0;
+    }
+
+    /**
+     * The contexts of the tasks that failed, most recent first. Builds the list when asked, so only call it when there is something to follow up.
+     */
+    public List<EventTaskContext> failed() {
+        List<EventTaskContext> contexts = new ArrayList<>( tasks - count( EventTaskContext.Result.SUCCESS ) );
+        for( Failed node = failed.get(); null != node; node = node.next() )
+            contexts.add( node.context() );
+        return contexts;
+    }
+}
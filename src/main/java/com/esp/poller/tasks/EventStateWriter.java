@@ -0,0 +1,93 @@
+package com.esp.poller.tasks;
+
+import com.esp.poller.dispatch.RetryPolicy;
+import com.esp.poller.executor.Batcher;
+import com.esp.poller.logger.Log;
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventState;
+import com.esp.poller.model.EventStatePatch;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes event states back to the logger behind the events' backs. submit only adds the state to the pending batch and returns, so completing an
+ * event never waits for the logger. A batch goes out as one bulk patch when it reaches maxBatchSize, or when its first state has waited maxLinger,
+ * whichever comes first, with the same Batcher DP tasks are batched with.
+ * <p>
+ * Patches run on virtual threads. A patch that fails is retried with the RetryPolicy's backoff, and once it runs out of attempts its events are left
+ * as they are in the logger, which hands them out again on a later poll.
+ */
+public class EventStateWriter implements AutoCloseable {
+    private static final Log LOG = Log.get( EventStateWriter.class );
+
+    private final Consumer<List<EventStatePatch>> patchCall;
+    private final RetryPolicy retryPolicy;
+    private final ExecutorService patchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Batcher<EventStatePatch> batcher;
+
+    public EventStateWriter( Consumer<List<EventStatePatch>> patchCall, int maxBatchSize, Duration maxLinger, RetryPolicy retryPolicy ) {
+        this.patchCall = patchCall;
+        this.retryPolicy = retryPolicy;
+        this.batcher = new Batcher<>( "event-state-linger", maxBatchSize, maxLinger, this::send );
+    }
+
+    /**
+     * Queues the event's state for the next bulk patch. Doesn't block on the logger. Once the writer is closed the state isn't patched, the logger
+     * hands the event out again.
+     */
+    public void submit( EventSim eventSim, EventState state ) {
+        if( !batcher.add( new EventStatePatch( eventSim, state ) ) )
+            LOG.debug( "{} Not patching {}, the writer is closed", eventSim.eventId(), state );
+    }
+
+    /**
+     * Sends what is pending now, without waiting for the batch to fill up or linger.
+     */
+    public void flush() {
+        batcher.flush();
+    }
+
+    /**
+     * Sends what is pending and waits for the patches in flight, including their retries, to finish.
+     */
+    @Override
+    public void close() {
+        batcher.close();
+        patchExecutor.close();
+    }
+
+    private void send( List<EventStatePatch> batch ) {
+        patchExecutor.execute( () -> patch( batch ) );
+    }
+
+    // Runs on its own virtual thread, so the backoff can simply sleep. The thread is kept until the patch succeeds or gives up, which lets close
+    // wait for retries as well.
+    private void patch( List<EventStatePatch> batch ) {
+        for( int attempts = 1; ; attempts++ ) {
+            try {
+                patchCall.accept( batch );
+                LOG.debug( "Patched the state of {} events", batch.size() );
+                return;
+            } catch( RuntimeException e ) {
+                if( !retryPolicy.canRetry( attempts ) ) {
+                    LOG.error( "Giving up patching the state of {} events after {} attempts: {}", batch.size(), attempts, e );
+                    return;
+                }
+                LOG.warn( "Patching the state of {} events failed, retrying: {}", batch.size(), e );
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep( retryPolicy.delayMillis( attempts ) );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                LOG.error( "Interrupted while retrying the patch of {} events", batch.size() );
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.esp.poller.tasks;
+
+import com.esp.poller.model.EventSim;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of how many tasks an event actually turns into, so the poller can fetch as many events as will fill the gate instead of assuming every
+ * event is 10 tasks.
+ * <p>
+ * The fan-out is tracked per partition (DP, EP) and per asset, since the number of DP tasks grows with the number of assets on the event. Each event
+ * that goes through CreateAllTasksForEvent updates an exponentially weighted moving average of tasks per asset for every partition. Projecting an
+ * event is then its number of assets times that average.
+ */
+public class FanOutEstimator {
+    private static final double ALPHA = 0.05;
+
+    private final Map<String, Double> tasksPerAsset = new ConcurrentHashMap<>();
+
+    /**
+     * @param initialTasksPerAsset the estimate per partition until events have been measured
+     */
+    public FanOutEstimator( Map<String, Double> initialTasksPerAsset ) {
+        tasksPerAsset.putAll( initialTasksPerAsset );
+    }
+
+    /**
+     * Records the tasks created for one event.
+     */
+    public void record( EventSim eventSim, List<ClientTask> tasks ) {
+        Map<String, Integer> counts = new HashMap<>();
+        for( String partition : tasksPerAsset.keySet() )
+            counts.put( partition, 0 );
+        for( ClientTask task : tasks )
+            counts.merge( task.partition(), 1, Integer::sum );
+
+        double assets = assets( eventSim );
+        counts.forEach( ( partition, count ) -> tasksPerAsset.merge( partition, count / assets, ( old, sample ) -> old + ALPHA * (sample - old) ) );
+    }
+
+    /**
+     * The number of tasks we expect this event to need in the partition.
+     */
+    public double projectedTasks( EventSim eventSim, String partition ) {
+        return assets( eventSim ) * tasksPerAsset.getOrDefault( partition, 0.0 );
+    }
+
+    /**
+     * The most events the permits of the partition can take, that is events with a single asset. Unbounded for a partition events have no tasks in.
+     */
+    public double eventCapacity( String partition, int permits ) {
+        double perAsset = tasksPerAsset.getOrDefault( partition, 0.0 );
+        return perAsset > 0 ? permits / perAsset : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * The fraction of all tasks that land in the partition.
+     */
+    public double share( String partition ) {
+        double total = tasksPerAsset.values().stream().mapToDouble( Double::doubleValue ).sum();
+        return total > 0 ? tasksPerAsset.getOrDefault( partition, 0.0 ) / total : 0;
+    }
+
+    public Set<String> partitions() {
+        return tasksPerAsset.keySet();
+    }
+
+    private static double assets( EventSim eventSim ) {
+        // an event without assets still costs something, and must never project to nothing or we'd fetch without end
+        return Math.max( 1, eventSim.assetIds().size() );
+    }
+}
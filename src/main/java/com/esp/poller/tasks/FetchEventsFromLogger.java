@@ -1,25 +1,75 @@
 package com.esp.poller.tasks;
 
 import com.esp.poller.model.EventSim;
+import com.esp.poller.ownership.EventOwnership;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
  * This is a simulation of fetching events from the logger.
  * For the purposes of the simulation, I'm just generating events.
  * Put real code here to fetch events from the logger.
+ * <p>
+ * The fetch is budget based. It gets the free permits of each partition and keeps taking events, while the tasks the FanOutEstimator projects for them
+ * still fit in every partition. Big events use up the budget faster than small ones.
+ * <p>
+ * When several poller instances share the logger, each one only fetches the events it owns, see EventOwnership. The real fetch would ask the logger
+ * for the owned partitions only, which is why the events that aren't ours don't count against the budget here.
  */
-public class FetchEventsFromLogger implements Function<Integer, Stream<EventSim>> {
+public class FetchEventsFromLogger implements Function<Map<String, Integer>, Stream<EventSim>> {
+    // event ids have to be unique, like the logger's, the EventJournal and the events in flight are keyed by them, and across restarts too
+    private static final AtomicLong NEXT_EVENT_ID = new AtomicLong( System.currentTimeMillis() * 1000 );
+
+    private final FanOutEstimator fanOutEstimator;
+    private final EventOwnership ownership;
+
+    public FetchEventsFromLogger( FanOutEstimator fanOutEstimator ) {
+        this( fanOutEstimator, EventOwnership.ALL );
+    }
+
+    public FetchEventsFromLogger( FanOutEstimator fanOutEstimator, EventOwnership ownership ) {
+        this.fanOutEstimator = fanOutEstimator;
+        this.ownership = ownership;
+    }
+
     @Override
-    public Stream<EventSim> apply( Integer allowedTasks ) {
-        // Put real code here to fetch events from the logger.
+    public Stream<EventSim> apply( Map<String, Integer> permitBudgets ) {
+        Map<String, Double> remaining = new HashMap<>();
+        permitBudgets.forEach( ( partition, permits ) -> remaining.put( partition, (double) permits ) );
+        // the tightest partition bounds the fetch, the same way it bounds allowedTasks, even if fits never says no
+        double eventCapacity = permitBudgets.entrySet().stream()
+                                            .mapToDouble( budget -> fanOutEstimator.eventCapacity( budget.getKey(), budget.getValue() ) )
+                                            .min()
+                                            .orElse( 0 );
+        // an event without any projected tasks should still cost something, so never take more events than a partition has permits
+        int maxEvents = (int) Math.min( eventCapacity, permitBudgets.values().stream().mapToInt( Integer::intValue ).max().orElse( 0 ) );
+
+        if( maxEvents == 0 )
+            return Stream.empty();
+
+        // Put real code here to fetch events from the logger, page by page until the budget is used up.
         // For the purposes of the simulation, I'm just generating events.
-        return IntStream.range( 0, allowedTasks / 10 )
-                        // this is the event
-                        .mapToObj( i -> new EventSim( "event" + i, new ArrayList<>( List.of( "asset1", "asset2", "asset3" ) ) ) );
+        return Stream.generate( () -> new EventSim( "event" + NEXT_EVENT_ID.getAndIncrement(), new ArrayList<>( List.of( "asset1", "asset2", "asset3" ) ) ) )
+                     // without a partition of our own the logger has nothing for us
+                     .takeWhile( eventSim -> ownership.ownsAny() )
+                     // the other instances' events, the logger wouldn't have handed them to us, so they don't count against the budget
+                     .filter( ownership::owns )
+                     .limit( maxEvents )
+                     .takeWhile( eventSim -> fits( eventSim, remaining ) );
+    }
+
+    private boolean fits( EventSim eventSim, Map<String, Double> remaining ) {
+        for( Map.Entry<String, Double> budget : remaining.entrySet() )
+            if( fanOutEstimator.projectedTasks( eventSim, budget.getKey() ) > budget.getValue() )
+                return false;
+
+        remaining.replaceAll( ( partition, permits ) -> permits - fanOutEstimator.projectedTasks( eventSim, partition ) );
+        return true;
     }
 }
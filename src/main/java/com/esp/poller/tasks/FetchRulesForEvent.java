@@ -10,10 +10,17 @@ import java.util.stream.Stream;
  * This is a simulation of fetching rules from the rule cache.
  * For the purposes of the simulation, I'm just generating rules.
  * Put real code here to fetch rules from the rule cache.
+ * The rule cache is shared, don't create one per event.
  */
 public class FetchRulesForEvent implements Function<EventSim, Stream<ClientTask>> {
+    private final RuleCacheSim ruleCache;
+
+    public FetchRulesForEvent( RuleCacheSim ruleCache ) {
+        this.ruleCache = ruleCache;
+    }
+
     @Override
     public Stream<ClientTask> apply( EventSim eventSim ) {
-        return new RuleCacheSim().getRules( eventSim ).map( DPTaskSim::new );
+        return ruleCache.getRules( eventSim ).map( DPTaskSim::new );
     }
 }
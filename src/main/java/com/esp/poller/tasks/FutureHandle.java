@@ -2,37 +2,66 @@ package com.esp.poller.tasks;
 
 import com.esp.poller.exception.NonRetryableException;
 import com.esp.poller.exception.RetryableException;
+import com.esp.poller.logger.Log;
 import com.esp.poller.model.EventTaskContext;
 import com.esp.poller.model.EventTaskErrContext;
 
+import java.util.concurrent.CancellationException;
 import java.util.function.BiFunction;
 
 /**
  * This is a BiFunction that is used to handle the result of a CompletableFuture.
  * It takes an EventTaskContext and a Throwable as parameters and returns an EventTaskContext.
  * It is used to handle the result of a CompletableFuture in a functional way.
+ * <p>
+ * When it's created with the context of the task it handles, a failure is recorded on that context and the context is returned, so whoever looks at
+ * the result still knows which event, asset and rule failed and can retry it. Without a context it falls back to an EventTaskErrContext.
  */
 public class FutureHandle implements BiFunction<EventTaskContext, Throwable, EventTaskContext> {
+    private static final Log LOG = Log.get( FutureHandle.class );
+
+    private final EventTaskContext context;
+
+    public FutureHandle() {
+        this( null );
+    }
+
+    public FutureHandle( EventTaskContext context ) {
+        this.context = context;
+    }
+
     @Override
     public EventTaskContext apply( EventTaskContext result, Throwable e ) {
         // for exceptions, result here will be null!!!
         // but e could also be null. one or the other will be non-null.
         try {
             if( e != null ) {
-                System.err.println( "Task failed (e): " + e );
+                // a cancelled task was given up on on purpose, its event was cancelled or ran out of time
+                if( e instanceof CancellationException || e.getCause() instanceof CancellationException )
+                    LOG.debug( "Task cancelled: {}", e );
+                else
+                    LOG.warn( "Task failed (e): {}", e );
                 if( e.getCause() instanceof RetryableException ) {
-                    result = new EventTaskErrContext( EventTaskContext.Result.FAILURE_RETRYABLE );
+                    result = failed( EventTaskContext.Result.FAILURE_RETRYABLE );
                 } else if( e.getCause() instanceof NonRetryableException ) {
-                    result = new EventTaskErrContext( EventTaskContext.Result.FAILURE_NON_RETRYABLE );
+                    result = failed( EventTaskContext.Result.FAILURE_NON_RETRYABLE );
                 } else {
-                    result = new EventTaskErrContext( EventTaskContext.Result.FAILURE_RETRYABLE );
+                    result = failed( EventTaskContext.Result.FAILURE_RETRYABLE );
                 }
             } else
                 result.setResult( EventTaskContext.Result.SUCCESS );
         } catch( Exception e2 ) {
-            System.err.println( "Task " + "failed (e2): " + e2.getCause().getMessage() );
-            result = new EventTaskErrContext( EventTaskContext.Result.FAILURE_RETRYABLE );
+            LOG.error( "Task failed (e2): {}", e2 );
+            result = failed( EventTaskContext.Result.FAILURE_RETRYABLE );
         }
         return result;
     }
+
+    private EventTaskContext failed( EventTaskContext.Result failure ) {
+        if( null == context )
+            return new EventTaskErrContext( failure );
+
+        context.setResult( failure );
+        return context;
+    }
 }
@@ -0,0 +1,45 @@
+package com.esp.poller.tasks;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a simulated downstream call takes. The simulated tasks ask their LatencyModel how long to wait, instead of sleeping on Math.random
+ * themselves, so tests and benchmarks can plug in no latency, a fixed latency or any distribution they like.
+ */
+@FunctionalInterface
+public interface LatencyModel {
+    /**
+     * The original simulation: a random value between 0 and 1000ms clamped to 300-600ms, so 30% of calls take 300ms, 30% take 600ms and the rest are
+     * spread evenly in between.
+     */
+    LatencyModel SIMULATED = () -> TimeUnit.MILLISECONDS.toNanos( Math.min( Math.max( ThreadLocalRandom.current().nextInt( 1000 ), 300 ), 600 ) );
+
+    LatencyModel NONE = () -> 0;
+
+    /**
+     * @return the latency of the next call, in nanoseconds
+     */
+    long nextNanos();
+
+    /**
+     * Waits out the latency of one call.
+     */
+    default void await() throws InterruptedException {
+        long nanos = nextNanos();
+        if( nanos > 0 )
+            Thread.sleep( Duration.ofNanos( nanos ) );
+    }
+
+    static LatencyModel fixed( Duration latency ) {
+        long nanos = latency.toNanos();
+        return () -> nanos;
+    }
+
+    static LatencyModel uniform( Duration min, Duration max ) {
+        long minNanos = min.toNanos();
+        long maxNanos = max.toNanos();
+        return () -> ThreadLocalRandom.current().nextLong( minNanos, maxNanos + 1 );
+    }
+}
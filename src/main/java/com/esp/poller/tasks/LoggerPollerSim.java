@@ -1,120 +1,454 @@
 package com.esp.poller.tasks;
 
+import com.esp.poller.dispatch.CircuitBreakerPolicy;
+import com.esp.poller.dispatch.CircuitBreakingTaskDispatcher;
+import com.esp.poller.dispatch.DPBatchingTaskDispatcher;
+import com.esp.poller.dispatch.DeduplicatingTaskDispatcher;
+import com.esp.poller.dispatch.GatedTaskDispatcher;
+import com.esp.poller.dispatch.HedgePolicy;
+import com.esp.poller.dispatch.HedgingTaskDispatcher;
+import com.esp.poller.dispatch.RetryPolicy;
+import com.esp.poller.dispatch.RetryingTaskDispatcher;
+import com.esp.poller.dispatch.TaskDispatcher;
+import com.esp.poller.dispatch.TaskGraph;
 import com.esp.poller.executor.GatedVirtualThreadExecutor;
-import com.esp.poller.future.SafeCompletableFuture;
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.jfr.EventAggregationEvent;
+import com.esp.poller.journal.EventJournal;
+import com.esp.poller.journal.JournaledEvent;
+import com.esp.poller.logger.Log;
+import com.esp.poller.metrics.PollerMetrics;
 import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventState;
+import com.esp.poller.model.EventStatePatch;
 import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.ownership.EventOwnership;
+import com.esp.poller.ruleCache.RuleCache;
+import com.esp.poller.ruleCache.RuleCacheSim;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
  * This is a simulation of the poller that polling for events from the logger for processing.
  * For this simulation, each event if 'polls' contains 3 assets.
  * <p>
- * Like the real poller, it checks the number of available permits and submits the number of tasks that can be processed based on a percentage of the
- * available permits, in order to account for the task multiplication.
+ * Like the real poller, it checks the number of available permits and fetches as many events as it projects will fill them. The projection comes from
+ * the FanOutEstimator, which measures how many tasks each event really turned into, in order to account for the task multiplication.
+ * <p>
+ * What the poller is working on goes into an EventJournal: each event it accepts, the result of each of its tasks and the event's state, until the
+ * state is patched. After a restart recover picks up from the journal, so only the tasks that weren't done yet run again.
+ * <p>
+ * When several poller instances share the logger, the EventOwnership decides which events are ours, only those are fetched.
  */
-public class LoggerPollerSim implements Runnable {
+public class LoggerPollerSim implements Runnable, AutoCloseable {
+    private static final Log LOG = Log.get( LoggerPollerSim.class );
+    private static final List<String> PARTITIONS = List.of( ClientTask.DP_PARTITION, ClientTask.EP_PARTITION );
+    // covers a task's own budget a few times over, for its retries
+    private static final Duration EVENT_TIME_BUDGET = Duration.ofSeconds( 30 );
+
     private final GatedVirtualThreadExecutor gatedExecutor;
+    private final TaskDispatcher dispatcher;
+    private final CreateAllTasksForEvent createAllTasksForEvent;
+    private final PollerMetrics metrics;
+    private final EventStateWriter eventStateWriter;
+    private final EventJournal journal;
+    private final EventOwnership ownership;
+    private final ExecutorService subscriberExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    // the scope of every event whose tasks are still running, so the event can be cancelled
+    private final Map<String, TaskScope> inFlight = new ConcurrentHashMap<>();
+    // until we've measured real events, assume 3 rules per asset and an EP task on every other event of 3 assets
+    private final FanOutEstimator fanOutEstimator = new FanOutEstimator( Map.of( ClientTask.DP_PARTITION, 3.0, ClientTask.EP_PARTITION, 0.17 ) );
 
     public LoggerPollerSim( GatedVirtualThreadExecutor gatedExecutor ) {
+        this( gatedExecutor, new PollerMetrics( gatedExecutor ) );
+    }
+
+    public LoggerPollerSim( GatedVirtualThreadExecutor gatedExecutor, PollerMetrics metrics ) {
+        this( gatedExecutor, metrics, EventJournal.NONE );
+    }
+
+    public LoggerPollerSim( GatedVirtualThreadExecutor gatedExecutor, PollerMetrics metrics, EventJournal journal ) {
+        this( gatedExecutor, metrics, new RuleCacheSim(), journal, EventOwnership.ALL );
+    }
+
+    /**
+     * @param ruleCache shared by all the pollers of a service, so an asset's rules are only loaded once
+     */
+    public LoggerPollerSim( GatedVirtualThreadExecutor gatedExecutor, PollerMetrics metrics, RuleCacheSim ruleCache, EventJournal journal,
+                            EventOwnership ownership ) {
+        this( gatedExecutor, defaultDispatcher( gatedExecutor, metrics ), ruleCache, metrics, defaultEventStateWriter( journal, ownership ), journal,
+              ownership );
+    }
+
+    /**
+     * @param eventStateWriter has to tell the journal and the ownership when an event's state was patched, see defaultEventStateWriter
+     */
+    public LoggerPollerSim( GatedVirtualThreadExecutor gatedExecutor, TaskDispatcher dispatcher, RuleCacheSim ruleCache, PollerMetrics metrics,
+                            EventStateWriter eventStateWriter, EventJournal journal, EventOwnership ownership ) {
         this.gatedExecutor = gatedExecutor;
+        this.dispatcher = dispatcher;
+        this.createAllTasksForEvent = new CreateAllTasksForEvent( ruleCache );
+        this.metrics = metrics;
+        this.eventStateWriter = eventStateWriter;
+        this.journal = journal;
+        this.ownership = ownership;
+        addRuleCacheCounters( metrics, ruleCache.getRuleCache() );
+    }
+
+    /**
+     * DP tasks are coalesced into batches of up to 50, from any event, before they go through the gate. DP tasks for the same asset and rule that are
+     * in flight at the same time, from different events, share one call. A DP task that is slower than 95% of the recent ones is hedged with a single
+     * call, within a budget of 5% extra calls. Each downstream has a circuit breaker in front of it, so while it is down its tasks fail fast instead
+     * of taking permits. Failed tasks are retried on their own, and go back into a batch when they do.
+     * <p>
+     * The dispatchers' counters are added to the metrics.
+     */
+    public static TaskDispatcher defaultDispatcher( GatedVirtualThreadExecutor gatedExecutor, PollerMetrics metrics ) {
+        GatedTaskDispatcher gated = new GatedTaskDispatcher( gatedExecutor );
+        DPBatchingTaskDispatcher batching = new DPBatchingTaskDispatcher( gated, gatedExecutor, 50, Duration.ofMillis( 20 ), DPBatchTaskSim::new );
+        DeduplicatingTaskDispatcher deduplicating = new DeduplicatingTaskDispatcher( batching );
+        HedgingTaskDispatcher hedging = new HedgingTaskDispatcher( deduplicating, gatedExecutor, HedgePolicy.DEFAULT );
+
+        metrics.addCounter( "poller_dedup_calls_total", "Calls made for tasks that can be deduplicated.", deduplicating::calls );
+        metrics.addCounter( "poller_dedup_hits_total", "Tasks that shared a call already in flight for the same asset and rule.", deduplicating::hits );
+        metrics.addCounter( "poller_hedges_started_total", "Second attempts started for slow tasks.", hedging::hedgesStarted );
+        metrics.addCounter( "poller_hedges_won_total", "Second attempts that succeeded before the first one.", hedging::hedgesWon );
+        return new RetryingTaskDispatcher( new CircuitBreakingTaskDispatcher( hedging, CircuitBreakerPolicy.DEFAULT ), RetryPolicy.DEFAULT );
+    }
+
+    /**
+     * The rule cache is shared by the pollers of a service, the counters of the last poller added replace those of the ones before, with the same
+     * values.
+     */
+    private static void addRuleCacheCounters( PollerMetrics metrics, RuleCache ruleCache ) {
+        metrics.addCounter( "poller_rule_cache_hits_total", "Rule lookups served from the cache.", () -> ruleCache.stats().hits() );
+        metrics.addCounter( "poller_rule_cache_misses_total", "Rule lookups that waited for a load.", () -> ruleCache.stats().misses() );
+        metrics.addCounter( "poller_rule_cache_warm_start_hits_total", "Rule lookups served from the warm start snapshot.",
+                            () -> ruleCache.stats().warmStartHits() );
+        metrics.addCounter( "poller_rule_cache_loads_total", "Rules loaded from the rules store.", () -> ruleCache.stats().loads() );
+        metrics.addCounter( "poller_rule_cache_load_failures_total", "Rule loads that failed.", () -> ruleCache.stats().loadFailures() );
+        metrics.addCounter( "poller_rule_cache_coalesced_total", "Rule lookups that joined a load already in flight.",
+                            () -> ruleCache.stats().coalesced() );
+        metrics.addCounter( "poller_rule_cache_evictions_total", "Rule cache entries evicted to stay within the size bound.",
+                            () -> ruleCache.stats().evictions() );
+    }
+
+    /**
+     * Event states are patched to the logger in bulk, up to 200 at a time and at most 50ms after the first one of a batch is done.
+     */
+    public static EventStateWriter defaultEventStateWriter() {
+        return defaultEventStateWriter( EventJournal.NONE, EventOwnership.ALL );
+    }
+
+    /**
+     * The default writer, which also tells the journal and the ownership about every event whose state made it to the logger.
+     */
+    public static EventStateWriter defaultEventStateWriter( EventJournal journal, EventOwnership ownership ) {
+        PatchEventState patchEventState = new PatchEventState();
+        return new EventStateWriter( patches -> {
+            patchEventState.accept( patches );
+            for( EventStatePatch patch : patches ) {
+                journal.patched( patch.eventSim().eventId() );
+                ownership.eventDone( patch.eventSim() );
+            }
+        }, 200, Duration.ofMillis( 50 ), RetryPolicy.DEFAULT );
     }
 
     @Override
     public void run() {
-        // See how many permits are available.
-        int allowedTasks = gatedExecutor.getAvailablePermits();
+        poll();
+    }
+
+    /**
+     * Cancels the tasks of an event that are still waiting or running. Their permits are released right away and they end up FAILURE_RETRYABLE, so
+     * the event completes as usual with whatever its other tasks did.
+     *
+     * @return false if the event isn't in flight
+     */
+    public boolean cancelEvent( String eventId ) {
+        TaskScope scope = inFlight.get( eventId );
+        if( null == scope )
+            return false;
+        scope.cancel();
+        return true;
+    }
+
+    /**
+     * Picks up the events the journal has from before a restart. An event that was done only has its state patched, the others have the tasks that
+     * weren't done yet dispatched again, and complete as usual with the results of the tasks that were. Call this once, before the first poll.
+     * Events that aren't ours any more are left to the instance that owns them now.
+     *
+     * @return the number of events recovered
+     */
+    public int recover() {
+        List<JournaledEvent> journaled = journal.recover();
+        for( JournaledEvent event : journaled ) {
+            EventSim eventSim = event.eventSim();
+            if( !ownership.owns( eventSim ) ) {
+                LOG.debug( "{} Not recovered, another instance owns it now", eventSim.eventId() );
+                journal.released( eventSim.eventId() );
+                continue;
+            }
+            ownership.eventStarted( eventSim );
+            if( null != event.state() ) {
+                LOG.debug( "{} Recovered as done, patching {}", eventSim.eventId(), event.state() );
+                eventStateWriter.submit( eventSim, event.state() );
+                continue;
+            }
+
+            List<ClientTask> tasks = CreateAllTasksForEvent.recreate( event );
+            List<ClientTask> unfinished = new ArrayList<>( tasks.size() );
+            List<EventTaskContext> done = new ArrayList<>( tasks.size() );
+            for( ClientTask task : tasks ) {
+                if( null == task.getEventTaskContext().getResult() )
+                    unfinished.add( task );
+                else
+                    done.add( task.getEventTaskContext() );
+            }
+            LOG.debug( "{} Recovered with {} of {} tasks left to run", eventSim.eventId(), unfinished.size(), tasks.size() );
+            dispatchEvent( eventSim, tasks.size(), done, new TaskGraph( unfinished ) );
+        }
+
+        if( !journaled.isEmpty() )
+            LOG.info( "Recovered {} events from the journal", journaled.size() );
+        return journaled.size();
+    }
+
+    /**
+     * Waits for the events being dispatched, sends the DP tasks still waiting for their batch and stops the dispatchers' threads, then patches the
+     * states of the events that have completed and are still waiting for their batch.
+     */
+    @Override
+    public void close() {
+        subscriberExecutor.close();
+        dispatcher.close();
+        eventStateWriter.close();
+    }
+
+    /**
+     * See how many tasks we have room for. DP and EP each have their own partition in the gate, so this is bounded by whichever one is tightest,
+     * taking into account the share of an event's tasks that go to each partition. An event has about 9 DP tasks but at most one EP task, so an EP
+     * permit is worth a lot more than a DP permit. A batched DP permit carries a whole batch of DP tasks.
+     * A partition whose downstream is down, i.e. its circuit breaker is open, is left out, its tasks fail fast without a permit. So while EP is down DP
+     * keeps going, and only when every partition is down there's no room for anything. Events whose tasks would all hit an open breaker are skipped
+     * by the EventSubscriber and stay in the logger.
+     */
+    public int allowedTasks() {
+        return (int) acceptingPartitions().stream()
+                                          .mapToDouble( p -> permitBudget( p ) / Math.max( fanOutEstimator.share( p ), 0.01 ) )
+                                          .min()
+                                          .orElse( 0 );
+    }
+
+    /**
+     * The partitions whose downstream isn't known to be down.
+     */
+    private List<String> acceptingPartitions() {
+        return PARTITIONS.stream().filter( dispatcher::isAccepting ).toList();
+    }
+
+    /**
+     * The number of tasks the free permits of the partition can carry. When DP tasks are batched, one DP permit carries a whole batch.
+     */
+    private int permitBudget( String partition ) {
+        return gatedExecutor.getAvailablePermits( partition ) * dispatcher.tasksPerPermit( partition );
+    }
+
+    /**
+     * Blocks until allowedTasks reaches the low-water mark or the timeout runs out.
+     *
+     * @return true if there is capacity for a fetch, false on timeout
+     */
+    public boolean awaitCapacity( int lowWaterMark, Duration timeout ) throws InterruptedException {
+        return gatedExecutor.awaitCapacity( this::allowedTasks, lowWaterMark, timeout.toNanos(), TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * Fetches as many events as there is capacity for and submits their tasks.
+     *
+     * @return the number of events fetched
+     */
+    public int poll() {
+        // a partition that is down doesn't limit the fetch, see allowedTasks
+        Map<String, Integer> permitBudgets = acceptingPartitions().stream().collect( Collectors.toMap( p -> p, this::permitBudget ) );
 
-        System.out.println( "Allowed tasks: " + allowedTasks );
+        LOG.debug( "Permit budgets: {}", permitBudgets );
 
         // Here we're simulating getting events from the logger.
-        // For the purposes of this simulation, we'll submit 10% of the available permits because each event has 3 assets and each asset has 3 rules.
-        // The mapToObj does the multiplication by 3 assets, but constructing an EventSim object with three assets.
-        // The flatMap takes the event with 3 assets and calls the rule cache sim to get the set of rules. The result is a stream of 9 EventTaskDPContext
-        // objects.
-        // The flatMap then 'randomly' decides to add an EventTaskEPContext object to the stream.
-        // The result is a stream of 9 or 10 EventTaskContext objects in this simulation.
-        // Next we group the tasks by event id. This lets us submit the tasks for a single event in a batch.
-        Map<String, List<ClientTask>> tasks = new FetchEventsFromLogger().apply( allowedTasks )
-                                                                         // this creates tasks for each event
-                                                                         .flatMap( new CreateAllTasksForEvent() )
-                                                                         .collect( Collectors.groupingBy( t -> t.getEventTaskContext().eventSim().eventId() ) );
-
-        // Now we loop of the entries in the map submit a Runnable to our GatedVirtualThreadExecutor.
-        // This runnable takes the list of tasks for each event that was determined above and submits them to the executor via the map function.
-        // The result of the tasks for each event are then collected into a List of CompletableFuture objects.
-        // The handle function is used to set the result of the CompletableFuture to either SUCCESS or FAILURE.
-        // The handle function is called whether the task completed successfully or not. So we need to check whether the exception is null or not.
-        // This protects us from unhandled exceptions in the tasks.
-
-        tasks.forEach( ( k, v ) -> {
-            // for each event, list pair
-            SafeCompletableFuture.safeHandle( gatedExecutor.runAsync( () -> {
-                List<CompletableFuture<EventTaskContext>> futures = v.stream()
-                                                                     .map( callable -> gatedExecutor.supplyAsync( callable ).handle( new FutureHandle() ) )
-                                                                     .toList();
-
-                // Now, since the code we have here is actually executed in the Runnable submitted, we can wrap the list of CompletableFuture objects we
-                // created
-                // just above in a CompletableFuture.allOf() call and join. THe join here will block until all the futures are done.
-                // Since we protected the list of Callables above using the handle, we're still protected.
-                // Once we get past the join we can determine the course of action based on the results. A clever way to do that is to stream the
-                // list of
-                // futures,
-                // calling map to join each future and then collect the results into a map grouped by the result type. This will give us a Map with;
-                // SUCCESS, FAILURE_RETRYABLE and FAILURE_NON_RETRYABLE keys.  Each key will have a List of EventTaskContext objects that were completed
-                // with
-                // that result type.
-                // This makes it super easy to know whether all tasks were successful or if there were any failures.
-                //
-                System.out.println( k + " Submitted futures: " + futures.size() );
-                CompletableFuture.allOf( futures.toArray( CompletableFuture[]::new ) ).join();
-                System.out.println( k + " All submitted futures are done. Parent is now running." );
-                Map<EventTaskContext.Result, List<EventTaskContext>> results = futures.stream()
-                                                                                      .map( CompletableFuture::join )
-                                                                                      .collect( Collectors.groupingBy( EventTaskContext::getResult ) );
-                System.out.println( k + " Collected results." );
-
-                List<EventTaskContext> success = results.get( EventTaskContext.Result.SUCCESS );
-                List<EventTaskContext> failureRetryable = results.get( EventTaskContext.Result.FAILURE_RETRYABLE );
-                List<EventTaskContext> failureNonRetryable = results.get( EventTaskContext.Result.FAILURE_NON_RETRYABLE );
-                System.out.println( k + " SUCCESS: " + (null != success ? success.size() : 0) );
-                System.out.println( k + " FAILURE_RETRYABLE: " + (null != failureRetryable ? failureRetryable.size() : 0) );
-                System.out.println( k + " FAILURE_NON_RETRYABLE: " + (null != failureNonRetryable ? failureNonRetryable.size() : 0) );
-
-                // Now we can determine the course of action based on the results.
-                // If all tasks were successful, we can call poller to update the status to success.
-                // If all tasks failed, we can call poller to update the status to failed.
-                // If some tasks failed, we can call poller to update the status to partial success.
-                EventSim eventSim;
-                if( null != success && success.size() == futures.size() ) {
-                    System.out.println( k + " All submitted futures are done." );
-                    eventSim = success.getFirst().eventSim();
-                } else if( null != failureRetryable && failureRetryable.size() == futures.size() ) {
-                    System.out.println( k + " All submitted futures are failed, retryable." );
-                    eventSim = failureRetryable.getFirst().eventSim();
-                } else if( null != failureNonRetryable && failureNonRetryable.size() == futures.size() ) {
-                    System.out.println( k + " All submitted futures are failed, non-retryable." );
-                    eventSim = failureNonRetryable.getFirst().eventSim();
-                } else {
-                    System.out.println( k + " Some submitted futures are failed as retryable and non-retryable." );
-                    eventSim = null != success && !success.isEmpty()
-                            ? success.getFirst().eventSim() : null != failureRetryable && !failureRetryable.isEmpty()
-                            ? failureRetryable.getFirst().eventSim() : null != failureNonRetryable && !failureNonRetryable.isEmpty()
-                            ? failureNonRetryable.getFirst().eventSim() : null;
+        // The fetch takes events for as long as the tasks the FanOutEstimator projects for them fit in the free permits of each partition.
+        // Rather than collecting the whole fetch into a map of tasks before submitting anything, each event is published to an EventSubscriber as soon
+        // as the logger hands it over. The subscriber expands it into its tasks and dispatches them straight away, so the first DP call goes out while
+        // the rest of the fetch is still being read, and only one event's tasks are ever held here at a time.
+        // The subscriber only asks for the next event once the gate has capacity for it. Until then the publisher's buffer fills up, and once it's
+        // full submit blocks, which holds the fetch back.
+        EventSubscriber subscriber = new EventSubscriber();
+        try( SubmissionPublisher<EventSim> publisher = new SubmissionPublisher<>( subscriberExecutor, Flow.defaultBufferSize() ) ) {
+            publisher.subscribe( subscriber );
+            new FetchEventsFromLogger( fanOutEstimator, ownership ).apply( permitBudgets ).forEach( publisher::submit );
+        }
+
+        return subscriber.dispatched.join();
+    }
+
+    /**
+     * Takes events one at a time, expands each into its tasks and dispatches them.
+     * The tasks for an event are handed to the dispatcher, which runs them through our GatedVirtualThreadExecutor.
+     * Each task takes a permit while it runs. The event itself does not: there is no parent Runnable sitting on a permit in a join while its children
+     * compete for the same gate. The result of each task is handed to the event's EventAggregator as soon as it's done, and the last one to land
+     * runs completeEvent.
+     * The dispatcher uses FutureHandle to set the result of each task to either SUCCESS or FAILURE, whether the task completed successfully or not,
+     * which protects us from unhandled exceptions in the tasks. Tasks that fail as retryable are retried on their own, with backoff, before the
+     * event completes.
+     * The tasks are dispatched as a TaskGraph, so a task that depends on others waits for them without a permit, and is completed as failed without
+     * running if one of them fails. The aggregator counts every task of the graph either way.
+     * The tasks of an event share a TaskScope with the event's time budget. Each task also has its own budget, so a hung call is interrupted and gives
+     * its permit back instead of holding it forever, and when the event runs out of time whatever is left of it is cancelled.
+     */
+    private class EventSubscriber implements Flow.Subscriber<EventSim> {
+        private final CompletableFuture<Integer> dispatched = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private int count;
+
+        @Override
+        public void onSubscribe( Flow.Subscription subscription ) {
+            this.subscription = subscription;
+            subscription.request( 1 );
+        }
+
+        @Override
+        public void onNext( EventSim eventSim ) {
+            // The flatMap takes the event and calls the rule cache sim to get the set of rules. The result is a stream of EventTaskDPContext objects,
+            // one for each asset and rule.
+            // The flatMap then 'randomly' decides to add an EventTaskEPContext object to the stream.
+            // If the rules can't be had right now the event is skipped, it stays in the logger for the next poll.
+            // The tasks can depend on each other, the EP task of a process complete event only runs once all its DP tasks have succeeded. The
+            // TaskGraph holds it back until then, and doesn't dispatch it at all if one of them fails.
+            List<ClientTask> tasks;
+            TaskGraph graph = null;
+            try {
+                tasks = createAllTasksForEvent.apply( eventSim ).toList();
+                graph = new TaskGraph( tasks );
+                // Measure what the event really turned into, so the next fetch is sized better.
+                fanOutEstimator.record( eventSim, tasks );
+            } catch( RuntimeException e ) {
+                LOG.warn( "{} Failed to create tasks: {}", eventSim.eventId(), e );
+                tasks = List.of();
+            }
+
+            // If every task of the event would only hit an open circuit breaker, there's no point in dispatching it, it stays in the logger.
+            if( !tasks.isEmpty() && tasks.stream().noneMatch( dispatcher::isAccepting ) ) {
+                LOG.debug( "{} Skipped, the downstreams of all its tasks are down", eventSim.eventId() );
+                tasks = List.of();
+            }
+
+            if( !tasks.isEmpty() ) {
+                LOG.debug( "{} Submitted futures: {}", eventSim.eventId(), tasks.size() );
+                journal.accepted( eventSim, tasks );
+                ownership.eventStarted( eventSim );
+                dispatchEvent( eventSim, tasks.size(), List.of(), graph );
+                count++;
+            }
+
+            try {
+                boolean waiting = false;
+                while( !awaitCapacity( 1, Duration.ofSeconds( 1 ) ) ) {
+                    // once per wait, not every second of it
+                    if( !waiting )
+                        LOG.info( "Waiting for capacity to dispatch the next event." );
+                    waiting = true;
                 }
+                subscription.request( 1 );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                subscription.cancel();
+                dispatched.complete( count );
+            }
+        }
+
+        @Override
+        public void onError( Throwable throwable ) {
+            LOG.error( "Event stream failed: {}", throwable );
+            dispatched.complete( count );
+        }
+
+        @Override
+        public void onComplete() {
+            dispatched.complete( count );
+        }
+    }
 
-                //todo: call logger to update the event status.
-                new PatchEventState().accept( eventSim );
-            } ), ( r, ex ) -> {
-                if( null != ex )
-                    System.err.println( "Task failed (ex): " + ex );
-                return null;
-            }, null );
+    /**
+     * Dispatches the graph in a scope of the event's own and aggregates the results of its tasks, along with the results in done, which are for tasks
+     * that were done before a restart. Each task's result goes into the journal as it comes in.
+     */
+    private void dispatchEvent( EventSim eventSim, int tasks, List<EventTaskContext> done, TaskGraph graph ) {
+        String k = eventSim.eventId();
+        TaskScope scope = new TaskScope( EVENT_TIME_BUDGET );
+        inFlight.put( k, scope );
+        EventAggregator aggregator = new EventAggregator( eventSim, tasks, SafeTask.safeConsumer( a -> {
+            scope.close();
+            inFlight.remove( k, scope );
+            completeEvent( a );
+        } ) );
+        done.forEach( aggregator::complete );
+        graph.dispatch( dispatcher, scope, ( task, context ) -> {
+            metrics.recordResult( task.partition(), context.getResult() );
+            journal.taskDone( k, task, context.getResult() );
+            aggregator.complete( context );
         } );
     }
+
+    /**
+     * Runs once all the tasks for an event are done, on the thread of the last task to finish, after it has given its permit back.
+     * The EventAggregator has counted the results by type as they came in: SUCCESS, FAILURE_RETRYABLE and FAILURE_NON_RETRYABLE. That makes it
+     * super easy to know whether all tasks were successful or if there were any failures, without collecting the results first.
+     */
+    private void completeEvent( EventAggregator aggregator ) {
+        EventAggregationEvent aggregationEvent = new EventAggregationEvent();
+        aggregationEvent.begin();
+        metrics.recordEvent( System.nanoTime() - aggregator.startedNanos() );
+
+        String k = aggregator.eventSim().eventId();
+        int succeeded = aggregator.count( EventTaskContext.Result.SUCCESS );
+        int failedRetryable = aggregator.count( EventTaskContext.Result.FAILURE_RETRYABLE );
+        int failedNonRetryable = aggregator.count( EventTaskContext.Result.FAILURE_NON_RETRYABLE );
+        LOG.debug( "{} SUCCESS: {}, FAILURE_RETRYABLE: {}, FAILURE_NON_RETRYABLE: {}", k, succeeded, failedRetryable, failedNonRetryable );
+
+        // Now we can determine the course of action based on the results.
+        // If all tasks were successful, we can call poller to update the status to success.
+        // If all tasks failed, we can call poller to update the status to failed.
+        // If some tasks failed, we can call poller to update the status to partial success.
+        EventState state = aggregator.state();
+        switch( state ) {
+            case SUCCESS -> LOG.debug( "{} All submitted futures are done.", k );
+            case FAILURE_RETRYABLE -> LOG.debug( "{} All submitted futures are failed, retryable.", k );
+            case FAILURE_NON_RETRYABLE -> LOG.debug( "{} All submitted futures are failed, non-retryable.", k );
+            case PARTIAL -> LOG.debug( "{} Some submitted futures are failed as retryable and non-retryable.", k );
+        }
+
+        // The state goes to the logger in a later bulk patch, this doesn't wait for it. The journal has it in the meantime, in case we go down first.
+        journal.completed( k, state );
+        eventStateWriter.submit( aggregator.eventSim(), state );
+
+        aggregationEvent.end();
+        if( aggregationEvent.shouldCommit() ) {
+            aggregationEvent.eventId = k;
+            aggregationEvent.tasks = aggregator.tasks();
+            aggregationEvent.succeeded = succeeded;
+            aggregationEvent.failedRetryable = failedRetryable;
+            aggregationEvent.failedNonRetryable = failedNonRetryable;
+            aggregationEvent.commit();
+        }
+    }
 }
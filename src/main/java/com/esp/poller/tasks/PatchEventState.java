@@ -1,14 +1,31 @@
 package com.esp.poller.tasks;
 
-import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventStatePatch;
 
+import java.time.Duration;
+import java.util.List;
 import java.util.function.Consumer;
 
-public class PatchEventState implements Consumer<EventSim> {
+/**
+ * The bulk patch of event states to the logger, one round trip for the whole list. The EventStateWriter collects the states and calls this.
+ * For the simulation the round trip is a LatencyModel.
+ */
+public class PatchEventState implements Consumer<List<EventStatePatch>> {
+    private final LatencyModel latency;
+
+    public PatchEventState() {
+        this( LatencyModel.uniform( Duration.ofMillis( 5 ), Duration.ofMillis( 20 ) ) );
+    }
+
+    public PatchEventState( LatencyModel latency ) {
+        this.latency = latency;
+    }
+
     @Override
-    public void accept( EventSim eventSim ) {
+    public void accept( List<EventStatePatch> patches ) {
         try {
             // put code here
+            latency.await();
         } catch( Exception e ) {
             throw new RuntimeException( "Error applying function", e );
         }
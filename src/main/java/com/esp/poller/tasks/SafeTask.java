@@ -1,18 +1,23 @@
 package com.esp.poller.tasks;
 
+import com.esp.poller.logger.Log;
+
 import java.util.concurrent.Callable;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class SafeTask {
+    private static final Log LOG = Log.get( SafeTask.class );
+
     public static Runnable safeRunnable( Runnable task ) {
         return () -> {
             try {
                 task.run();
             } catch( Exception e ) {
-                System.out.println( "Task execution failed: " + e );
-                // Could add: circuit breaker, exponential backoff, etc.
+                LOG.error( "Task execution failed: {}", e );
+                // Downstream calls get their circuit breakers and backoff from the TaskDispatcher stack, see CircuitBreakingTaskDispatcher and
+                // RetryingTaskDispatcher.
             }
         };
     }
@@ -22,8 +27,9 @@ public class SafeTask {
             try {
                 return task.call();
             } catch( Exception e ) {
-                System.out.println( "Task execution failed: " + e );
-                // Could add: circuit breaker, exponential backoff, etc.
+                LOG.error( "Task execution failed: {}", e );
+                // Downstream calls get their circuit breakers and backoff from the TaskDispatcher stack, see CircuitBreakingTaskDispatcher and
+                // RetryingTaskDispatcher.
                 return null;
             }
         };
@@ -34,8 +40,9 @@ public class SafeTask {
             try {
                 task.accept( t );
             } catch( Exception e ) {
-                System.out.println( "Task execution failed: " + e );
-                // Could add: circuit breaker, exponential backoff, etc.
+                LOG.error( "Task execution failed: {}", e );
+                // Downstream calls get their circuit breakers and backoff from the TaskDispatcher stack, see CircuitBreakingTaskDispatcher and
+                // RetryingTaskDispatcher.
             }
         };
     }
@@ -45,8 +52,9 @@ public class SafeTask {
             try {
                 return task.get();
             } catch( Exception e ) {
-                System.out.println( "Task execution failed: " + e );
-                // Could add: circuit breaker, exponential backoff, etc.
+                LOG.error( "Task execution failed: {}", e );
+                // Downstream calls get their circuit breakers and backoff from the TaskDispatcher stack, see CircuitBreakingTaskDispatcher and
+                // RetryingTaskDispatcher.
                 return null;
             }
         };
@@ -57,8 +65,9 @@ public class SafeTask {
             try {
                 return task.apply( r );
             } catch( Exception e ) {
-                System.out.println( "Task execution failed: " + e );
-                // Could add: circuit breaker, exponential backoff, etc.
+                LOG.error( "Task execution failed: {}", e );
+                // Downstream calls get their circuit breakers and backoff from the TaskDispatcher stack, see CircuitBreakingTaskDispatcher and
+                // RetryingTaskDispatcher.
                 return null;
             }
         };
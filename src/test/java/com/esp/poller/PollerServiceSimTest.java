@@ -1,8 +1,18 @@
 package com.esp.poller;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 class PollerServiceSimTest {
+    @TempDir
+    Path dir;
+
     @Test
     void testPollerServiceSim() throws InterruptedException {
         PollerServiceSim pollerServiceSim = new PollerServiceSim( 10000 );
@@ -12,4 +22,31 @@ class PollerServiceSimTest {
 
         pollerServiceSim.stop();
     }
+
+    @Test
+    void testPollerServiceSimCapacityDriven() throws InterruptedException {
+        PollerServiceSim pollerServiceSim = new PollerServiceSim( 10000, 1000 );
+        pollerServiceSim.start( new CapacityPollSettings( 1000, Duration.ofMillis( 100 ), Duration.ofSeconds( 5 ) ) );
+
+        Thread.sleep( 6000 );
+
+        pollerServiceSim.stop();
+    }
+
+    @Test
+    void testRuleCacheStartsWarmFromTheLastRunsSnapshot() {
+        Path snapshot = dir.resolve( "rules.snapshot" );
+        PollerServiceSim first = new PollerServiceSim( 10 );
+        first.openRuleSnapshot( snapshot );
+        first.getRuleCache().getRuleCache().getRules( "asset1" );
+        first.applyRuleChange( "asset2", List.of( "rule7" ) );
+        first.stop();
+
+        PollerServiceSim second = new PollerServiceSim( 10 );
+        second.openRuleSnapshot( snapshot );
+        assertEquals( List.of( "rule7" ), second.getRuleCache().getRuleCache().getRules( "asset2" ) );
+        second.getRuleCache().getRuleCache().getRules( "asset1" );
+        assertEquals( 2, second.getRuleCache().getRuleCache().stats().warmStartHits() );
+        second.stop();
+    }
 }
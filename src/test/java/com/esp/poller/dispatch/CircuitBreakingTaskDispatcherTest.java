@@ -0,0 +1,121 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.DPTaskSim;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakingTaskDispatcherTest {
+    private static final CircuitBreakerPolicy POLICY = new CircuitBreakerPolicy( 10, 4, 0.5, Duration.ofMillis( 100 ), 2 );
+
+    /**
+     * A downstream that answers with whatever result it's told to, and counts the calls that reach it.
+     */
+    private static class StubDispatcher implements TaskDispatcher {
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile EventTaskContext.Result result = EventTaskContext.Result.SUCCESS;
+
+        @Override
+        public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+            calls.incrementAndGet();
+            task.getEventTaskContext().setResult( result );
+            return CompletableFuture.completedFuture( task.getEventTaskContext() );
+        }
+    }
+
+    private static ClientTask task( String ruleId ) {
+        return new DPTaskSim( new EventTaskDPContext( new EventSim( "event1", List.of( "asset1" ) ), "asset1", ruleId ) );
+    }
+
+    @Test
+    void testOpensOnFailuresAndFailsFast() {
+        StubDispatcher downstream = new StubDispatcher();
+        CircuitBreakingTaskDispatcher dispatcher = new CircuitBreakingTaskDispatcher( downstream, POLICY );
+
+        downstream.result = EventTaskContext.Result.FAILURE_RETRYABLE;
+        for( int i = 0; i < 4; i++ )
+            dispatcher.dispatch( task( "rule1" ) ).join();
+        assertFalse( dispatcher.isAccepting( ClientTask.DP_PARTITION ) );
+        assertTrue( dispatcher.isAccepting( ClientTask.EP_PARTITION ) );
+
+        EventTaskContext context = dispatcher.dispatch( task( "rule1" ) ).join();
+        assertEquals( EventTaskContext.Result.FAILURE_RETRYABLE, context.getResult() );
+        assertEquals( 4, downstream.calls.get() );
+    }
+
+    @Test
+    void testHalfOpenProbesCloseTheBreaker() throws InterruptedException {
+        StubDispatcher downstream = new StubDispatcher();
+        CircuitBreakingTaskDispatcher dispatcher = new CircuitBreakingTaskDispatcher( downstream, POLICY );
+
+        downstream.result = EventTaskContext.Result.FAILURE_NON_RETRYABLE;
+        for( int i = 0; i < 4; i++ )
+            dispatcher.dispatch( task( "rule1" ) ).join();
+        CircuitBreaker breaker = dispatcher.getBreakers( ClientTask.DP_PARTITION ).iterator().next();
+        assertEquals( CircuitBreaker.State.OPEN, breaker.state() );
+
+        Thread.sleep( 150 );
+        assertTrue( dispatcher.isAccepting( ClientTask.DP_PARTITION ) );
+
+        // the first probe fails, so the breaker opens again
+        dispatcher.dispatch( task( "rule1" ) ).join();
+        assertEquals( CircuitBreaker.State.OPEN, breaker.state() );
+        assertEquals( 5, downstream.calls.get() );
+
+        Thread.sleep( 150 );
+        downstream.result = EventTaskContext.Result.SUCCESS;
+        dispatcher.dispatch( task( "rule1" ) ).join();
+        assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.state() );
+        dispatcher.dispatch( task( "rule1" ) ).join();
+        assertEquals( CircuitBreaker.State.CLOSED, breaker.state() );
+    }
+
+    @Test
+    void testCallFromBeforeTheBreakerOpenedIsNotAProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker( ClientTask.DP_PARTITION, POLICY );
+        long slow = breaker.tryAcquire();
+        for( int i = 0; i < 4; i++ )
+            breaker.onResult( breaker.tryAcquire(), true );
+        assertEquals( CircuitBreaker.State.OPEN, breaker.state() );
+
+        Thread.sleep( 150 );
+        long probe = breaker.tryAcquire();
+        assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.state() );
+
+        // the slow call admitted while it was closed comes back now, only the probe counts
+        breaker.onResult( slow, false );
+        breaker.onResult( probe, false );
+        assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.state() );
+        breaker.onResult( breaker.tryAcquire(), false );
+        assertEquals( CircuitBreaker.State.CLOSED, breaker.state() );
+    }
+
+    @Test
+    void testBreakerPerRule() {
+        StubDispatcher downstream = new StubDispatcher();
+        CircuitBreakingTaskDispatcher dispatcher = new CircuitBreakingTaskDispatcher( downstream, CircuitBreakingTaskDispatcher.byRule(), POLICY );
+
+        downstream.result = EventTaskContext.Result.FAILURE_RETRYABLE;
+        for( int i = 0; i < 4; i++ )
+            dispatcher.dispatch( task( "rule1" ) ).join();
+        downstream.result = EventTaskContext.Result.SUCCESS;
+        dispatcher.dispatch( task( "rule2" ) ).join();
+
+        assertFalse( dispatcher.isAccepting( task( "rule1" ) ) );
+        assertTrue( dispatcher.isAccepting( task( "rule2" ) ) );
+        assertTrue( dispatcher.isAccepting( ClientTask.DP_PARTITION ) );
+        assertEquals( EventTaskContext.Result.SUCCESS, dispatcher.dispatch( task( "rule2" ) ).join().getResult() );
+    }
+}
@@ -0,0 +1,69 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.GatedVirtualThreadExecutor;
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
+import com.esp.poller.tasks.DPTaskSim;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DPBatchingTaskDispatcherTest {
+    private static DPTaskSim task( String eventId ) {
+        return new DPTaskSim( new EventTaskDPContext( new EventSim( eventId, List.of( "asset1" ) ), "asset1", "rule1" ) );
+    }
+
+    @Test
+    void testCancelledItemKeepsItsResultWhenTheBatchFinishes() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        // every item of the batch succeeds, once the test lets it
+        DPBatchingTaskDispatcher dispatcher = new DPBatchingTaskDispatcher( null, new GatedVirtualThreadExecutor( 10 ), 2, Duration.ofSeconds( 10 ),
+                                                                            contexts -> () -> {
+                                                                                started.countDown();
+                                                                                release.await( 5, TimeUnit.SECONDS );
+                                                                                contexts.forEach( c -> c.setResult( EventTaskContext.Result.SUCCESS ) );
+                                                                                return List.copyOf( contexts );
+                                                                            } );
+
+        DPTaskSim cancelled = task( "event1" );
+        DPTaskSim kept = task( "event2" );
+        TaskScope cancelledScope = new TaskScope();
+        CompletableFuture<EventTaskContext> cancelledResult = dispatcher.dispatch( cancelled, cancelledScope );
+        CompletableFuture<EventTaskContext> keptResult = dispatcher.dispatch( kept, new TaskScope() );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+
+        cancelledScope.cancel();
+        assertEquals( EventTaskContext.Result.FAILURE_RETRYABLE, cancelledResult.join().getResult() );
+
+        release.countDown();
+        assertSame( kept.context(), keptResult.join() );
+        assertEquals( EventTaskContext.Result.SUCCESS, kept.context().getResult() );
+        // the batch ran on a copy, it didn't overwrite the result the cancelled event already saw
+        assertEquals( EventTaskContext.Result.FAILURE_RETRYABLE, cancelled.context().getResult() );
+    }
+
+    @Test
+    void testCloseSendsTheLingeringBatchAndRefusesNewTasks() {
+        DPBatchingTaskDispatcher dispatcher = new DPBatchingTaskDispatcher( null, new GatedVirtualThreadExecutor( 10 ), 50, Duration.ofMinutes( 1 ),
+                                                                            contexts -> () -> {
+                                                                                contexts.forEach( c -> c.setResult( EventTaskContext.Result.SUCCESS ) );
+                                                                                return List.copyOf( contexts );
+                                                                            } );
+
+        CompletableFuture<EventTaskContext> lingering = dispatcher.dispatch( task( "event1" ), new TaskScope() );
+        dispatcher.close();
+        assertEquals( EventTaskContext.Result.SUCCESS, lingering.join().getResult() );
+        assertEquals( EventTaskContext.Result.FAILURE_RETRYABLE, dispatcher.dispatch( task( "event2" ), new TaskScope() ).join().getResult() );
+    }
+}
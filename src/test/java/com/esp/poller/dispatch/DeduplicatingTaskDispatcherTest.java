@@ -0,0 +1,96 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.DPTaskSim;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeduplicatingTaskDispatcherTest {
+    /**
+     * Holds every call until the test completes it, and remembers the scope it was made in.
+     */
+    private static class ManualDispatcher implements TaskDispatcher {
+        private final List<ClientTask> calls = new CopyOnWriteArrayList<>();
+        private final List<CompletableFuture<EventTaskContext>> futures = new CopyOnWriteArrayList<>();
+        private final List<TaskScope> scopes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+            CompletableFuture<EventTaskContext> future = new CompletableFuture<>();
+            calls.add( task );
+            futures.add( future );
+            scopes.add( scope );
+            return future;
+        }
+
+        void complete( int call, EventTaskContext.Result result ) {
+            EventTaskContext context = calls.get( call ).getEventTaskContext();
+            context.setResult( result );
+            futures.get( call ).complete( context );
+        }
+    }
+
+    private static ClientTask task( String eventId, String ruleId ) {
+        return new DPTaskSim( new EventTaskDPContext( new EventSim( eventId, List.of( "asset1" ) ), "asset1", ruleId ) );
+    }
+
+    @Test
+    void testIdenticalTasksShareOneCall() {
+        ManualDispatcher downstream = new ManualDispatcher();
+        DeduplicatingTaskDispatcher dispatcher = new DeduplicatingTaskDispatcher( downstream );
+
+        ClientTask first = task( "event1", "rule1" );
+        ClientTask second = task( "event2", "rule1" );
+        CompletableFuture<EventTaskContext> firstResult = dispatcher.dispatch( first );
+        CompletableFuture<EventTaskContext> secondResult = dispatcher.dispatch( second );
+        CompletableFuture<EventTaskContext> otherRule = dispatcher.dispatch( task( "event2", "rule2" ) );
+
+        assertEquals( 2, downstream.calls.size() );
+        assertEquals( 1, dispatcher.hits() );
+        assertEquals( 2, dispatcher.calls() );
+
+        downstream.complete( 0, EventTaskContext.Result.FAILURE_NON_RETRYABLE );
+        assertSame( first.getEventTaskContext(), firstResult.join() );
+        assertSame( second.getEventTaskContext(), secondResult.join() );
+        assertNotSame( firstResult.join(), secondResult.join() );
+        assertEquals( EventTaskContext.Result.FAILURE_NON_RETRYABLE, secondResult.join().getResult() );
+        assertFalse( otherRule.isDone() );
+
+        // the call is done, the next identical task makes a new one
+        dispatcher.dispatch( task( "event3", "rule1" ) );
+        assertEquals( 3, downstream.calls.size() );
+    }
+
+    @Test
+    void testCallIsCancelledOnceAllWaitersAreGone() {
+        ManualDispatcher downstream = new ManualDispatcher();
+        DeduplicatingTaskDispatcher dispatcher = new DeduplicatingTaskDispatcher( downstream );
+
+        try( TaskScope event1 = new TaskScope(); TaskScope event2 = new TaskScope() ) {
+            CompletableFuture<EventTaskContext> first = dispatcher.dispatch( task( "event1", "rule1" ), event1 );
+            CompletableFuture<EventTaskContext> second = dispatcher.dispatch( task( "event2", "rule1" ), event2 );
+            TaskScope callScope = downstream.scopes.getFirst();
+
+            event1.cancel();
+            assertEquals( EventTaskContext.Result.FAILURE_RETRYABLE, first.join().getResult() );
+            assertFalse( callScope.isCancelled() );
+
+            event2.cancel();
+            assertEquals( EventTaskContext.Result.FAILURE_RETRYABLE, second.join().getResult() );
+            assertTrue( callScope.isCancelled() );
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.GatedVirtualThreadExecutor;
+import com.esp.poller.executor.StripedGate;
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.CopyableTask;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HedgingTaskDispatcherTest {
+    private static final HedgePolicy POLICY = new HedgePolicy( 0.5, 1.0, 5, 5 );
+
+    /**
+     * An idempotent task that succeeds straight away when it's called.
+     */
+    private record QuickTask(EventTaskDPContext context) implements CopyableTask {
+        @Override
+        public EventTaskContext call() {
+            context.setResult( EventTaskContext.Result.SUCCESS );
+            return context;
+        }
+
+        @Override
+        public String partition() {
+            return DP_PARTITION;
+        }
+
+        @Override
+        public EventTaskContext getEventTaskContext() {
+            return context;
+        }
+
+        @Override
+        public QuickTask copy() {
+            return new QuickTask( new EventTaskDPContext( context.eventSim(), context.getAssetId(), context.getRuleId() ) );
+        }
+    }
+
+    /**
+     * A downstream that answers quickly until it's told to hang. A hung call only ends when its scope is cancelled.
+     */
+    private static class HangingDispatcher implements TaskDispatcher {
+        private volatile boolean hang;
+        private volatile CompletableFuture<EventTaskContext> hung;
+
+        @Override
+        public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+            if( !hang ) {
+                task.getEventTaskContext().setResult( EventTaskContext.Result.SUCCESS );
+                return CompletableFuture.completedFuture( task.getEventTaskContext() );
+            }
+            CompletableFuture<EventTaskContext> future = new CompletableFuture<>();
+            scope.register( future );
+            hung = future;
+            return future;
+        }
+    }
+
+    private static ClientTask task() {
+        return new QuickTask( new EventTaskDPContext( new EventSim( "event1", List.of( "asset1" ) ), "asset1", "rule1" ) );
+    }
+
+    @Test
+    void testSlowTaskIsHedgedAndTheLoserCancelled() throws Exception {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 10 ).addPartition( ClientTask.DP_PARTITION, new StripedGate( 2 ) );
+        HangingDispatcher downstream = new HangingDispatcher();
+        HedgingTaskDispatcher dispatcher = new HedgingTaskDispatcher( downstream, executor, POLICY );
+
+        // fill the first window, so there is a latency to hedge after
+        for( int i = 0; i < POLICY.windowSize(); i++ )
+            dispatcher.dispatch( task() ).join();
+        assertEquals( 0, dispatcher.hedgesStarted() );
+
+        downstream.hang = true;
+        ClientTask task = task();
+        EventTaskContext context = dispatcher.dispatch( task ).get( 5, TimeUnit.SECONDS );
+
+        // the hedge's result ends up on the task's own context, and the cancelled first attempt doesn't overwrite it
+        assertSame( task.getEventTaskContext(), context );
+        assertEquals( EventTaskContext.Result.SUCCESS, context.getResult() );
+        assertEquals( 1, dispatcher.hedgesStarted() );
+        assertEquals( 1, dispatcher.hedgesWon() );
+        assertTrue( downstream.hung.isCancelled() );
+        assertEquals( EventTaskContext.Result.SUCCESS, task.getEventTaskContext().getResult() );
+    }
+
+    @Test
+    void testNoHedgeWithoutAFreePermit() throws Exception {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 10 ).addPartition( ClientTask.DP_PARTITION, new StripedGate( 1 ) );
+        HangingDispatcher downstream = new HangingDispatcher();
+        HedgingTaskDispatcher dispatcher = new HedgingTaskDispatcher( downstream, executor, POLICY );
+        for( int i = 0; i < POLICY.windowSize(); i++ )
+            dispatcher.dispatch( task() ).join();
+
+        // the only DP permit is taken by the normal traffic
+        CompletableFuture<Void> blocker = new CompletableFuture<>();
+        executor.supplyAsync( ClientTask.DP_PARTITION, blocker::get );
+        while( executor.getAvailablePermits( ClientTask.DP_PARTITION ) > 0 )
+            Thread.onSpinWait();
+
+        downstream.hang = true;
+        try( TaskScope scope = new TaskScope() ) {
+            CompletableFuture<EventTaskContext> result = dispatcher.dispatch( task(), scope );
+            Thread.sleep( 200 );
+            assertEquals( 0, dispatcher.hedgesStarted() );
+
+            // cancelling the event cancels the first attempt as well
+            scope.cancel();
+            assertEquals( EventTaskContext.Result.FAILURE_RETRYABLE, result.get( 5, TimeUnit.SECONDS ).getResult() );
+        }
+        blocker.complete( null );
+    }
+}
@@ -0,0 +1,94 @@
+package com.esp.poller.dispatch;
+
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
+import com.esp.poller.model.EventTaskEPContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.DPTaskSim;
+import com.esp.poller.tasks.EPTaskSim;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TaskGraphTest {
+    private static final EventSim EVENT = new EventSim( "event1", List.of( "asset1", "asset2" ) );
+
+    /**
+     * Holds every task until the test completes it with a result, and remembers the order they were dispatched in.
+     */
+    private static class ManualDispatcher implements TaskDispatcher {
+        private final List<ClientTask> dispatched = new CopyOnWriteArrayList<>();
+        private final Map<ClientTask, CompletableFuture<EventTaskContext>> futures = new ConcurrentHashMap<>();
+
+        @Override
+        public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+            dispatched.add( task );
+            return futures.computeIfAbsent( task, t -> new CompletableFuture<>() );
+        }
+
+        void complete( ClientTask task, EventTaskContext.Result result ) {
+            task.getEventTaskContext().setResult( result );
+            futures.get( task ).complete( task.getEventTaskContext() );
+        }
+    }
+
+    private static ClientTask dp( String assetId ) {
+        return new DPTaskSim( new EventTaskDPContext( EVENT, assetId, "rule1" ) );
+    }
+
+    @Test
+    void testDependentRunsOnceItsUpstreamSucceeded() {
+        ClientTask dp1 = dp( "asset1" );
+        ClientTask dp2 = dp( "asset2" );
+        ClientTask ep = new EPTaskSim( new EventTaskEPContext( EVENT ), List.of( dp1, dp2 ) );
+        ManualDispatcher dispatcher = new ManualDispatcher();
+
+        CompletableFuture<List<EventTaskContext>> all = dispatcher.dispatchAll( List.of( ep, dp1, dp2 ) );
+        assertEquals( List.of( dp1, dp2 ), dispatcher.dispatched );
+
+        dispatcher.complete( dp1, EventTaskContext.Result.SUCCESS );
+        assertFalse( dispatcher.dispatched.contains( ep ) );
+        dispatcher.complete( dp2, EventTaskContext.Result.SUCCESS );
+        assertTrue( dispatcher.dispatched.contains( ep ) );
+
+        dispatcher.complete( ep, EventTaskContext.Result.SUCCESS );
+        assertEquals( EventTaskContext.Result.SUCCESS, all.join().getFirst().getResult() );
+    }
+
+    @Test
+    void testFailedUpstreamShortCircuitsItsDependents() {
+        ClientTask dp1 = dp( "asset1" );
+        ClientTask dp2 = dp( "asset2" );
+        ClientTask ep = new EPTaskSim( new EventTaskEPContext( EVENT ), List.of( dp1, dp2 ) );
+        ManualDispatcher dispatcher = new ManualDispatcher();
+
+        CompletableFuture<List<EventTaskContext>> all = dispatcher.dispatchAll( List.of( dp1, dp2, ep ) );
+        dispatcher.complete( dp1, EventTaskContext.Result.FAILURE_NON_RETRYABLE );
+        assertFalse( all.isDone() );
+        dispatcher.complete( dp2, EventTaskContext.Result.SUCCESS );
+
+        List<EventTaskContext> contexts = all.join();
+        assertFalse( dispatcher.dispatched.contains( ep ) );
+        assertEquals( EventTaskContext.Result.FAILURE_NON_RETRYABLE, contexts.get( 2 ).getResult() );
+        assertEquals( EventTaskContext.Result.SUCCESS, contexts.get( 1 ).getResult() );
+    }
+
+    @Test
+    void testDependencyOutsideTheGraphIsRejected() {
+        ClientTask dp1 = dp( "asset1" );
+        ClientTask ep = new EPTaskSim( new EventTaskEPContext( EVENT ), List.of( dp1 ) );
+
+        assertThrows( IllegalArgumentException.class, () -> new TaskGraph( List.of( ep ) ) );
+    }
+}
@@ -0,0 +1,33 @@
+package com.esp.poller.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdaptiveGateTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos( 1 );
+    private static final long SLOW = TimeUnit.SECONDS.toNanos( 1 );
+
+    @Test
+    void testLimitGrowsByOnePerLimitOfFastTasks() throws InterruptedException {
+        AdaptiveGate gate = new AdaptiveGate( 10, 1, 100, Duration.ofMillis( 100 ) );
+        for( int i = 0; i < 10; i++ )
+            gate.acquire();
+
+        // a limit's worth of fast tasks makes one more permit, not ten, each grows it by a little less than the one before
+        for( int i = 0; i < 11; i++ )
+            gate.onSample( FAST, false );
+        assertEquals( 11, gate.limit() );
+        assertEquals( 1, gate.availablePermits() );
+
+        gate.onSample( SLOW, false );
+        assertEquals( 9, gate.limit() );
+        // the only slow sample per window that counts is the first one
+        gate.onSample( SLOW, true );
+        assertEquals( 9, gate.limit() );
+        assertEquals( 0, gate.availablePermits() );
+    }
+}
@@ -0,0 +1,166 @@
+package com.esp.poller.executor;
+
+import com.esp.poller.exception.TaskTimeoutException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GatedVirtualThreadExecutorTest {
+    @Test
+    void testOverdueTaskIsInterruptedAndReleasesItsPermit() throws InterruptedException {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 1 );
+        CountDownLatch interrupted = new CountDownLatch( 1 );
+
+        CompletableFuture<String> hung = executor.supplyAsync( "default", () -> {
+            try {
+                Thread.sleep( 60_000 );
+            } catch( InterruptedException e ) {
+                interrupted.countDown();
+                throw e;
+            }
+            return "done";
+        }, TaskScope.NONE, Duration.ofMillis( 100 ) );
+
+        CompletionException e = assertThrows( CompletionException.class, hung::join );
+        assertInstanceOf( TaskTimeoutException.class, e.getCause() );
+        assertTrue( interrupted.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( 1, executor.getAvailablePermits() );
+        assertEquals( "next", executor.supplyAsync( "default", () -> "next" ).join() );
+    }
+
+    @Test
+    void testWaitAtTheGateCountsAgainstTheBudget() {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        CompletableFuture<Boolean> holder = executor.supplyAsync( "default", () -> release.await( 5, TimeUnit.SECONDS ) );
+
+        AtomicBoolean ran = new AtomicBoolean();
+        CompletableFuture<Boolean> waiting = executor.supplyAsync( "default", () -> ran.getAndSet( true ), TaskScope.NONE, Duration.ofMillis( 100 ) );
+
+        CompletionException e = assertThrows( CompletionException.class, waiting::join );
+        assertInstanceOf( TaskTimeoutException.class, e.getCause() );
+        release.countDown();
+        holder.join();
+        assertTrue( !ran.get() );
+        assertEquals( 0, executor.getQueuedCount() );
+    }
+
+    @Test
+    void testScopeDeadlineTimesOutTaskWithoutATimerOfItsOwn() {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 1 );
+        try( TaskScope scope = new TaskScope( Duration.ofMillis( 100 ) ) ) {
+            // the task's budget is longer than the scope's, so only the scope's timer is armed
+            CompletableFuture<Object> hung = executor.supplyAsync( "default", () -> {
+                Thread.sleep( 60_000 );
+                return null;
+            }, scope, Duration.ofSeconds( 10 ) );
+
+            CompletionException e = assertThrows( CompletionException.class, hung::join );
+            assertInstanceOf( TaskTimeoutException.class, e.getCause() );
+            assertEquals( 1, executor.getAvailablePermits() );
+        }
+    }
+
+    @Test
+    void testTimedOutFuturesAreNotCompletedOnTheTimerThread() {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 2 );
+        try( TaskScope scope = new TaskScope( Duration.ofMillis( 200 ) ) ) {
+            // one task times out on a timer of its own, the other with its scope
+            CompletableFuture<String> ownTimer = executor.supplyAsync( "default", () -> {
+                Thread.sleep( 60_000 );
+                return null;
+            }, TaskScope.NONE, Duration.ofMillis( 100 ) ).handle( ( r, e ) -> Thread.currentThread().getName() );
+            CompletableFuture<String> scopeTimer = executor.supplyAsync( "default", () -> {
+                Thread.sleep( 60_000 );
+                return null;
+            }, scope, null ).handle( ( r, e ) -> Thread.currentThread().getName() );
+
+            assertNotEquals( "task-deadlines", ownTimer.join() );
+            assertNotEquals( "task-deadlines", scopeTimer.join() );
+        }
+    }
+
+    @Test
+    void testCancellingTheScopeCancelsRunningAndQueuedTasks() throws InterruptedException {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 1 );
+        TaskScope scope = new TaskScope();
+        CountDownLatch started = new CountDownLatch( 1 );
+
+        CompletableFuture<Object> running = executor.supplyAsync( "default", () -> {
+            started.countDown();
+            Thread.sleep( 60_000 );
+            return null;
+        }, scope, null );
+        CompletableFuture<Object> queued = executor.supplyAsync( "default", () -> null, scope, null );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+
+        scope.cancel();
+
+        assertThrows( CancellationException.class, running::join );
+        assertThrows( CancellationException.class, queued::join );
+        assertEquals( 1, executor.getAvailablePermits() );
+        // a task registered after the cancel doesn't run either
+        assertThrows( CancellationException.class, executor.supplyAsync( "default", () -> null, scope, null )::join );
+    }
+
+    @Test
+    void testCancelledTasksDontTellTheAdaptiveGateAnything() throws InterruptedException {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 10 )
+                .addPartition( "adaptive", new AdaptiveGate( 10, 1, 100, Duration.ofSeconds( 1 ) ) );
+
+        // the gate only grows while at least half of it is in use
+        CountDownLatch release = new CountDownLatch( 1 );
+        for( int i = 0; i < 5; i++ )
+            executor.supplyAsync( "adaptive", () -> release.await( 5, TimeUnit.SECONDS ) );
+
+        // a limit's worth of fast samples would grow the limit by one
+        for( int i = 0; i < 20; i++ ) {
+            CountDownLatch started = new CountDownLatch( 1 );
+            CompletableFuture<Object> running = executor.supplyAsync( "adaptive", () -> {
+                started.countDown();
+                Thread.sleep( 60_000 );
+                return null;
+            } );
+            assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+            running.cancel( true );
+        }
+        assertEquals( 10, executor.getLimit( "adaptive" ) );
+        release.countDown();
+    }
+
+    @Test
+    void testObserversSeeTheTasksPartitionWhenItSharesTheDefaultGate() {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 1 );
+        List<String> acquired = new CopyOnWriteArrayList<>();
+        List<String> completed = new CopyOnWriteArrayList<>();
+        executor.addObserver( new TaskObserver() {
+            @Override
+            public void onAcquired( String partition, PriorityClass priorityClass, long waitNanos ) {
+                acquired.add( partition );
+            }
+
+            @Override
+            public void onCompleted( String partition, long runNanos, Throwable failure ) {
+                completed.add( partition );
+            }
+        } );
+
+        executor.supplyAsync( "dp", () -> "done" ).join();
+        assertEquals( List.of( "dp" ), acquired );
+        assertEquals( List.of( "dp" ), completed );
+    }
+}
@@ -0,0 +1,120 @@
+package com.esp.poller.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StripedGateTest {
+    @Test
+    void testNeverMoreThanLimitActive() throws InterruptedException {
+        StripedGate gate = new StripedGate( 16, 4 );
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch( 10_000 );
+
+        try( ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor() ) {
+            for( int i = 0; i < 10_000; i++ ) {
+                executor.execute( () -> {
+                    try {
+                        gate.acquire();
+                        try {
+                            maxActive.accumulateAndGet( active.incrementAndGet(), Math::max );
+                            Thread.yield();
+                            active.decrementAndGet();
+                        } finally {
+                            gate.release();
+                        }
+                    } catch( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                } );
+            }
+            assertTrue( done.await( 30, TimeUnit.SECONDS ) );
+        }
+
+        assertTrue( maxActive.get() <= 16 );
+        assertEquals( 16, gate.availablePermits() );
+    }
+
+    @Test
+    void testWaiterIsWokenByRelease() throws InterruptedException {
+        StripedGate gate = new StripedGate( 1 );
+        gate.acquire();
+
+        CountDownLatch acquired = new CountDownLatch( 1 );
+        Thread waiter = Thread.ofVirtual().start( () -> {
+            try {
+                gate.acquire();
+                acquired.countDown();
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        } );
+
+        Thread.sleep( 50 );
+        assertEquals( 1, acquired.getCount() );
+        gate.release();
+        assertTrue( acquired.await( 5, TimeUnit.SECONDS ) );
+        waiter.join();
+        assertEquals( 0, gate.availablePermits() );
+    }
+
+    @Test
+    void testInterruptedWaiterGivesUp() throws InterruptedException {
+        StripedGate gate = new StripedGate( 1 );
+        gate.acquire();
+
+        AtomicInteger interrupted = new AtomicInteger();
+        Thread waiter = Thread.ofVirtual().start( () -> {
+            try {
+                gate.acquire();
+            } catch( InterruptedException e ) {
+                interrupted.incrementAndGet();
+            }
+        } );
+
+        Thread.sleep( 50 );
+        waiter.interrupt();
+        waiter.join();
+        assertEquals( 1, interrupted.get() );
+
+        gate.release();
+        assertEquals( 1, gate.availablePermits() );
+        Thread.currentThread().interrupt();
+        assertThrows( InterruptedException.class, gate::acquire );
+    }
+
+    @Test
+    void testTryAcquireTimesOutAndPassesTheSignalOn() throws InterruptedException {
+        StripedGate gate = new StripedGate( 1, 1 );
+        gate.acquire();
+
+        long start = System.nanoTime();
+        assertFalse( gate.tryAcquire( 50, TimeUnit.MILLISECONDS ) );
+        assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 50 ) );
+
+        // the timed out waiter must not swallow the next release
+        CountDownLatch acquired = new CountDownLatch( 1 );
+        Thread.ofVirtual().start( () -> {
+            try {
+                if( gate.tryAcquire( 5, TimeUnit.SECONDS ) )
+                    acquired.countDown();
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        } );
+        Thread.sleep( 50 );
+        gate.release();
+        assertTrue( acquired.await( 5, TimeUnit.SECONDS ) );
+    }
+}
@@ -0,0 +1,88 @@
+package com.esp.poller.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class WeightedFairGateTest {
+    /**
+     * Queues a task that takes a permit, notes its name and gives the permit straight back. Returns once the task is waiting at the gate, so the
+     * tasks queue in the order they're started.
+     */
+    private static void queue( ExecutorService executor, WeightedFairGate gate, SchedulingKey key, String name, List<String> granted )
+            throws InterruptedException {
+        int waiting = gate.waiting();
+        executor.execute( () -> {
+            try {
+                gate.acquire( key );
+                granted.add( name );
+                gate.release();
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        } );
+        while( gate.waiting() == waiting )
+            TimeUnit.MILLISECONDS.sleep( 1 );
+    }
+
+    @Test
+    void testKeysTakeTurns() throws InterruptedException {
+        WeightedFairGate gate = new WeightedFairGate( 1 );
+        List<String> granted = new CopyOnWriteArrayList<>();
+        gate.acquire();
+
+        try( ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor() ) {
+            // a big event's tasks are all waiting before the small event comes along
+            for( int i = 0; i < 10; i++ )
+                queue( executor, gate, new SchedulingKey( PriorityClass.STANDARD, "big" ), "big", granted );
+            for( int i = 0; i < 2; i++ )
+                queue( executor, gate, new SchedulingKey( PriorityClass.STANDARD, "small" ), "small", granted );
+            gate.release();
+        }
+
+        assertEquals( List.of( "big", "small", "big", "small", "big" ), granted.subList( 0, 5 ) );
+        assertEquals( 12, granted.size() );
+        assertEquals( 1, gate.availablePermits() );
+    }
+
+    @Test
+    void testClassesShareByWeight() throws InterruptedException {
+        WeightedFairGate gate = new WeightedFairGate( 1 );
+        List<String> granted = new CopyOnWriteArrayList<>();
+        gate.acquire();
+
+        try( ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor() ) {
+            for( int i = 0; i < 18; i++ )
+                queue( executor, gate, new SchedulingKey( PriorityClass.BULK, "bulk" + i ), "bulk", granted );
+            for( int i = 0; i < 18; i++ )
+                queue( executor, gate, new SchedulingKey( PriorityClass.INTERACTIVE, "interactive" + i ), "interactive", granted );
+            gate.release();
+        }
+
+        // 1 bulk for every 8 interactive while both are waiting
+        List<String> firstRounds = granted.subList( 0, 18 );
+        assertEquals( 2, firstRounds.stream().filter( "bulk"::equals ).count() );
+        assertEquals( 16, firstRounds.stream().filter( "interactive"::equals ).count() );
+        assertEquals( 36, granted.size() );
+    }
+
+    @Test
+    void testTimedOutWaiterIsSkipped() throws InterruptedException {
+        WeightedFairGate gate = new WeightedFairGate( 1 );
+        gate.acquire();
+
+        assertFalse( gate.tryAcquire( new SchedulingKey( PriorityClass.INTERACTIVE, "event1" ), 20, TimeUnit.MILLISECONDS ) );
+        assertEquals( 0, gate.waiting() );
+
+        // the permit isn't handed to the waiter that gave up
+        gate.release();
+        assertEquals( 1, gate.availablePermits() );
+    }
+}
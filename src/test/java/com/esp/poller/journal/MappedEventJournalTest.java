@@ -0,0 +1,132 @@
+package com.esp.poller.journal;
+
+import com.esp.poller.model.EventSim;
+import com.esp.poller.model.EventState;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.model.EventTaskDPContext;
+import com.esp.poller.model.EventTaskEPContext;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.CreateAllTasksForEvent;
+import com.esp.poller.tasks.DPTaskSim;
+import com.esp.poller.tasks.EPTaskSim;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedEventJournalTest {
+    private static final Duration SYNC_INTERVAL = Duration.ofMillis( 5 );
+
+    @TempDir
+    Path dir;
+
+    private static List<ClientTask> tasks( EventSim eventSim ) {
+        List<ClientTask> dpTasks = eventSim.assetIds().stream()
+                                           .<ClientTask>map( assetId -> new DPTaskSim( new EventTaskDPContext( eventSim, assetId, "rule1" ) ) )
+                                           .toList();
+        return List.of( dpTasks.get( 0 ), dpTasks.get( 1 ), new EPTaskSim( new EventTaskEPContext( eventSim ), dpTasks ) );
+    }
+
+    @Test
+    void testReopenedJournalResumesUnfinishedTasks() throws Exception {
+        Path path = dir.resolve( "events.journal" );
+        EventSim done = new EventSim( "event1", List.of( "asset1", "asset2" ) );
+        EventSim running = new EventSim( "event2", List.of( "asset1", "asset2" ) );
+        EventSim patched = new EventSim( "event3", List.of( "asset1", "asset2" ) );
+
+        try( MappedEventJournal journal = MappedEventJournal.open( path, 4096, SYNC_INTERVAL ) ) {
+            for( EventSim eventSim : List.of( done, running, patched ) )
+                journal.accepted( eventSim, tasks( eventSim ) );
+            List<ClientTask> runningTasks = tasks( running );
+            journal.taskDone( "event2", runningTasks.get( 0 ), EventTaskContext.Result.SUCCESS );
+            journal.completed( "event1", EventState.PARTIAL );
+            journal.completed( "event3", EventState.SUCCESS );
+            journal.patched( "event3" );
+            journal.sync();
+        }
+
+        try( MappedEventJournal journal = MappedEventJournal.open( path, 4096, SYNC_INTERVAL ) ) {
+            List<JournaledEvent> events = journal.recover();
+            assertEquals( List.of( "event1", "event2" ), events.stream().map( e -> e.eventSim().eventId() ).toList() );
+            assertEquals( EventState.PARTIAL, events.get( 0 ).state() );
+            assertNull( events.get( 1 ).state() );
+
+            // only the second DP task and the EP task that depends on it are left to run
+            List<ClientTask> recreated = CreateAllTasksForEvent.recreate( events.get( 1 ) );
+            assertEquals( 3, recreated.size() );
+            assertEquals( EventTaskContext.Result.SUCCESS, recreated.get( 0 ).getEventTaskContext().getResult() );
+            assertNull( recreated.get( 1 ).getEventTaskContext().getResult() );
+            assertNull( recreated.get( 2 ).getEventTaskContext().getResult() );
+            assertEquals( List.of( recreated.get( 1 ) ), recreated.get( 2 ).dependencies() );
+        }
+    }
+
+    @Test
+    void testTornRecordIsIgnored() throws Exception {
+        Path path = dir.resolve( "events.journal" );
+        EventSim eventSim = new EventSim( "event1", List.of( "asset1", "asset2" ) );
+        List<ClientTask> tasks = tasks( eventSim );
+        int intact;
+        try( MappedEventJournal journal = MappedEventJournal.open( path, 4096, SYNC_INTERVAL ) ) {
+            journal.accepted( eventSim, tasks );
+            journal.taskDone( "event1", tasks.get( 0 ), EventTaskContext.Result.SUCCESS );
+            intact = journal.size();
+            journal.taskDone( "event1", tasks.get( 1 ), EventTaskContext.Result.FAILURE_NON_RETRYABLE );
+        }
+
+        // a crash in the middle of writing the last record leaves part of it behind
+        try( RandomAccessFile file = new RandomAccessFile( path.toFile(), "rw" ) ) {
+            file.seek( intact + 12 );
+            file.write( new byte[]{ 0x7f, 0x7f, 0x7f } );
+        }
+
+        try( MappedEventJournal journal = MappedEventJournal.open( path, 4096, SYNC_INTERVAL ) ) {
+            assertEquals( intact, journal.size() );
+            JournaledEvent event = journal.recover().getFirst();
+            assertEquals( 1, event.results().size() );
+            assertEquals( EventTaskContext.Result.SUCCESS, event.results().get( TaskRef.of( tasks.get( 0 ) ) ) );
+
+            // the journal carries on where the intact records end
+            journal.taskDone( "event1", tasks.get( 1 ), EventTaskContext.Result.SUCCESS );
+        }
+        try( MappedEventJournal journal = MappedEventJournal.open( path, 4096, SYNC_INTERVAL ) ) {
+            assertEquals( 2, journal.recover().getFirst().results().size() );
+        }
+    }
+
+    @Test
+    void testCompactionKeepsOnlyLiveEvents() throws Exception {
+        Path path = dir.resolve( "events.journal" );
+        try( MappedEventJournal journal = MappedEventJournal.open( path, 2048, SYNC_INTERVAL ) ) {
+            for( int i = 0; i < 200; i++ ) {
+                EventSim eventSim = new EventSim( "event" + i, List.of( "asset1", "asset2" ) );
+                List<ClientTask> tasks = tasks( eventSim );
+                journal.accepted( eventSim, tasks );
+                for( ClientTask task : tasks )
+                    journal.taskDone( eventSim.eventId(), task, EventTaskContext.Result.SUCCESS );
+                journal.completed( eventSim.eventId(), EventState.SUCCESS );
+                // every event but the last few is patched
+                if( i < 197 )
+                    journal.patched( eventSim.eventId() );
+                // the sync thread compacts, give it a chance to before the file is full
+                journal.sync();
+            }
+            assertTrue( journal.compactions() > 0 );
+            // the records of all 200 events take about 50KB
+            assertTrue( journal.size() <= 4096 );
+        }
+
+        try( MappedEventJournal journal = MappedEventJournal.open( path, 2048, SYNC_INTERVAL ) ) {
+            List<JournaledEvent> events = journal.recover();
+            assertEquals( List.of( "event197", "event198", "event199" ), events.stream().map( e -> e.eventSim().eventId() ).toList() );
+            events.forEach( event -> assertEquals( 3, event.results().size() ) );
+        }
+    }
+}
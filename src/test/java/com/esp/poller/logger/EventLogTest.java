@@ -0,0 +1,77 @@
+package com.esp.poller.logger;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventLogTest {
+    @Test
+    void testMessagesAreFormattedAndFiltered() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        try( EventLog eventLog = new EventLog( 16, Level.INFO, new PrintStream( out, true ), new PrintStream( err, true ) ) ) {
+            Log log = Log.get( "Test", eventLog );
+            log.debug( "not written {}", 1 );
+            log.info( "{} Submitted futures: {}", "event1", 9 );
+            log.warn( "Task failed: {}", new IllegalStateException( "boom" ) );
+            log.info( "extra {} placeholder {}", "one" );
+            eventLog.flush();
+        }
+
+        String written = out.toString();
+        assertFalse( written.contains( "not written" ) );
+        assertTrue( written.contains( "INFO  [Test]" ) );
+        assertTrue( written.contains( "event1 Submitted futures: 9" ) );
+        assertTrue( written.contains( "extra one placeholder {}" ) );
+        assertTrue( err.toString().contains( "WARN  [Test]" ) );
+        assertTrue( err.toString().contains( "Task failed: java.lang.IllegalStateException: boom" ) );
+    }
+
+    @Test
+    void testMessagesAreDroppedWhenTheRingIsFull() throws InterruptedException {
+        CountDownLatch writing = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        // holds the writer up on its first write, so the ring fills
+        OutputStream stalling = new OutputStream() {
+            @Override
+            public void write( int b ) {
+                write( new byte[] { (byte) b }, 0, 1 );
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len ) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                written.write( b, off, len );
+            }
+        };
+
+        EventLog eventLog = new EventLog( 4, Level.INFO, new PrintStream( stalling ), new PrintStream( written ) );
+        Log log = Log.get( "Test", eventLog );
+        log.info( "first" );
+        writing.await();
+
+        int accepted = 0;
+        for( int i = 0; i < 100; i++ )
+            if( eventLog.log( Level.INFO, "Test", "message {}", 1, i, null, null, null ) )
+                accepted++;
+        release.countDown();
+        eventLog.close();
+
+        assertEquals( 4, accepted );
+        assertEquals( 96, eventLog.dropped() );
+        assertTrue( written.toString().contains( "Dropped 96 messages" ) );
+    }
+}
@@ -0,0 +1,32 @@
+package com.esp.poller.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+    @Test
+    void testBucketsCoverEveryValueWithinThreePercent() {
+        for( long value : new long[] { 0, 1, 31, 32, 33, 1000, 999_999, 1_000_000_007L, Long.MAX_VALUE / 3, Long.MAX_VALUE } ) {
+            int index = LatencyHistogram.indexOf( value );
+            long lowest = LatencyHistogram.lowestValueIn( index );
+            long highest = LatencyHistogram.highestValueIn( index );
+            assertTrue( lowest <= value && value <= highest, value + " not in [" + lowest + ", " + highest + "]" );
+            assertTrue( highest - lowest <= Math.max( 0, lowest / 32 ), "bucket of " + value + " is too wide" );
+        }
+    }
+
+    @Test
+    void testQuantilesOfUniformValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for( long millis = 1; millis <= 1000; millis++ )
+            histogram.record( millis * 1_000_000 );
+
+        assertEquals( 1000, histogram.count() );
+        assertEquals( 500_500L * 1_000_000, histogram.sumNanos() );
+        assertEquals( 500e6, histogram.valueAtQuantile( 0.5 ), 500e6 * 0.04 );
+        assertEquals( 990e6, histogram.valueAtQuantile( 0.99 ), 990e6 * 0.04 );
+        assertEquals( 0, new LatencyHistogram().valueAtQuantile( 0.5 ) );
+    }
+}
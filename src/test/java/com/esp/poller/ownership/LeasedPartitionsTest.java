@@ -0,0 +1,137 @@
+package com.esp.poller.ownership;
+
+import com.esp.poller.model.EventSim;
+import com.esp.poller.tasks.ClientTask;
+import com.esp.poller.tasks.FanOutEstimator;
+import com.esp.poller.tasks.FetchEventsFromLogger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LeasedPartitionsTest {
+    private static final Duration LEASE = Duration.ofSeconds( 30 );
+
+    @TempDir
+    Path dir;
+
+    /**
+     * An event that hashes into the partition.
+     */
+    private static EventSim eventIn( LeasedPartitions ownership, int partition ) {
+        return IntStream.range( 0, 10_000 )
+                        .mapToObj( i -> new EventSim( "event" + i, List.of( "asset1" ) ) )
+                        .filter( eventSim -> ownership.partitionOf( eventSim ) == partition )
+                        .findFirst()
+                        .orElseThrow();
+    }
+
+    @Test
+    void testPartitionsRebalanceAsInstancesJoinAndLeave() {
+        LeaseStore store = new InMemoryLeaseStore();
+        try( LeasedPartitions first = new LeasedPartitions( "poller-a", 8, store, LEASE ).start();
+             LeasedPartitions second = new LeasedPartitions( "poller-b", 8, store, LEASE ) ) {
+            assertEquals( 8, first.ownedPartitions().size() );
+
+            // the second one joins, but everything is taken until the first one gives up its extras
+            second.start();
+            assertTrue( second.ownedPartitions().isEmpty() );
+            first.rebalance();
+            second.rebalance();
+            assertEquals( 4, first.ownedPartitions().size() );
+            assertEquals( 4, second.ownedPartitions().size() );
+            Set<Integer> all = new HashSet<>( first.ownedPartitions() );
+            all.addAll( second.ownedPartitions() );
+            assertEquals( 8, all.size() );
+
+            // every event is owned by exactly one of them
+            for( int i = 0; i < 100; i++ ) {
+                EventSim eventSim = new EventSim( "event" + i, List.of( "asset1" ) );
+                assertTrue( first.owns( eventSim ) ^ second.owns( eventSim ) );
+            }
+
+            second.close();
+            first.rebalance();
+            assertEquals( 8, first.ownedPartitions().size() );
+        }
+    }
+
+    @Test
+    void testEveryInstanceFillsItsOwnBudget() {
+        LeaseStore store = new InMemoryLeaseStore();
+        // 3 DP tasks per asset and no EP, so an event of 3 assets is 9 DP tasks
+        FanOutEstimator fanOut = new FanOutEstimator( Map.of( ClientTask.DP_PARTITION, 3.0 ) );
+        Map<String, Integer> permitBudgets = Map.of( ClientTask.DP_PARTITION, 900 );
+        try( LeasedPartitions first = new LeasedPartitions( "poller-a", 8, store, LEASE ).start();
+             LeasedPartitions second = new LeasedPartitions( "poller-b", 8, store, LEASE ).start();
+             LeasedPartitions third = new LeasedPartitions( "poller-c", 8, store, LEASE ).start() ) {
+            for( LeasedPartitions instance : List.of( first, second, third, first, second, third ) )
+                instance.rebalance();
+
+            // the events of the other instances don't use up the budget, each one fetches as much as its own gate carries
+            for( LeasedPartitions instance : List.of( first, second, third ) ) {
+                List<EventSim> fetched = new FetchEventsFromLogger( fanOut, instance ).apply( permitBudgets ).toList();
+                assertEquals( 100, fetched.size() );
+                assertTrue( fetched.stream().allMatch( instance::owns ) );
+            }
+        }
+    }
+
+    @Test
+    void testPartitionIsOnlyReleasedOnceItsEventsAreDone() {
+        LeaseStore store = new InMemoryLeaseStore();
+        try( LeasedPartitions first = new LeasedPartitions( "poller-a", 2, store, LEASE ).start();
+             LeasedPartitions second = new LeasedPartitions( "poller-b", 2, store, LEASE ) ) {
+            // poller-a gives up partition 1 once poller-b is there
+            EventSim inFlight = eventIn( first, 1 );
+            first.eventStarted( inFlight );
+            second.start();
+            first.rebalance();
+            assertFalse( first.owns( inFlight ) );
+
+            // but holds on to the lease while the event is in flight
+            second.rebalance();
+            assertFalse( second.owns( inFlight ) );
+
+            first.eventDone( inFlight );
+            first.rebalance();
+            second.rebalance();
+            assertTrue( second.owns( inFlight ) );
+            assertEquals( Set.of( 0 ), first.ownedPartitions() );
+        }
+    }
+
+    @Test
+    void testFileLeaseStoreIsSharedAndExpires() {
+        Path path = dir.resolve( "leases" );
+        LeaseStore one = new FileLeaseStore( path );
+        LeaseStore other = new FileLeaseStore( path );
+
+        assertTrue( one.tryAcquire( 0, "poller-a", LEASE ) );
+        assertFalse( other.tryAcquire( 0, "poller-b", LEASE ) );
+        assertTrue( other.tryAcquire( 1, "poller-b", LEASE ) );
+        one.heartbeat( "poller-a", LEASE );
+        other.heartbeat( "poller-b", LEASE );
+        assertEquals( Set.of( "poller-a", "poller-b" ), one.instances() );
+        assertEquals( "poller-b", one.leases().get( 1 ).owner() );
+
+        // a minute later poller-a hasn't renewed, its lease and membership have run out
+        LeaseStore later = new FileLeaseStore( path, Clock.offset( Clock.systemUTC(), Duration.ofMinutes( 1 ) ) );
+        assertTrue( later.instances().isEmpty() );
+        assertTrue( later.tryAcquire( 0, "poller-b", LEASE ) );
+
+        other.leave( "poller-b" );
+        assertTrue( one.leases().isEmpty() );
+    }
+}
@@ -0,0 +1,127 @@
+package com.esp.poller.ruleCache;
+
+import com.esp.poller.exception.RetryableException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RuleCacheTest {
+    @Test
+    void testConcurrentLookupsForOneAssetLoadOnce() {
+        AtomicInteger loads = new AtomicInteger();
+        RuleCache ruleCache = new RuleCache( assetId -> {
+            loads.incrementAndGet();
+            Thread.sleep( 100 );
+            return List.of( "rule0", "rule1" );
+        }, 100, Duration.ofMinutes( 1 ), Duration.ofMinutes( 1 ) );
+
+        try( ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor() ) {
+            List<CompletableFuture<List<String>>> lookups = IntStream.range( 0, 50 )
+                                                                     .mapToObj( i -> CompletableFuture.supplyAsync( () -> ruleCache.getRules( "asset1" ),
+                                                                                                                    executor ) )
+                                                                     .toList();
+            lookups.forEach( lookup -> assertEquals( List.of( "rule0", "rule1" ), lookup.join() ) );
+        }
+
+        assertEquals( 1, loads.get() );
+        assertEquals( 1, ruleCache.stats().loads() );
+    }
+
+    @Test
+    void testExpiredEntryIsReloaded() throws InterruptedException {
+        AtomicInteger loads = new AtomicInteger();
+        RuleCache ruleCache = new RuleCache( assetId -> List.of( "rule" + loads.incrementAndGet() ), 100, Duration.ofMillis( 50 ), Duration.ofMillis( 50 ) );
+
+        assertEquals( List.of( "rule1" ), ruleCache.getRules( "asset1" ) );
+        assertEquals( List.of( "rule1" ), ruleCache.getRules( "asset1" ) );
+        Thread.sleep( 100 );
+        assertEquals( List.of( "rule2" ), ruleCache.getRules( "asset1" ) );
+        assertEquals( 1, ruleCache.stats().hits() );
+    }
+
+    @Test
+    void testSizeIsBounded() {
+        RuleCache ruleCache = new RuleCache( assetId -> List.of( "rule0" ), 10, Duration.ofMinutes( 1 ), Duration.ofMinutes( 1 ) );
+
+        IntStream.range( 0, 100 ).forEach( i -> ruleCache.getRules( "asset" + i ) );
+
+        assertTrue( ruleCache.size() <= 10 );
+        assertEquals( 90, ruleCache.stats().evictions() );
+    }
+
+    @Test
+    void testFailedLoadIsNotCached() {
+        AtomicInteger loads = new AtomicInteger();
+        RuleCache ruleCache = new RuleCache( assetId -> {
+            if( loads.incrementAndGet() == 1 )
+                throw new IllegalStateException( "rules store down" );
+            return List.of( "rule0" );
+        }, 100, Duration.ofMinutes( 1 ), Duration.ofMinutes( 1 ) );
+
+        assertThrows( RetryableException.class, () -> ruleCache.getRules( "asset1" ) );
+        assertEquals( List.of( "rule0" ), ruleCache.getRules( "asset1" ) );
+    }
+
+    @Test
+    void testWarmStartFromSnapshot( @TempDir Path dir ) throws Exception {
+        Path snapshot = dir.resolve( "rules.snapshot" );
+        RuleSnapshot.write( snapshot, Map.of( "asset1", List.of( "rule0", "rule1" ), "asset2", List.of( "rule1" ), "résumé", List.of() ) );
+
+        RuleSnapshot warmStart = RuleSnapshot.open( snapshot );
+        assertEquals( 3, warmStart.assetCount() );
+        assertEquals( List.of( "rule1" ), warmStart.getRules( "asset2" ) );
+        assertEquals( List.of(), warmStart.getRules( "résumé" ) );
+        assertNull( warmStart.getRules( "asset3" ) );
+
+        AtomicInteger loads = new AtomicInteger();
+        RuleCache ruleCache = new RuleCache( assetId -> {
+            loads.incrementAndGet();
+            return List.of( "fresh" );
+        }, 100, Duration.ofMinutes( 1 ), Duration.ofMinutes( 1 ), warmStart );
+
+        assertEquals( List.of( "rule0", "rule1" ), ruleCache.getRules( "asset1" ) );
+        assertEquals( List.of( "fresh" ), ruleCache.getRules( "asset3" ) );
+        ruleCache.put( "asset2", List.of( "rule2" ) );
+        assertEquals( List.of( "rule2" ), ruleCache.getRules( "asset2" ) );
+        assertEquals( 1, ruleCache.stats().warmStartHits() );
+    }
+
+    @Test
+    void testCorruptSnapshotFailsToOpen( @TempDir Path dir ) throws Exception {
+        Path snapshot = dir.resolve( "rules.snapshot" );
+        RuleSnapshot.write( snapshot, Map.of( "asset1", List.of( "rule0", "rule1" ), "asset2", List.of( "rule1" ) ) );
+        byte[] bytes = Files.readAllBytes( snapshot );
+
+        // cut off in the middle of the string bytes, as a crash while it was copied could leave it
+        Files.write( snapshot, Arrays.copyOf( bytes, bytes.length - 3 ) );
+        assertThrows( IOException.class, () -> RuleSnapshot.open( snapshot ) );
+
+        // the last rule id, just before the 22 string bytes, points past the string table
+        ByteBuffer.wrap( bytes ).putInt( bytes.length - 22 - 4, 1000 );
+        Files.write( snapshot, bytes );
+        assertThrows( IOException.class, () -> RuleSnapshot.open( snapshot ) );
+
+        // the poller starts cold instead, its lookups go to the rules store
+        RuleCache ruleCache = RuleCacheSim.warmStarted( snapshot ).getRuleCache();
+        assertEquals( 3, ruleCache.getRules( "asset2" ).size() );
+        assertEquals( 0, ruleCache.stats().warmStartHits() );
+    }
+}
@@ -0,0 +1,77 @@
+package com.esp.poller.tasks;
+
+import com.esp.poller.dispatch.TaskDispatcher;
+import com.esp.poller.executor.GatedVirtualThreadExecutor;
+import com.esp.poller.executor.StripedGate;
+import com.esp.poller.executor.TaskScope;
+import com.esp.poller.journal.EventJournal;
+import com.esp.poller.metrics.PollerMetrics;
+import com.esp.poller.model.EventTaskContext;
+import com.esp.poller.ownership.EventOwnership;
+import com.esp.poller.ruleCache.RuleCacheSim;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoggerPollerSimTest {
+    /**
+     * A downstream where EP is down, like behind an open circuit breaker, and DP answers straight away.
+     */
+    private static class EPDownDispatcher implements TaskDispatcher {
+        private final AtomicInteger dpTasks = new AtomicInteger();
+        private final AtomicInteger epTasks = new AtomicInteger();
+
+        @Override
+        public CompletableFuture<EventTaskContext> dispatch( ClientTask task, TaskScope scope ) {
+            boolean dp = ClientTask.DP_PARTITION.equals( task.partition() );
+            (dp ? dpTasks : epTasks).incrementAndGet();
+            task.getEventTaskContext().setResult( dp ? EventTaskContext.Result.SUCCESS : EventTaskContext.Result.FAILURE_RETRYABLE );
+            return CompletableFuture.completedFuture( task.getEventTaskContext() );
+        }
+
+        @Override
+        public boolean isAccepting( String partition ) {
+            return !ClientTask.EP_PARTITION.equals( partition );
+        }
+
+        @Override
+        public boolean isAccepting( ClientTask task ) {
+            return isAccepting( task.partition() );
+        }
+    }
+
+    @Test
+    void testDPEventsAreFetchedWhileEPIsDown() {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 100 )
+                .addPartition( ClientTask.DP_PARTITION, new StripedGate( 90 ) )
+                .addPartition( ClientTask.EP_PARTITION, new StripedGate( 10 ) );
+        EPDownDispatcher dispatcher = new EPDownDispatcher();
+        try( LoggerPollerSim poller = new LoggerPollerSim( executor, dispatcher, new RuleCacheSim(), new PollerMetrics( executor ),
+                                                           LoggerPollerSim.defaultEventStateWriter(), EventJournal.NONE, EventOwnership.ALL ) ) {
+            // EP being down doesn't take the DP permits out of the budget, the DP permits alone carry a fetch
+            assertTrue( poller.allowedTasks() >= 90 );
+
+            int fetched = poller.poll();
+            assertTrue( fetched > 0 );
+            assertTrue( dispatcher.dpTasks.get() > 0 );
+        }
+    }
+
+    @Test
+    void testRuleCacheCountersAreScraped() throws IOException {
+        GatedVirtualThreadExecutor executor = new GatedVirtualThreadExecutor( 100 );
+        PollerMetrics metrics = new PollerMetrics( executor );
+        try( LoggerPollerSim poller = new LoggerPollerSim( executor, new EPDownDispatcher(), new RuleCacheSim(), metrics,
+                                                           LoggerPollerSim.defaultEventStateWriter(), EventJournal.NONE, EventOwnership.ALL ) ) {
+            poller.poll();
+            StringBuilder scrape = new StringBuilder();
+            metrics.writePrometheus( scrape );
+            assertTrue( scrape.toString().contains( "poller_rule_cache_hits_total" ) );
+            assertTrue( scrape.toString().contains( "poller_rule_cache_loads_total" ) );
+        }
+    }
+}